@@ -0,0 +1,120 @@
+import java.util.Arrays;
+
+/**
+ * AbstractArrayWAVLTree
+ *
+ * A WAVL Tree whose nodes are stored in parallel primitive arrays, shared by the trees
+ * that only differ in the types of their keys and infos (ArrayWAVLTree, LongWAVLTree,
+ * IntLongWAVLTree, IntBytesWAVLTree).
+ *
+ * A node is a slot index into the arrays, balanced by AbstractSlotWAVLTree. Once the
+ * arrays are large enough inserts and deletes allocate nothing, since deleted slots
+ * are reused.
+ *
+ * This class keeps the ranks and the links of the nodes; a subclass keeps the key and
+ * the info of every slot in arrays of its own types, searches them, and tells this class
+ * how to grow, move and clear them.
+ */
+abstract class AbstractArrayWAVLTree extends AbstractSlotWAVLTree {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private byte[] ranks; // ranks of a WAVL tree are at most 2*log(n), a byte is enough
+    private int[] parents;
+    int[] lefts; // for a free slot, the next slot in the free list
+    int[] rights;
+
+    /**
+     * Creates an empty tree with room for expectedSize items before its arrays are grown.
+     * a subclass makes its own arrays with capacity() slots.
+     */
+    AbstractArrayWAVLTree(int expectedSize) {
+        this(expectedSize, false);
+    }
+
+    /**
+     * Creates an empty tree as AbstractArrayWAVLTree(expectedSize), which calls updateNode
+     * when a subtree changes if augmented is true.
+     */
+    AbstractArrayWAVLTree(int expectedSize, boolean augmented) {
+        super(augmented);
+        int capacity = Math.max(expectedSize, DEFAULT_CAPACITY - 1) + 1;
+        ranks = new byte[capacity];
+        parents = new int[capacity];
+        lefts = new int[capacity];
+        rights = new int[capacity];
+
+        ranks[EXTERNAL] = -1;
+        parents[EXTERNAL] = NIL;
+    }
+
+    /**
+     * Grows the subclass's arrays to the given number of slots
+     */
+    abstract void growItems(int capacity);
+
+    /**
+     * @return the number of slots of the arrays
+     */
+    final int capacity() {
+        return ranks.length;
+    }
+
+    @Override
+    final int rank(int node) {
+        return ranks[node];
+    }
+
+    @Override
+    final void setRank(int node, int rank) {
+        ranks[node] = (byte) rank;
+    }
+
+    @Override
+    final int parent(int node) {
+        return parents[node];
+    }
+
+    @Override
+    final void setParent(int node, int parent) {
+        parents[node] = parent;
+    }
+
+    @Override
+    final int left(int node) {
+        return lefts[node];
+    }
+
+    @Override
+    final void setLeft(int node, int left) {
+        lefts[node] = left;
+    }
+
+    @Override
+    final int right(int node) {
+        return rights[node];
+    }
+
+    @Override
+    final void setRight(int node, int right) {
+        rights[node] = right;
+    }
+
+    @Override
+    final void ensureSlot(int node) {
+        if (node == ranks.length) {
+            grow();
+        }
+    }
+
+    /**
+     * Grows all the arrays by half of their length
+     */
+    private void grow() {
+        int capacity = ranks.length + (ranks.length >> 1);
+        ranks = Arrays.copyOf(ranks, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        lefts = Arrays.copyOf(lefts, capacity);
+        rights = Arrays.copyOf(rights, capacity);
+        growItems(capacity);
+    }
+}
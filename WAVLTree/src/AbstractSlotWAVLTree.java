@@ -0,0 +1,650 @@
+/**
+ * AbstractSlotWAVLTree
+ *
+ * The shape and the balancing of a WAVL Tree whose nodes are numbered slots instead of
+ * objects, shared by the trees that keep their slots in Java arrays (AbstractArrayWAVLTree)
+ * and the trees that keep them in records of ByteBuffers (OffHeapWAVLTree, MappedWAVLTree).
+ *
+ * Slot 0 is reserved for the external leaf that every missing child points to, and slots
+ * of deleted nodes are kept on a free list, linked through their left sons, and reused by
+ * later inserts. A subclass stores the rank, parent and sons of every slot and reads and
+ * writes them through the slot accessors, keeps the key and the info of every slot, searches
+ * them, and tells this class how to move and clear them. The rebalancing never looks at keys
+ * or at the storage, so the same code balances every kind of tree.
+ *
+ * A subclass that keeps a summary of every subtree (like IntervalWAVLTree) is created as
+ * augmented, and its updateNode is then called for every node whose subtree changed, sons
+ * before their parents, before the tree is rebalanced and for the two nodes of every rotation.
+ */
+abstract class AbstractSlotWAVLTree {
+    static final int EXTERNAL = 0; // the slot of the shared external leaf
+    static final int NIL = -1; // the parent of the root, and an empty tree's root/min/max
+
+    int root = NIL;
+    int min = NIL;
+    int max = NIL;
+    private int size;
+    private int freeList = NIL; // the most recently freed slot
+    private int nextSlot = EXTERNAL + 1; // the first slot that was never used
+    private final boolean augmented; // true if updateNode has to be called when a subtree changes
+
+    /**
+     * Creates an empty tree, which calls updateNode when a subtree changes if augmented is
+     * true. a subclass makes the external leaf a slot of rank -1 whose parent is NIL.
+     */
+    AbstractSlotWAVLTree(boolean augmented) {
+        this.augmented = augmented;
+    }
+
+    abstract int rank(int node);
+
+    abstract void setRank(int node, int rank);
+
+    abstract int parent(int node);
+
+    abstract void setParent(int node, int parent);
+
+    abstract int left(int node);
+
+    abstract void setLeft(int node, int left);
+
+    abstract int right(int node);
+
+    abstract void setRight(int node, int right);
+
+    /**
+     * Makes room for a slot that was never used, which is the slot after the last used one
+     */
+    abstract void ensureSlot(int node);
+
+    /**
+     * Copies the key and the info of slot from into slot to
+     */
+    abstract void moveItem(int from, int to);
+
+    /**
+     * Drops the key and the info of the slot of a deleted node, and what they hold
+     */
+    abstract void clearItem(int node);
+
+    /**
+     * Recomputes the summary an augmented subclass keeps of the subtree of node from the item
+     * of node and the summaries of its sons. does nothing for a tree that isn't augmented.
+     */
+    void updateNode(int node) {
+    }
+
+    /**
+     * public boolean empty()
+     *
+     * returns true if and only if the tree is empty
+     */
+    public boolean empty() {
+        return size == 0;
+    }
+
+    /**
+     * public int size()
+     *
+     * Returns the number of nodes in the tree.
+     *
+     * precondition: none postcondition: none
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the most recently freed slot, or NIL if no slot is free
+     */
+    final int freeList() {
+        return freeList;
+    }
+
+    /**
+     * @return the first slot that was never used
+     */
+    final int nextSlot() {
+        return nextSlot;
+    }
+
+    /**
+     * Sets the shape of the tree to one whose slots are already stored, as freeList() and
+     * nextSlot() returned them along with the root, size, min and max of the tree
+     */
+    final void restoreShape(int root, int size, int min, int max, int freeList, int nextSlot) {
+        this.root = root;
+        this.size = size;
+        this.min = min;
+        this.max = max;
+        this.freeList = freeList;
+        this.nextSlot = nextSlot;
+    }
+
+    /**
+     * Makes a new node the root of an empty tree
+     *
+     * @param node - a slot returned by newNode(NIL), with its key and info set
+     * @return the number of rebalancing operations, which is 0
+     */
+    final int insertRoot(int node) {
+        root = node;
+        min = node;
+        max = node;
+        size = 1;
+        return 0;
+    }
+
+    /**
+     * Links a new node as a son of its insertion point and rebalances the tree.
+     *
+     * @param parentNode - the insertion point of the new node's key
+     * @param newNode    - a slot returned by newNode(parentNode), with its key and info set
+     * @param isLeftSon  - true if the new node's key is smaller than the key of parentNode
+     * @return the number of rebalancing operations
+     */
+    final int insertBelow(int parentNode, int newNode, boolean isLeftSon) {
+        int rebalanceCount = 0;
+        boolean isParentALeaf = isLeafNode(parentNode);
+
+        if (isLeftSon) {
+            setLeft(parentNode, newNode);
+        } else {
+            setRight(parentNode, newNode);
+        }
+        if (augmented) {
+            updatePath(parentNode);
+        }
+
+        //update max and min if necessary, the new node is next to its parent in the order of keys
+        if (isLeftSon && parentNode == min)
+            min = newNode;
+        if (!isLeftSon && parentNode == max)
+            max = newNode;
+
+        //if parent was a leaf than it needs to be promoted, otherwise tree is already balanced
+        if (isParentALeaf) {
+            setRank(parentNode, rank(parentNode) + 1);
+            rebalanceCount++;
+            rebalanceCount = rebalanceInsert(parentNode, rebalanceCount);
+        }
+
+        size++;
+        return rebalanceCount;
+    }
+
+    /**
+     * Rebalance the tree after a promote occured
+     * returns the number of rebalancing operations that was necessary
+     */
+    private int rebalanceInsert(int node, int rebalanceCount) {
+        while (rankDifference(node) == 0) {
+            int parent = parent(node);
+            if (leftChildRankDifference(parent) == 1 || rightChildRankDifference(parent) == 1) {
+                //rebalance a node of the form (1,0) or (0,1) of rank differences, and move up the tree
+                setRank(parent, rank(parent) + 1);
+                rebalanceCount++;
+                node = parent;
+            } else if (isARightChild(node)) {
+                // selecting between rotating left or double rotating as rotating right and then left
+                if (leftChildRankDifference(node) == 2) {
+                    setRank(parent, rank(parent) - 1);
+                    rotateLeft(parent);
+                    rebalanceCount += 2;
+                } else {
+                    //double rotation then fix ranks of rotated nodes
+                    int b = left(node);
+                    rotateRight(node);
+                    rotateLeft(parent);
+                    setRank(node, rank(node) - 1);
+                    setRank(parent, rank(parent) - 1);
+                    setRank(b, rank(b) + 1);
+                    rebalanceCount += 5;
+                }
+                return rebalanceCount;
+            } else {
+                // selecting between rotating right or double rotating as rotating left and then right
+                if (rightChildRankDifference(node) == 2) {
+                    setRank(parent, rank(parent) - 1);
+                    rotateRight(parent);
+                    rebalanceCount += 2;
+                } else {
+                    //double rotation then fix ranks of rotated nodes
+                    int b = right(node);
+                    rotateLeft(node);
+                    rotateRight(parent);
+                    setRank(node, rank(node) - 1);
+                    setRank(parent, rank(parent) - 1);
+                    setRank(b, rank(b) + 1);
+                    rebalanceCount += 5;
+                }
+                return rebalanceCount;
+            }
+        }
+
+        return rebalanceCount;
+    }
+
+    /**
+     * Deletes a node from the tree and rebalances the tree. a binary node takes the key and
+     * info of its successor, whose slot is freed instead.
+     *
+     * @param deletedNode - a node of the tree
+     * @return the number of rebalancing operations
+     */
+    final int deleteNode(int deletedNode) {
+        size--;
+        if (empty()) {
+            freeNode(deletedNode);
+            root = NIL;
+            min = NIL;
+            max = NIL;
+            return 0;
+        }
+
+        // the minimum has no left son and the maximum has no right son, so neither is ever
+        // replaced by its successor below, and their neighbours keep their slots.
+        if (deletedNode == min)
+            min = findSuccessor(min);
+        if (deletedNode == max)
+            max = findPredecessor(max);
+        int parent; // the parent of the node we deleted - used when we rebalance the tree.
+        if (!(isUnaryNode(deletedNode) || isLeafNode(deletedNode))) { // choosing its successor node to replace it if its not leaf and not unary node.
+            int s = findSuccessor(deletedNode);
+            parent = parent(s);
+            removeNodeFromTree(s); //remove the successor node from the tree
+
+            moveItem(s, deletedNode);
+            if (augmented) {
+                updatePath(parent); // deletedNode is on the path, so it is updated after taking the item
+            }
+            if (max == s) {
+                max = deletedNode;
+            }
+            deletedNode = s;
+        } else {
+            parent = parent(deletedNode);
+            if (deletedNode == root) { // size > 0 because we checked this option in the start of delete.
+                // here is the option when we delete a root that is unary node in the tree.
+                root = right(root) == EXTERNAL ? left(root) : right(root);
+                setParent(root, NIL);
+                freeNode(deletedNode);
+                return 0;
+            } else {
+                removeNodeFromTree(deletedNode); //if the node is already a leaf or unary node we remove it from the tree.
+                if (augmented) {
+                    updatePath(parent);
+                }
+            }
+        }
+
+        freeNode(deletedNode); //return the slot to the free list
+
+        // rebalance the tree from now with the pointer to parent.
+        int rebalanceCount = 0;
+        if (isLeafNode(parent) && rightChildRankDifference(parent) == 2 && leftChildRankDifference(parent) == 2) {
+            setRank(parent, rank(parent) - 1);
+            rebalanceCount++;
+            parent = parent(parent);
+        }
+
+        return rebalanceDelete(parent, rebalanceCount);
+    }
+
+    /**
+     * Calls updateNode for a node and all its ancestors, after a node was added or removed below it
+     */
+    private void updatePath(int node) {
+        while (node != NIL) {
+            updateNode(node);
+            node = parent(node);
+        }
+    }
+
+    /**
+     * this function is fixing a violation of the WAVLTree from a specific node
+     * up and returns the number of rebalancing opperations done in order to fix it.
+     *
+     * @param node - a node that has a rank problem with one of its children, or NIL.
+     * @param rebalanceCount number of rebalancing opperations done untill this point from the bottom of the tree.
+     * @return total amount of rebalancing opperations done untill the tree is WAVLTree (from bottom to root).
+     */
+    private int rebalanceDelete(int node, int rebalanceCount) {
+        while (node != NIL && (leftChildRankDifference(node) == 3 || rightChildRankDifference(node) == 3)) {
+            if (leftChildRankDifference(node) == 2 || rightChildRankDifference(node) == 2) {
+                // the case of (3,2) or (2,3), in this case we demote and move up the tree
+                setRank(node, rank(node) - 1);
+                rebalanceCount++;
+                node = parent(node);
+                continue;
+            }
+
+            if (leftChildRankDifference(node) == 3) {
+                int right = right(node);
+                if (leftChildRankDifference(right) == 2 && rightChildRankDifference(right) == 2) {
+                    // double demote, we demote the node and it's right son and move up the tree
+                    setRank(node, rank(node) - 1);
+                    setRank(right, rank(right) - 1);
+                    rebalanceCount += 2;
+                    node = parent(node);
+                    continue;
+                }
+                if (rightChildRankDifference(right) == 1) {
+                    //rotate - we rotate left the node with it's right son and fix ranks, and we're finished with rebalancing
+                    rotateLeft(node);
+                    setRank(right, rank(right) + 1);
+                    setRank(node, rank(node) - 1);
+                    rebalanceCount += 3;
+                    if (isLeafNode(node) && rightChildRankDifference(node) == 2 && leftChildRankDifference(node) == 2) {
+                        setRank(node, rank(node) - 1);
+                        rebalanceCount++;
+                    }
+                } else {
+                    // we double rotate and fix ranks, and we're finished with rebalancing
+                    int a = left(right);
+                    rotateRight(right);
+                    rotateLeft(node);
+                    setRank(a, rank(a) + 2);
+                    setRank(right, rank(right) - 1);
+                    setRank(node, rank(node) - 2);
+                    rebalanceCount += 7;
+                }
+            } else { //- (1,3) = mirror cases of (3,1)
+                int left = left(node);
+                if (leftChildRankDifference(left) == 2 && rightChildRankDifference(left) == 2) { //double demote
+                    setRank(node, rank(node) - 1);
+                    setRank(left, rank(left) - 1);
+                    rebalanceCount += 2;
+                    node = parent(node);
+                    continue;
+                }
+                if (leftChildRankDifference(left) == 1) { //rotate and fix ranks
+                    rotateRight(node);
+                    setRank(left, rank(left) + 1);
+                    setRank(node, rank(node) - 1);
+                    rebalanceCount += 3;
+                    if (isLeafNode(node) && rightChildRankDifference(node) == 2 && leftChildRankDifference(node) == 2) {
+                        setRank(node, rank(node) - 1);
+                        rebalanceCount++;
+                    }
+                } else { //double rotate and fix ranks
+                    int a = right(left);
+                    rotateLeft(left);
+                    rotateRight(node);
+                    setRank(a, rank(a) + 2);
+                    setRank(left, rank(left) - 1);
+                    setRank(node, rank(node) - 2);
+                    rebalanceCount += 7;
+                }
+            }
+
+            return rebalanceCount;
+        }
+
+        return rebalanceCount; // rebalance complete.
+    }
+
+    /**
+     * this function remove all links to the node in the tree and bypass the node.
+     *
+     * @param s assuming a leaf or an unary node that will be removed from the tree.
+     */
+    private void removeNodeFromTree(int s) {
+        int parent = parent(s);
+        int child = right(s) == EXTERNAL ? left(s) : right(s); // EXTERNAL if s is a leaf
+        if (child != EXTERNAL) {
+            setParent(child, parent);
+        }
+
+        if (isARightChild(s)) {
+            setRight(parent, child);
+        } else {
+            setLeft(parent, child);
+        }
+    }
+
+    /**
+     * @param node - the node that this method returns its successor in the tree
+     * @return the successor of node in the tree. or NIL if node has the largest key in the tree.
+     */
+    final int findSuccessor(int node) {
+        // if node has right son go right then go all the way left
+        if (right(node) != EXTERNAL) {
+            node = right(node);
+            while (left(node) != EXTERNAL) {
+                node = left(node);
+            }
+            return node;
+        }
+
+        // go up until the first turn right
+        int y = parent(node);
+        while (y != NIL && node == right(y)) {
+            node = y;
+            y = parent(node);
+        }
+        return y;
+    }
+
+    /**
+     * @param node - the node that this method returns its predecessor in the tree
+     * @return the predecessor of node in the tree. or NIL if node has the smallest key in the tree.
+     */
+    private int findPredecessor(int node) {
+        // if node has left son go left then go all the way right
+        if (left(node) != EXTERNAL) {
+            node = left(node);
+            while (right(node) != EXTERNAL) {
+                node = right(node);
+            }
+            return node;
+        }
+
+        // go up until the first turn left
+        int y = parent(node);
+        while (y != NIL && node == left(y)) {
+            node = y;
+            y = parent(node);
+        }
+        return y;
+    }
+
+    /**
+     * Rotates to the left the right son of node
+     *
+     * @param node - the node whose son is to be rotated
+     */
+    private void rotateLeft(int node) {
+        int rotatedNode = right(node);
+        int parent = parent(node);
+        if (parent != NIL) {
+            if (right(parent) == node) {
+                setRight(parent, rotatedNode);
+            } else {
+                setLeft(parent, rotatedNode);
+            }
+        }
+
+        if (root == node) {
+            root = rotatedNode;
+        }
+
+        setParent(rotatedNode, parent);
+        setParent(node, rotatedNode);
+
+        int innerSon = left(rotatedNode);
+        setRight(node, innerSon);
+        if (innerSon != EXTERNAL) {
+            setParent(innerSon, node);
+        }
+
+        setLeft(rotatedNode, node);
+        if (augmented) {
+            updateNode(node);
+            updateNode(rotatedNode);
+        }
+    }
+
+    /**
+     * Rotates to the right the left son of node
+     *
+     * @param node - The node whose son is to be rotated
+     */
+    private void rotateRight(int node) {
+        int rotatedNode = left(node);
+        int parent = parent(node);
+        if (parent != NIL) {
+            if (right(parent) == node) {
+                setRight(parent, rotatedNode);
+            } else {
+                setLeft(parent, rotatedNode);
+            }
+        }
+
+        if (root == node) {
+            root = rotatedNode;
+        }
+
+        setParent(rotatedNode, parent);
+        setParent(node, rotatedNode);
+
+        int innerSon = right(rotatedNode);
+        setLeft(node, innerSon);
+        if (innerSon != EXTERNAL) {
+            setParent(innerSon, node);
+        }
+
+        setRight(rotatedNode, node);
+        if (augmented) {
+            updateNode(node);
+            updateNode(rotatedNode);
+        }
+    }
+
+    /**
+     * Takes a slot from the free list, or a new slot if the free list is empty, and
+     * initializes it as a leaf. the caller sets its key and info.
+     *
+     * @return the slot of the new node
+     */
+    final int newNode(int parent) {
+        int node;
+        if (freeList != NIL) {
+            node = freeList;
+            freeList = left(node);
+        } else {
+            node = nextSlot++;
+            ensureSlot(node);
+        }
+
+        setRank(node, 0);
+        setParent(node, parent);
+        setLeft(node, EXTERNAL);
+        setRight(node, EXTERNAL);
+        return node;
+    }
+
+    /**
+     * Puts the slot of a node that was removed from the tree on the free list
+     */
+    private void freeNode(int node) {
+        clearItem(node);
+        setParent(node, NIL);
+        setRight(node, EXTERNAL);
+        setLeft(node, freeList);
+        freeList = node;
+    }
+
+    /**
+     * Checks the links and the ranks of the tree, and that its size, min and max match its
+     * nodes. used by the testers.
+     *
+     * @throws IllegalStateException if a node breaks a rule of the WAVL tree
+     */
+    final void checkInvariants() {
+        if (root == NIL) {
+            if (size != 0 || min != NIL || max != NIL) {
+                throw new IllegalStateException("an empty tree has a size, min or max");
+            }
+            return;
+        }
+        if (parent(root) != NIL) {
+            throw new IllegalStateException("the root has a parent");
+        }
+
+        int count = 0;
+        int first = root;
+        while (left(first) != EXTERNAL) {
+            first = left(first);
+        }
+        int last = first;
+        for (int node = first; node != NIL; node = findSuccessor(node)) {
+            int leftDifference = leftChildRankDifference(node);
+            int rightDifference = rightChildRankDifference(node);
+            if (leftDifference < 1 || leftDifference > 2 || rightDifference < 1 || rightDifference > 2) {
+                throw new IllegalStateException("node " + node + " has rank differences " + leftDifference + ", " + rightDifference);
+            }
+            if (isLeafNode(node) && rank(node) != 0) {
+                throw new IllegalStateException("leaf " + node + " has rank " + rank(node));
+            }
+            if ((left(node) != EXTERNAL && parent(left(node)) != node) || (right(node) != EXTERNAL && parent(right(node)) != node)) {
+                throw new IllegalStateException("a son of node " + node + " has another parent");
+            }
+            if (++count > size) {
+                throw new IllegalStateException("the tree has more nodes than its size " + size);
+            }
+            last = node;
+        }
+        if (count != size || first != min || last != max) {
+            throw new IllegalStateException("the size, min or max of the tree don't match its nodes");
+        }
+    }
+
+    /**
+     * @return true if node is a leaf and false otherwise
+     */
+    private boolean isLeafNode(int node) {
+        return left(node) == EXTERNAL && right(node) == EXTERNAL;
+    }
+
+    /**
+     * @return true if node has only one son that isn't external
+     */
+    private boolean isUnaryNode(int node) {
+        return (left(node) == EXTERNAL) ^ (right(node) == EXTERNAL);
+    }
+
+    /**
+     * assuming node is not the root
+     *
+     * @return true if node is a right child of its parent and false otherwise.
+     */
+    private boolean isARightChild(int node) {
+        return right(parent(node)) == node;
+    }
+
+    /**
+     * @return -1 if node is the root and the rank difference between node and its parent otherwise.
+     */
+    private int rankDifference(int node) {
+        int parent = parent(node);
+        if (parent == NIL)
+            return -1;
+        else
+            return rank(parent) - rank(node);
+    }
+
+    /**
+     * @return the rank difference between node and its left child
+     */
+    private int leftChildRankDifference(int node) {
+        return rank(node) - rank(left(node));
+    }
+
+    /**
+     * @return the rank difference between node and its right child
+     */
+    private int rightChildRankDifference(int node) {
+        return rank(node) - rank(right(node));
+    }
+}
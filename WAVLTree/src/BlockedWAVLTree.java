@@ -0,0 +1,290 @@
+import java.util.Arrays;
+
+/**
+ * BlockedWAVLTree
+ *
+ * An implementation of a sorted map with distinct integer keys and info, with the same
+ * contract as ArrayWAVLTree, built for lookup throughput on large trees.
+ *
+ * A WAVL tree node holds a block of up to BLOCK_SIZE items in sorted arrays instead of a
+ * single item, and the tree is ordered by the smallest key of every block, so the keys of a
+ * block are all smaller than the keys of the blocks after it. A lookup descends the tree
+ * over the first keys of the blocks, which are kept in one int array, and then binary
+ * searches a single block, so a tree of n items is about log(BLOCK_SIZE) levels shallower
+ * than a tree of single items and most of a lookup touches the contiguous keys of one block.
+ *
+ * A full block is split into two halves, and a block that shrinks to a quarter of BLOCK_SIZE
+ * is merged with the block after it if they fit together in half a block, so only splits and
+ * merges change the tree. insert and delete return the number of rebalancing operations of
+ * the tree of blocks, which is 0 when the item only moved inside its block.
+ * The links and the balancing are in AbstractArrayWAVLTree.
+ */
+public class BlockedWAVLTree extends AbstractArrayWAVLTree {
+    static final int BLOCK_SIZE = 64;
+    private static final int MERGE_SIZE = BLOCK_SIZE / 4; // a block this small tries to merge with the next one
+
+    private int[] firstKeys; // the smallest key of every block, which orders the tree
+    private int[][] blockKeys;
+    private String[][] blockInfos;
+    private int[] blockSizes;
+    private int size; // the number of items, the size of the tree of blocks is the number of blocks
+
+    public BlockedWAVLTree() {
+        this(0);
+    }
+
+    /**
+     * Creates an empty tree with room for expectedSize items before its arrays are grown
+     */
+    public BlockedWAVLTree(int expectedSize) {
+        super(expectedSize / (BLOCK_SIZE / 2));
+        firstKeys = new int[capacity()];
+        blockKeys = new int[capacity()][];
+        blockInfos = new String[capacity()][];
+        blockSizes = new int[capacity()];
+    }
+
+    /**
+     * public int size()
+     *
+     * Returns the number of items in the tree.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * public String search(int k)
+     *
+     * returns the info of an item with key k if it exists in the tree
+     * otherwise, returns null
+     */
+    public String search(int key) {
+        int block = findBlock(key);
+        if (block == NIL) {
+            return null;
+        }
+
+        int index = Arrays.binarySearch(blockKeys[block], 0, blockSizes[block], key);
+        return index < 0 ? null : blockInfos[block][index];
+    }
+
+    /**
+     * public int insert(int k, String i)
+     *
+     * inserts an item with key k and info i to the tree. returns the number of rebalancing
+     * operations of the tree of blocks, or 0 if no rebalancing operations were necessary.
+     * returns -1 if an item with key k already exists in the tree.
+     */
+    public int insert(int key, String info) {
+        if (empty()) {
+            int block = newBlock(NIL);
+            insertItem(block, 0, key, info);
+            return insertRoot(block);
+        }
+
+        int block = findBlock(key);
+        int index = Arrays.binarySearch(blockKeys[block], 0, blockSizes[block], key);
+        if (index >= 0) {
+            return -1;
+        }
+        index = -index - 1;
+
+        if (blockSizes[block] < BLOCK_SIZE) {
+            insertItem(block, index, key, info);
+            return 0;
+        }
+
+        // split the full block, the upper half moves to a new block right after it
+        int half = BLOCK_SIZE / 2;
+        int rebalanceCount;
+        int next;
+        if (rights[block] == EXTERNAL) {
+            next = newBlock(block);
+            rebalanceCount = insertBelow(block, next, false);
+        } else {
+            int successor = findSuccessor(block); // the minimum of the right subtree has no left son
+            next = newBlock(successor);
+            rebalanceCount = insertBelow(successor, next, true);
+        }
+        System.arraycopy(blockKeys[block], half, blockKeys[next], 0, half);
+        System.arraycopy(blockInfos[block], half, blockInfos[next], 0, half);
+        Arrays.fill(blockInfos[block], half, BLOCK_SIZE, null);
+        blockSizes[block] = half;
+        blockSizes[next] = half;
+        firstKeys[next] = blockKeys[next][0];
+
+        if (index <= half) {
+            insertItem(block, index, key, info);
+        } else {
+            insertItem(next, index - half, key, info);
+        }
+        return rebalanceCount;
+    }
+
+    /**
+     * public int delete(int k)
+     *
+     * deletes an item with key k from the tree, if it is there. returns the number of
+     * rebalancing operations of the tree of blocks, or 0 if no rebalancing operations
+     * were needed. returns -1 if an item with key k was not found in the tree.
+     */
+    public int delete(int key) {
+        int block = findBlock(key);
+        if (block == NIL) {
+            return -1;
+        }
+
+        int index = Arrays.binarySearch(blockKeys[block], 0, blockSizes[block], key);
+        if (index < 0) {
+            return -1;
+        }
+
+        int blockSize = --blockSizes[block];
+        System.arraycopy(blockKeys[block], index + 1, blockKeys[block], index, blockSize - index);
+        System.arraycopy(blockInfos[block], index + 1, blockInfos[block], index, blockSize - index);
+        blockInfos[block][blockSize] = null;
+        size--;
+
+        if (blockSize == 0) {
+            return deleteNode(block);
+        }
+        firstKeys[block] = blockKeys[block][0];
+
+        if (blockSize > MERGE_SIZE) {
+            return 0;
+        }
+
+        // merge the block with the next one if both fit in half a block
+        int next = findSuccessor(block);
+        if (next == NIL || blockSize + blockSizes[next] > BLOCK_SIZE / 2) {
+            return 0;
+        }
+        System.arraycopy(blockKeys[next], 0, blockKeys[block], blockSize, blockSizes[next]);
+        System.arraycopy(blockInfos[next], 0, blockInfos[block], blockSize, blockSizes[next]);
+        blockSizes[block] += blockSizes[next];
+        return deleteNode(next);
+    }
+
+    /**
+     * public String min()
+     *
+     * Returns the info of the item with the smallest key in the tree, or null
+     * if the tree is empty
+     */
+    public String min() {
+        return min == NIL ? null : blockInfos[min][0];
+    }
+
+    /**
+     * public String max()
+     *
+     * Returns the info of the item with the largest key in the tree, or null if
+     * the tree is empty
+     */
+    public String max() {
+        return max == NIL ? null : blockInfos[max][blockSizes[max] - 1];
+    }
+
+    /**
+     * public int[] keysToArray()
+     *
+     * Returns a sorted array which contains all keys in the tree, or an empty
+     * array if the tree is empty.
+     */
+    public int[] keysToArray() {
+        int[] array = new int[size];
+        int index = 0;
+        for (int block = min; block != NIL; block = findSuccessor(block)) {
+            System.arraycopy(blockKeys[block], 0, array, index, blockSizes[block]);
+            index += blockSizes[block];
+        }
+
+        return array;
+    }
+
+    /**
+     * public String[] infoToArray()
+     *
+     * Returns an array which contains all info in the tree, sorted by their
+     * respective keys, or an empty array if the tree is empty.
+     */
+    public String[] infoToArray() {
+        String[] array = new String[size];
+        int index = 0;
+        for (int block = min; block != NIL; block = findSuccessor(block)) {
+            System.arraycopy(blockInfos[block], 0, array, index, blockSizes[block]);
+            index += blockSizes[block];
+        }
+
+        return array;
+    }
+
+    /**
+     * searches for the block that may hold a key
+     *
+     * @param key - the key to look for in the tree
+     * @return the block with the largest first key not larger than key, the first block if key
+     * is smaller than every key in the tree, and NIL if the tree is empty
+     */
+    private int findBlock(int key) {
+        int block = min;
+        int node = root;
+        if (node == NIL) {
+            return NIL;
+        }
+
+        while (node != EXTERNAL) {
+            if (firstKeys[node] <= key) {
+                block = node;
+                node = rights[node];
+            } else {
+                node = lefts[node];
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Inserts an item into a block that isn't full, at an index that keeps it sorted
+     */
+    private void insertItem(int block, int index, int key, String info) {
+        int blockSize = blockSizes[block]++;
+        System.arraycopy(blockKeys[block], index, blockKeys[block], index + 1, blockSize - index);
+        System.arraycopy(blockInfos[block], index, blockInfos[block], index + 1, blockSize - index);
+        blockKeys[block][index] = key;
+        blockInfos[block][index] = info;
+        firstKeys[block] = blockKeys[block][0];
+        size++;
+    }
+
+    /**
+     * @return the slot of a new empty block, whose parent in the tree is parent
+     */
+    private int newBlock(int parent) {
+        int block = newNode(parent);
+        blockKeys[block] = new int[BLOCK_SIZE];
+        blockInfos[block] = new String[BLOCK_SIZE];
+        blockSizes[block] = 0;
+        return block;
+    }
+
+    void growItems(int capacity) {
+        firstKeys = Arrays.copyOf(firstKeys, capacity);
+        blockKeys = Arrays.copyOf(blockKeys, capacity);
+        blockInfos = Arrays.copyOf(blockInfos, capacity);
+        blockSizes = Arrays.copyOf(blockSizes, capacity);
+    }
+
+    void moveItem(int from, int to) {
+        firstKeys[to] = firstKeys[from];
+        blockKeys[to] = blockKeys[from];
+        blockInfos[to] = blockInfos[from];
+        blockSizes[to] = blockSizes[from];
+    }
+
+    void clearItem(int node) {
+        blockKeys[node] = null;
+        blockInfos[node] = null;
+    }
+}
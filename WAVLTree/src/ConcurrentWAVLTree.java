@@ -0,0 +1,830 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * ConcurrentWAVLTree
+ *
+ * A thread safe implementation of a WAVL Tree with distinct integer keys and info, with
+ * the same contract as WAVLTree.
+ *
+ * Reads don't lock: search, min, max and small range reads walk the tree under an
+ * optimistic stamp of a StampedLock, and only if a writer changed the tree meanwhile they
+ * are retried under the read lock. Writers look for their place in the tree optimistically
+ * as well, and take the write lock only to link or unlink their node and rebalance, so
+ * readers are never blocked by a writer that is still searching.
+ *
+ * While a writer changes the tree an optimistic reader may see it half changed, so every
+ * optimistic walk checks for missing nodes and gives up after more steps than the height
+ * of any WAVL tree, and its result is used only if the stamp is still valid afterwards.
+ */
+public class ConcurrentWAVLTree {
+    private static final int MAX_HEIGHT = 96; // the height of a WAVL tree is at most 2*log(n) < 64
+    private static final int MAX_OPTIMISTIC_RANGE = 256; // longer range reads take the read lock
+
+    private final StampedLock lock = new StampedLock();
+    private Node root;
+    private int size;
+    private Node min;
+    private Node max;
+
+    /**
+     * public boolean empty()
+     *
+     * returns true if and only if the tree is empty
+     */
+    public boolean empty() {
+        return size() == 0;
+    }
+
+    /**
+     * public String search(int k)
+     *
+     * returns the info of an item with key k if it exists in the tree
+     * otherwise, returns null
+     */
+    public String search(int key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Node node = findNearestNodeOptimistic(key);
+            String info = node == null ? null : node.info;
+            boolean found = node != null && node.key == key;
+            if (lock.validate(stamp)) {
+                return found ? info : null;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            Node node = findNearestNode(key);
+            return node == null || node.key != key ? null : node.info;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * public int insert(int k, String i)
+     *
+     * inserts an item with key k and info i to the WAVL tree. the tree must
+     * remain valid (keep its invariants). returns the number of rebalancing
+     * operations, or 0 if no rebalancing operations were necessary. returns -1
+     * if an item with key k already exists in the tree.
+     */
+    public int insert(int key, String info) {
+        long stamp = lock.tryOptimisticRead();
+        Node parentNode = null;
+        if (stamp != 0) {
+            parentNode = findNearestNodeOptimistic(key);
+            if (parentNode != null && parentNode.key == key && lock.validate(stamp)) {
+                return -1;
+            }
+            // succeeds only if no writer came in since the search, so its result still holds
+            stamp = lock.tryConvertToWriteLock(stamp);
+        }
+        if (stamp == 0) {
+            stamp = lock.writeLock();
+            parentNode = findNearestNode(key);
+        }
+
+        try {
+            if (root == null) {
+                root = new Node(key, info, null);
+                min = root;
+                max = root;
+                size = 1;
+                return 0;
+            }
+            if (parentNode.key == key) {
+                return -1;
+            }
+
+            return insertUnder(parentNode, key, info);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * public int delete(int k)
+     *
+     * deletes an item with key k from the binary tree, if it is there; the tree
+     * must remain valid (keep its invariants). returns the number of
+     * rebalancing operations, or 0 if no rebalancing operations were needed.
+     * returns -1 if an item with key k was not found in the tree.
+     */
+    public int delete(int key) {
+        long stamp = lock.tryOptimisticRead();
+        Node deletedNode = null;
+        if (stamp != 0) {
+            deletedNode = findNearestNodeOptimistic(key);
+            boolean found = deletedNode != null && deletedNode.key == key;
+            if (!found && lock.validate(stamp)) {
+                return -1;
+            }
+            stamp = lock.tryConvertToWriteLock(stamp);
+        }
+        if (stamp == 0) {
+            stamp = lock.writeLock();
+            deletedNode = findNearestNode(key);
+        }
+
+        try {
+            if (deletedNode == null || deletedNode.key != key) {
+                return -1;
+            }
+
+            return deleteNode(deletedNode);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * public String min()
+     *
+     * Returns the info of the item with the smallest key in the tree, or null
+     * if the tree is empty
+     */
+    public String min() {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Node node = min;
+            String info = node == null ? null : node.info;
+            if (lock.validate(stamp)) {
+                return info;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return min == null ? null : min.info;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * public String max()
+     *
+     * Returns the info of the item with the largest key in the tree, or null if
+     * the tree is empty
+     */
+    public String max() {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Node node = max;
+            String info = node == null ? null : node.info;
+            if (lock.validate(stamp)) {
+                return info;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return max == null ? null : max.info;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer consumer)
+     *
+     * Passes the key and info of every item whose key is between lo and hi, inclusive, to
+     * consumer in ascending order of keys, as they were at one point in time. ranges of up
+     * to a few hundred items are read optimistically into a buffer and handed to consumer
+     * after the read is validated, longer ranges are read under the read lock.
+     */
+    public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer consumer) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int[] keys = new int[16];
+            String[] infos = new String[16];
+            int count = 0;
+            Node node = ceilingNodeOptimistic(lo);
+            while (node != null && node.key <= hi && count < MAX_OPTIMISTIC_RANGE) {
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                    infos = Arrays.copyOf(infos, count * 2);
+                }
+                keys[count] = node.key;
+                infos[count] = node.info;
+                count++;
+                node = successorOptimistic(node);
+            }
+
+            boolean complete = node == null || node.key > hi;
+            if (complete && lock.validate(stamp)) {
+                for (int i = 0; i < count; i++) {
+                    consumer.accept(keys[i], infos[i]);
+                }
+                return;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            Node node = findNearestNode(lo);
+            if (node != null && node.key < lo) {
+                node = findSuccessor(node);
+            }
+            for (; node != null && node.key <= hi; node = findSuccessor(node)) {
+                consumer.accept(node.key, node.info);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * public int[] keysToArray()
+     *
+     * Returns a sorted array which contains all keys in the tree, or an empty
+     * array if the tree is empty.
+     */
+    public int[] keysToArray() {
+        long stamp = lock.readLock();
+        try {
+            int[] array = new int[size];
+            int index = 0;
+            for (Node node = min; node != null; node = findSuccessor(node)) {
+                array[index++] = node.key;
+            }
+            return array;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * public String[] infoToArray()
+     *
+     * Returns an array which contains all info in the tree, sorted by their
+     * respective keys, or an empty array if the tree is empty.
+     */
+    public String[] infoToArray() {
+        long stamp = lock.readLock();
+        try {
+            String[] array = new String[size];
+            int index = 0;
+            for (Node node = min; node != null; node = findSuccessor(node)) {
+                array[index++] = node.info;
+            }
+            return array;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Checks the rules of the WAVL tree under the read lock: the rank differences of 1 or 2,
+     * the rank 0 of the leaves, the parent links, the order of the keys, and the size, min and
+     * max of the tree. for the testers.
+     * throws IllegalStateException at the first broken rule.
+     */
+    void checkInvariants() {
+        long stamp = lock.readLock();
+        try {
+            if (root == null) {
+                if (size != 0 || min != null || max != null) {
+                    throw new IllegalStateException("an empty tree has a size, min or max");
+                }
+                return;
+            }
+            if (root.parent != null) {
+                throw new IllegalStateException("the root has a parent");
+            }
+            if (checkSubtree(root, Integer.MIN_VALUE - 1L, Integer.MAX_VALUE + 1L) != size) {
+                throw new IllegalStateException("the size of the tree doesn't match its nodes");
+            }
+            Node first = root;
+            while (first.left != null) {
+                first = first.left;
+            }
+            Node last = root;
+            while (last.right != null) {
+                last = last.right;
+            }
+            if (first != min || last != max) {
+                throw new IllegalStateException("min or max isn't at the end of the tree");
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param low  - the keys of the subtree must be greater than low
+     * @param high - and smaller than high
+     * @return the number of nodes in the subtree of node, after checking it
+     */
+    private static int checkSubtree(Node node, long low, long high) {
+        if (node == null) {
+            return 0;
+        }
+
+        int leftDifference = node.leftChildRankDifference();
+        int rightDifference = node.rightChildRankDifference();
+        if (leftDifference < 1 || leftDifference > 2 || rightDifference < 1 || rightDifference > 2) {
+            throw new IllegalStateException("key " + node.key + " has rank differences " + leftDifference + ", " + rightDifference);
+        }
+        if (node.isLeafNode() && node.rank != 0) {
+            throw new IllegalStateException("leaf " + node.key + " has rank " + node.rank);
+        }
+        if ((node.left != null && node.left.parent != node) || (node.right != null && node.right.parent != node)) {
+            throw new IllegalStateException("a son of key " + node.key + " has another parent");
+        }
+        if (node.key <= low || node.key >= high) {
+            throw new IllegalStateException("key " + node.key + " is out of the order of the keys");
+        }
+        return checkSubtree(node.left, low, node.key) + 1 + checkSubtree(node.right, node.key, high);
+    }
+
+    /**
+     * public int size()
+     *
+     * Returns the number of nodes in the tree.
+     */
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int currentSize = size;
+        if (lock.validate(stamp)) {
+            return currentSize;
+        }
+
+        stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Links a new leaf under parentNode and rebalances the tree. assuming the write lock is held.
+     *
+     * @return the number of rebalancing operations
+     */
+    private int insertUnder(Node parentNode, int key, String info) {
+        int rebalanceCount = 0;
+        boolean isParentALeaf = parentNode.isLeafNode();
+        Node newNode = new Node(key, info, parentNode);
+        if (parentNode.key > key) {
+            parentNode.left = newNode;
+        } else {
+            parentNode.right = newNode;
+        }
+
+        //update max and min if necessary
+        if (key < min.key)
+            min = newNode;
+        if (key > max.key)
+            max = newNode;
+
+        //if parent was a leaf than it needs to be promoted, otherwise tree is already balanced
+        if (isParentALeaf) {
+            parentNode.rank++;
+            rebalanceCount++;
+            rebalanceCount = rebalanceInsert(parentNode, rebalanceCount);
+        }
+
+        size++;
+        return rebalanceCount;
+    }
+
+    /**
+     * Rebalance the tree after a promote occured
+     * returns the number of rebalancing operations that was necessary
+     */
+    private int rebalanceInsert(Node node, int rebalanceCount) {
+        while (node.rankDifference() == 0) {
+            Node parent = node.parent;
+            if (parent.leftChildRankDifference() == 1 || parent.rightChildRankDifference() == 1) {
+                //rebalance a node of the form (1,0) or (0,1) of rank differences, and move up the tree
+                parent.rank++;
+                rebalanceCount++;
+                node = parent;
+            } else if (node.isARightChild()) {
+                // selecting between rotating left or double rotating as rotating right and then left
+                if (node.leftChildRankDifference() == 2) {
+                    parent.rank--;
+                    rotateLeft(parent);
+                    rebalanceCount += 2;
+                } else {
+                    //double rotation then fix ranks of rotated nodes
+                    Node b = node.left;
+                    rotateRight(node);
+                    rotateLeft(parent);
+                    node.rank--;
+                    parent.rank--;
+                    b.rank++;
+                    rebalanceCount += 5;
+                }
+                return rebalanceCount;
+            } else {
+                // selecting between rotating right or double rotating as rotating left and then right
+                if (node.rightChildRankDifference() == 2) {
+                    parent.rank--;
+                    rotateRight(parent);
+                    rebalanceCount += 2;
+                } else {
+                    //double rotation then fix ranks of rotated nodes
+                    Node b = node.right;
+                    rotateLeft(node);
+                    rotateRight(parent);
+                    node.rank--;
+                    parent.rank--;
+                    b.rank++;
+                    rebalanceCount += 5;
+                }
+                return rebalanceCount;
+            }
+        }
+
+        return rebalanceCount;
+    }
+
+    /**
+     * Removes a node from the tree and rebalances it. assuming the write lock is held.
+     *
+     * @return the number of rebalancing operations
+     */
+    private int deleteNode(Node deletedNode) {
+        size--;
+        if (size == 0) {
+            root = null;
+            min = null;
+            max = null;
+            return 0;
+        }
+
+        // the minimum has no left son and the maximum has no right son, so neither is ever
+        // replaced by its successor below, and their neighbours stay in the tree.
+        if (deletedNode == min)
+            min = findSuccessor(min);
+        if (deletedNode == max)
+            max = findPredecessor(max);
+        Node parent; // the parent of the node we deleted - used when we rebalance the tree.
+        if (deletedNode.left != null && deletedNode.right != null) { // choosing its successor node to replace it if its binary.
+            Node s = findSuccessor(deletedNode);
+            parent = s.parent;
+            removeNodeFromTree(s); //remove the successor node from the tree
+
+            deletedNode.key = s.key;
+            deletedNode.info = s.info;
+            if (max == s) {
+                max = deletedNode;
+            }
+        } else {
+            parent = deletedNode.parent;
+            if (deletedNode == root) { // here is the option when we delete a root that is unary node in the tree.
+                root = deletedNode.right == null ? deletedNode.left : deletedNode.right;
+                root.parent = null;
+                return 0;
+            }
+            removeNodeFromTree(deletedNode); //if the node is already a leaf or unary node we remove it from the tree.
+        }
+
+        // rebalance the tree from now with the pointer to parent.
+        int rebalanceCount = 0;
+        if (parent.isLeafNode() && parent.rank == 1) {
+            // a leaf of rank 1 is a (2,2) leaf
+            parent.rank--;
+            rebalanceCount++;
+            parent = parent.parent;
+        }
+
+        return rebalanceDelete(parent, rebalanceCount);
+    }
+
+    /**
+     * this function is fixing a violation of the WAVLTree from a specific node
+     * up and returns the number of rebalancing opperations done in order to fix it.
+     *
+     * @param node - a node that has a rank problem with one of its children, or null.
+     * @param rebalanceCount number of rebalancing opperations done untill this point from the bottom of the tree.
+     * @return total amount of rebalancing opperations done untill the tree is WAVLTree (from bottom to root).
+     */
+    private int rebalanceDelete(Node node, int rebalanceCount) {
+        while (node != null && (node.leftChildRankDifference() == 3 || node.rightChildRankDifference() == 3)) {
+            if (node.leftChildRankDifference() == 2 || node.rightChildRankDifference() == 2) {
+                // the case of (3,2) or (2,3), in this case we demote and move up the tree
+                node.rank--;
+                rebalanceCount++;
+                node = node.parent;
+                continue;
+            }
+
+            if (node.leftChildRankDifference() == 3) {
+                Node right = node.right;
+                if (right.leftChildRankDifference() == 2 && right.rightChildRankDifference() == 2) {
+                    // double demote, we demote the node and it's right son and move up the tree
+                    node.rank--;
+                    right.rank--;
+                    rebalanceCount += 2;
+                    node = node.parent;
+                    continue;
+                }
+                if (right.rightChildRankDifference() == 1) {
+                    //rotate - we rotate left the node with it's right son and fix ranks, and we're finished with rebalancing
+                    rotateLeft(node);
+                    right.rank++;
+                    node.rank--;
+                    rebalanceCount += 3;
+                    if (node.isLeafNode() && node.rank == 1) {
+                        node.rank--;
+                        rebalanceCount++;
+                    }
+                } else {
+                    // we double rotate and fix ranks, and we're finished with rebalancing
+                    Node a = right.left;
+                    rotateRight(right);
+                    rotateLeft(node);
+                    a.rank += 2;
+                    right.rank--;
+                    node.rank -= 2;
+                    rebalanceCount += 7;
+                }
+            } else { //- (1,3) = mirror cases of (3,1)
+                Node left = node.left;
+                if (left.leftChildRankDifference() == 2 && left.rightChildRankDifference() == 2) { //double demote
+                    node.rank--;
+                    left.rank--;
+                    rebalanceCount += 2;
+                    node = node.parent;
+                    continue;
+                }
+                if (left.leftChildRankDifference() == 1) { //rotate and fix ranks
+                    rotateRight(node);
+                    left.rank++;
+                    node.rank--;
+                    rebalanceCount += 3;
+                    if (node.isLeafNode() && node.rank == 1) {
+                        node.rank--;
+                        rebalanceCount++;
+                    }
+                } else { //double rotate and fix ranks
+                    Node a = left.right;
+                    rotateLeft(left);
+                    rotateRight(node);
+                    a.rank += 2;
+                    left.rank--;
+                    node.rank -= 2;
+                    rebalanceCount += 7;
+                }
+            }
+
+            return rebalanceCount;
+        }
+
+        return rebalanceCount; // rebalance complete.
+    }
+
+    /**
+     * this function remove all pointers to the node in the tree and bypass the node.
+     *
+     * @param s assuming a leaf or an unary node that will be removed from the tree.
+     */
+    private void removeNodeFromTree(Node s) {
+        Node parent = s.parent;
+        Node child = s.right == null ? s.left : s.right; // null if s is a leaf
+        if (child != null) {
+            child.parent = parent;
+        }
+
+        if (s.isARightChild()) {
+            parent.right = child;
+        } else {
+            parent.left = child;
+        }
+    }
+
+    /**
+     * Rotates to the left the right son of node
+     */
+    private void rotateLeft(Node node) {
+        Node rotatedNode = node.right;
+        Node parent = node.parent;
+        if (parent != null) {
+            if (parent.right == node) {
+                parent.right = rotatedNode;
+            } else {
+                parent.left = rotatedNode;
+            }
+        }
+
+        if (root == node) {
+            root = rotatedNode;
+        }
+
+        rotatedNode.parent = parent;
+        node.parent = rotatedNode;
+        node.right = rotatedNode.left;
+        if (node.right != null) {
+            node.right.parent = node;
+        }
+        rotatedNode.left = node;
+    }
+
+    /**
+     * Rotates to the right the left son of node
+     */
+    private void rotateRight(Node node) {
+        Node rotatedNode = node.left;
+        Node parent = node.parent;
+        if (parent != null) {
+            if (parent.right == node) {
+                parent.right = rotatedNode;
+            } else {
+                parent.left = rotatedNode;
+            }
+        }
+
+        if (root == node) {
+            root = rotatedNode;
+        }
+
+        rotatedNode.parent = parent;
+        node.parent = rotatedNode;
+        node.left = rotatedNode.right;
+        if (node.left != null) {
+            node.left.parent = node;
+        }
+        rotatedNode.right = node;
+    }
+
+    /**
+     * searches for a key in the tree, if no node with such key exisits, returns the insertion
+     * point for the key. assuming a lock is held.
+     *
+     * @return a node with the specified key if one exists, the insertion point for the key
+     * otherwise, and null if the tree is empty
+     */
+    private Node findNearestNode(int key) {
+        Node node = root;
+        if (node == null) {
+            return null;
+        }
+
+        while (true) {
+            if (node.key == key) {
+                return node;
+            }
+
+            Node son = node.key > key ? node.left : node.right;
+            if (son == null) {
+                return node;
+            }
+            node = son;
+        }
+    }
+
+    /**
+     * findNearestNode without holding a lock. the result is meaningful only if the optimistic
+     * stamp it was read under is still valid.
+     *
+     * @return the same as findNearestNode, or null if the walk ran into a half changed tree
+     */
+    private Node findNearestNodeOptimistic(int key) {
+        Node node = root;
+        for (int steps = 0; node != null && steps < MAX_HEIGHT; steps++) {
+            if (node.key == key) {
+                return node;
+            }
+
+            Node son = node.key > key ? node.left : node.right;
+            if (son == null) {
+                return node;
+            }
+            node = son;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the node with the smallest key that is at least key, read without a lock, or null
+     */
+    private Node ceilingNodeOptimistic(int key) {
+        Node node = findNearestNodeOptimistic(key);
+        if (node == null || node.key >= key) {
+            return node;
+        }
+        return successorOptimistic(node);
+    }
+
+    /**
+     * findSuccessor without holding a lock, giving up with null after MAX_HEIGHT steps
+     */
+    private Node successorOptimistic(Node node) {
+        Node next = node.right;
+        if (next != null) {
+            for (int steps = 0; next.left != null; steps++) {
+                if (steps == MAX_HEIGHT) {
+                    return null;
+                }
+                next = next.left;
+            }
+            return next;
+        }
+
+        Node parent = node.parent;
+        for (int steps = 0; parent != null && node == parent.right; steps++) {
+            if (steps == MAX_HEIGHT) {
+                return null;
+            }
+            node = parent;
+            parent = node.parent;
+        }
+        return parent;
+    }
+
+    /**
+     * @return the successor of node in the tree, or null if node has the largest key
+     */
+    private Node findSuccessor(Node node) {
+        if (node.right != null) {
+            node = node.right;
+            while (node.left != null) {
+                node = node.left;
+            }
+            return node;
+        }
+
+        Node parent = node.parent;
+        while (parent != null && node == parent.right) {
+            node = parent;
+            parent = node.parent;
+        }
+        return parent;
+    }
+
+    /**
+     * @return the predecessor of node in the tree, or null if node has the smallest key
+     */
+    private Node findPredecessor(Node node) {
+        if (node.left != null) {
+            node = node.left;
+            while (node.right != null) {
+                node = node.right;
+            }
+            return node;
+        }
+
+        Node parent = node.parent;
+        while (parent != null && node == parent.left) {
+            node = parent;
+            parent = node.parent;
+        }
+        return parent;
+    }
+
+    /**
+     * private static class Node
+     *
+     * a node of the tree. missing sons are null, and have rank -1.
+     */
+    private static class Node {
+        int key;
+        String info;
+        int rank;
+        Node parent;
+        Node left;
+        Node right;
+
+        /**
+         * Constructor for a new leaf node.
+         */
+        Node(int key, String info, Node parent) {
+            this.key = key;
+            this.info = info;
+            this.parent = parent;
+        }
+
+        boolean isLeafNode() {
+            return left == null && right == null;
+        }
+
+        /**
+         * assuming this.parent is not null
+         */
+        boolean isARightChild() {
+            return parent.right == this;
+        }
+
+        /**
+         * @return -1 if this.parent is null and the rank difference between this and its parent otherwise.
+         */
+        int rankDifference() {
+            return parent == null ? -1 : parent.rank - rank;
+        }
+
+        int leftChildRankDifference() {
+            return rank - (left == null ? -1 : left.rank);
+        }
+
+        int rightChildRankDifference() {
+            return rank - (right == null ? -1 : right.rank);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+import java.util.Arrays;
+
+/**
+ * IntervalWAVLTree
+ *
+ * An interval tree of distinct closed integer intervals [lo, hi] with info, balanced as a
+ * WAVL Tree. The intervals are ordered by lo and then by hi, and every node keeps the largest
+ * hi in its subtree, which the links and the balancing in AbstractArrayWAVLTree keep up to
+ * date through inserts, deletes and rotations.
+ *
+ * findOverlapping and stab skip every subtree whose largest hi is below the query, and every
+ * right subtree whose intervals all start after it.
+ */
+public class IntervalWAVLTree extends AbstractArrayWAVLTree {
+    private int[] lows;
+    private int[] highs;
+    private int[] maxHighs; // the largest hi in the subtree of every node, Integer.MIN_VALUE for the external leaf
+    private String[] infos;
+
+    public IntervalWAVLTree() {
+        this(0);
+    }
+
+    /**
+     * Creates an empty tree with room for expectedSize intervals before its arrays are grown
+     */
+    public IntervalWAVLTree(int expectedSize) {
+        super(expectedSize, true);
+        lows = new int[capacity()];
+        highs = new int[capacity()];
+        maxHighs = new int[capacity()];
+        infos = new String[capacity()];
+        maxHighs[EXTERNAL] = Integer.MIN_VALUE;
+    }
+
+    /**
+     * public String search(int lo, int hi)
+     *
+     * returns the info of the interval [lo, hi] if it exists in the tree
+     * otherwise, returns null
+     */
+    public String search(int lo, int hi) {
+        int nearestNode = findNearestNode(lo, hi);
+        if (nearestNode == NIL || compare(lo, hi, nearestNode) != 0) {
+            return null;
+        }
+
+        return infos[nearestNode];
+    }
+
+    /**
+     * public int insert(int lo, int hi, String i)
+     *
+     * inserts the interval [lo, hi] with info i to the tree. returns the number of
+     * rebalancing operations, or 0 if no rebalancing operations were necessary. returns -1
+     * if the interval [lo, hi] already exists in the tree.
+     * throws IllegalArgumentException if lo is greater than hi.
+     */
+    public int insert(int lo, int hi, String info) {
+        if (lo > hi) {
+            throw new IllegalArgumentException("lo: " + lo + " is greater than hi: " + hi);
+        }
+
+        if (empty()) {
+            return insertRoot(newNode(lo, hi, info, NIL));
+        }
+
+        //find the parent node of the new node
+        int parentNode = findNearestNode(lo, hi);
+        int comparison = compare(lo, hi, parentNode);
+        if (comparison == 0) {
+            return -1;
+        }
+
+        return insertBelow(parentNode, newNode(lo, hi, info, parentNode), comparison < 0);
+    }
+
+    /**
+     * public int delete(int lo, int hi)
+     *
+     * deletes the interval [lo, hi] from the tree, if it is there. returns the number of
+     * rebalancing operations, or 0 if no rebalancing operations were needed.
+     * returns -1 if the interval [lo, hi] was not found in the tree.
+     */
+    public int delete(int lo, int hi) {
+        int deletedNode = findNearestNode(lo, hi);
+        if (deletedNode == NIL || compare(lo, hi, deletedNode) != 0) {
+            return -1;
+        }
+
+        return deleteNode(deletedNode);
+    }
+
+    /**
+     * public void findOverlapping(int lo, int hi, IntervalConsumer consumer)
+     *
+     * Passes every interval of the tree that shares a point with [lo, hi] to consumer, in the
+     * order of the intervals. takes O(log n) time when no interval overlaps [lo, hi], and at
+     * most O(log n) more for each of the k intervals that do, which is O(log n + k) when they
+     * are next to each other in the order. the tree must not be modified by consumer.
+     */
+    public void findOverlapping(int lo, int hi, IntervalConsumer consumer) {
+        if (!empty() && lo <= hi) {
+            findOverlapping(root, lo, hi, consumer);
+        }
+    }
+
+    /**
+     * public void stab(int point, IntervalConsumer consumer)
+     *
+     * Passes every interval of the tree that contains point to consumer, as findOverlapping(point, point).
+     */
+    public void stab(int point, IntervalConsumer consumer) {
+        findOverlapping(point, point, consumer);
+    }
+
+    /**
+     * Passes the intervals of a subtree that overlap [lo, hi] to consumer, in order
+     *
+     * @param node - the root of the subtree, or the external leaf
+     */
+    private void findOverlapping(int node, int lo, int hi, IntervalConsumer consumer) {
+        // the external leaf is checked first, its maxHigh of Integer.MIN_VALUE is not below every lo
+        if (node == EXTERNAL || maxHighs[node] < lo) {
+            return;
+        }
+
+        findOverlapping(lefts[node], lo, hi, consumer);
+        if (lows[node] > hi) {
+            return; // this interval and the whole right subtree start after hi
+        }
+        if (highs[node] >= lo) {
+            consumer.accept(lows[node], highs[node], infos[node]);
+        }
+        findOverlapping(rights[node], lo, hi, consumer);
+    }
+
+    /**
+     * searches for an interval in the tree, if no such interval exists, returns the insertion point for it
+     *
+     * @return the node of the interval [lo, hi] if it exists, the insertion point for it otherwise,
+     * and NIL if the tree is empty
+     */
+    private int findNearestNode(int lo, int hi) {
+        int node = root;
+        if (node == NIL) {
+            return NIL;
+        }
+
+        while (true) {
+            int comparison = compare(lo, hi, node);
+            if (comparison == 0) {
+                return node;
+            }
+
+            //if son is external return node as insertion point
+            int son = comparison < 0 ? lefts[node] : rights[node];
+            if (son == EXTERNAL) {
+                return node;
+            }
+            node = son;
+        }
+    }
+
+    /**
+     * @return a negative number, zero, or a positive number as [lo, hi] comes before, is, or comes
+     * after the interval of node
+     */
+    private int compare(int lo, int hi, int node) {
+        int comparison = Integer.compare(lo, lows[node]);
+        return comparison != 0 ? comparison : Integer.compare(hi, highs[node]);
+    }
+
+    private int newNode(int lo, int hi, String info, int parent) {
+        int node = newNode(parent);
+        lows[node] = lo;
+        highs[node] = hi;
+        maxHighs[node] = hi;
+        infos[node] = info;
+        return node;
+    }
+
+    void updateNode(int node) {
+        maxHighs[node] = Math.max(highs[node], Math.max(maxHighs[lefts[node]], maxHighs[rights[node]]));
+    }
+
+    void growItems(int capacity) {
+        lows = Arrays.copyOf(lows, capacity);
+        highs = Arrays.copyOf(highs, capacity);
+        maxHighs = Arrays.copyOf(maxHighs, capacity);
+        infos = Arrays.copyOf(infos, capacity);
+    }
+
+    void moveItem(int from, int to) {
+        lows[to] = lows[from];
+        highs[to] = highs[from];
+        infos[to] = infos[from];
+    }
+
+    void clearItem(int node) {
+        infos[node] = null;
+    }
+
+    /**
+     * public interface IntervalConsumer
+     *
+     * an operation on an interval and its info
+     */
+    public interface IntervalConsumer {
+        void accept(int lo, int hi, String info);
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.Arrays;
+
+/**
+ * LongWAVLTree
+ *
+ * An implementation of a WAVL Tree with distinct long keys and info, with the same
+ * contract as ArrayWAVLTree, for keys like 64-bit ids that don't fit in an int.
+ * The links and the balancing are in AbstractArrayWAVLTree.
+ */
+public class LongWAVLTree extends AbstractArrayWAVLTree {
+    private long[] keys;
+    private String[] infos;
+
+    public LongWAVLTree() {
+        this(0);
+    }
+
+    /**
+     * Creates an empty tree with room for expectedSize items before its arrays are grown
+     */
+    public LongWAVLTree(int expectedSize) {
+        super(expectedSize);
+        keys = new long[capacity()];
+        infos = new String[capacity()];
+    }
+
+    /**
+     * public String search(long k)
+     *
+     * returns the info of an item with key k if it exists in the tree
+     * otherwise, returns null
+     */
+    public String search(long key) {
+        int nearestNode = findNearestNode(key);
+        if (nearestNode == NIL || keys[nearestNode] != key) {
+            return null;
+        }
+
+        return infos[nearestNode];
+    }
+
+    /**
+     * public int insert(long k, String i)
+     *
+     * inserts an item with key k and info i to the WAVL tree. the tree must
+     * remain valid (keep its invariants). returns the number of rebalancing
+     * operations, or 0 if no rebalancing operations were necessary. returns -1
+     * if an item with key k already exists in the tree.
+     */
+    public int insert(long key, String info) {
+        if (empty()) {
+            return insertRoot(newNode(key, info, NIL));
+        }
+
+        //find the parent node of the new node
+        int parentNode = findNearestNode(key);
+        if (keys[parentNode] == key) {
+            return -1;
+        }
+
+        return insertBelow(parentNode, newNode(key, info, parentNode), key < keys[parentNode]);
+    }
+
+    /**
+     * public int delete(long k)
+     *
+     * deletes an item with key k from the binary tree, if it is there; the tree
+     * must remain valid (keep its invariants). returns the number of
+     * rebalancing operations, or 0 if no rebalancing operations were needed.
+     * returns -1 if an item with key k was not found in the tree.
+     */
+    public int delete(long key) {
+        int deletedNode = findNearestNode(key);
+        if (deletedNode == NIL || keys[deletedNode] != key) {
+            return -1;
+        }
+
+        return deleteNode(deletedNode);
+    }
+
+    /**
+     * searches for a key in the tree, if no node with such key exisits, returns the insertion point for the key
+     *
+     * @param key - the key to look for in the tree
+     * @return a node with the specified key if one exists, the insertion point for the key otherwise,
+     * and NIL if the tree is empty
+     */
+    private int findNearestNode(long key) {
+        int node = root;
+        if (node == NIL) {
+            return NIL;
+        }
+
+        while (true) {
+            //if key found return node
+            if (keys[node] == key) {
+                return node;
+            }
+
+            //if nodes key is bigger than requested key, try to go left, else try to go right
+            //if son is external return node as insertion point
+            int son = keys[node] > key ? lefts[node] : rights[node];
+            if (son == EXTERNAL) {
+                return node;
+            }
+            node = son;
+        }
+    }
+
+    /**
+     * public String min()
+     *
+     * Returns the info of the item with the smallest key in the tree, or null
+     * if the tree is empty
+     */
+    public String min() {
+        return min == NIL ? null : infos[min];
+    }
+
+    /**
+     * public String max()
+     *
+     * Returns the info of the item with the largest key in the tree, or null if
+     * the tree is empty
+     */
+    public String max() {
+        return max == NIL ? null : infos[max];
+    }
+
+    /**
+     * public long[] keysToArray()
+     *
+     * Returns a sorted array which contains all keys in the tree, or an empty
+     * array if the tree is empty.
+     */
+    public long[] keysToArray() {
+        long[] array = new long[size()];
+        int index = 0;
+        for (int node = min; node != NIL; node = findSuccessor(node)) {
+            array[index++] = keys[node];
+        }
+
+        return array;
+    }
+
+    /**
+     * public String[] infoToArray()
+     *
+     * Returns an array which contains all info in the tree, sorted by their
+     * respective keys, or an empty array if the tree is empty.
+     */
+    public String[] infoToArray() {
+        String[] array = new String[size()];
+        int index = 0;
+        for (int node = min; node != NIL; node = findSuccessor(node)) {
+            array[index++] = infos[node];
+        }
+
+        return array;
+    }
+
+    private int newNode(long key, String info, int parent) {
+        int node = newNode(parent);
+        keys[node] = key;
+        infos[node] = info;
+        return node;
+    }
+
+    void growItems(int capacity) {
+        keys = Arrays.copyOf(keys, capacity);
+        infos = Arrays.copyOf(infos, capacity);
+    }
+
+    void moveItem(int from, int to) {
+        keys[to] = keys[from];
+        infos[to] = infos[from];
+    }
+
+    void clearItem(int node) {
+        infos[node] = null;
+    }
+}
@@ -0,0 +1,541 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * MappedWAVLTree
+ *
+ * An OffHeapWAVLTree whose records live in memory-mapped files, so the tree survives a
+ * restart of the process. Opening an existing file maps it without reading it: the tree
+ * is usable at once, and the operating system pages in only the records that are touched.
+ *
+ * The tree is kept in three files: the node file - a header holding the root, size, min, max
+ * and the free lists of the tree, followed by the chunks of node records - the info file
+ * next to it, whose name ends with ".info", holding the chunks of the info arena, and the
+ * redo file, whose name ends with ".redo", which is empty but during a force.
+ *
+ * The files are mapped privately: inserts, deletes and their rotations update the mapped
+ * records in memory, and the files keep the tree as it was at the last force until the next
+ * one. force() is the point the tree is durable at. it writes the pages changed since the
+ * last force and the new header to the redo file and forces it, then copies them into the
+ * node and info files, forces them, and empties the redo file. open replays a redo file that
+ * was written whole before a crash, and drops one that was not, so a crash at any point
+ * leaves the tree as it was at one of its forces. close() forces the tree as well. The
+ * changed pages are held in memory until the next force, after which their chunks are mapped
+ * again.
+ *
+ * A file must be open in one MappedWAVLTree at a time.
+ */
+public class MappedWAVLTree extends OffHeapWAVLTree {
+    private static final int MAGIC = 0x5741564C; // "WAVL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int CHUNK_PREFIX_SIZE = 8; // the capacity of an info chunk, before the chunk
+    private static final int PAGE_SHIFT = 12; // changes are written out in pages of 4096 bytes
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    // the layout of the header
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int STATE_OFFSET = 64;
+
+    // the redo file holds REDO_MAGIC and its entries - the file an entry is copied to, its
+    // position in the file, its length of at most a page and its bytes - followed by END and
+    // the CRC32 of everything before it. not private, as the testers write redo files too
+    static final int REDO_MAGIC = 0x5752444F; // "WRDO"
+    static final byte NODE_FILE = 0;
+    static final byte INFO_FILE = 1;
+    static final byte END = 2;
+
+    private final MappedFiles files;
+
+    private MappedWAVLTree(MappedFiles files) {
+        super(files.nodeAllocator(), files.infoAllocator(), files.existing ? files.state() : null);
+        this.files = files;
+        files.loading = false;
+    }
+
+    /**
+     * public static MappedWAVLTree open(Path path)
+     *
+     * Opens the tree stored in the node file at path and the files next to it, or creates an
+     * empty tree in new files if there is no tree at path. a tree whose force was cut short
+     * by a crash is opened as it was at its last complete force.
+     * throws IOException if the files can't be opened or mapped, or don't hold a tree.
+     */
+    public static MappedWAVLTree open(Path path) throws IOException {
+        MappedFiles files = new MappedFiles(path);
+        try {
+            MappedWAVLTree tree = new MappedWAVLTree(files);
+            if (!files.existing) {
+                tree.force(); // a new file holds an empty tree from the start
+                WAVLTreeLog.forceDirectory(path);
+            }
+            return tree;
+        } catch (UncheckedIOException e) {
+            files.close();
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * public void force()
+     *
+     * Writes the changes of the tree since the last force to the files, through the redo
+     * file, and flushes them to the storage device. when force returns, reopening the files
+     * gives the tree as it is now, and a crash during force gives the tree as it was before.
+     * throws UncheckedIOException if the files can't be written.
+     */
+    public void force() {
+        ensureOpen();
+        saveState(files.state());
+        try {
+            files.force();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // the changed pages are in the files now, and mapping their chunks again lets go of the private copies
+        for (Chunk chunk : files.remapChanged()) {
+            if (chunk.channel == files.nodes) {
+                replaceNodeChunk(chunk.index, chunk.buffer);
+            } else {
+                replaceInfoChunk(chunk.index, chunk.buffer);
+            }
+        }
+    }
+
+    /**
+     * public void close()
+     *
+     * Forces the tree, unmaps the files and closes them. closing a closed tree does nothing.
+     */
+    public void close() {
+        if (files.closed) {
+            return;
+        }
+
+        try {
+            force();
+        } finally {
+            super.close();
+            files.close();
+        }
+    }
+
+    @Override
+    void setRank(int node, int rank) {
+        super.setRank(node, rank);
+        recordChanged(node);
+    }
+
+    @Override
+    void setParent(int node, int parent) {
+        super.setParent(node, parent);
+        recordChanged(node);
+    }
+
+    @Override
+    void setLeft(int node, int left) {
+        super.setLeft(node, left);
+        recordChanged(node);
+    }
+
+    @Override
+    void setRight(int node, int right) {
+        super.setRight(node, right);
+        recordChanged(node);
+    }
+
+    @Override
+    void nodeChunkChanged(int chunk, int offset, int length) {
+        // the constructor of a new tree writes its first chunk before files is set, and a new chunk is written out whole
+        if (files != null) {
+            files.nodeChunks.get(chunk).changed(offset, length);
+        }
+    }
+
+    @Override
+    void infoChunkChanged(int chunk, int offset, int length) {
+        files.infoChunks.get(chunk).changed(offset, length);
+    }
+
+    /**
+     * A chunk of nodes or of the info arena: where it is in its file, its private mapping,
+     * and the pages of it that were changed since the last force
+     */
+    private static class Chunk {
+        final FileChannel channel;
+        final int index; // in the chunks of nodes or infos of the tree
+        final long position;
+        final int capacity;
+        ByteBuffer buffer;
+        final BitSet changedPages = new BitSet();
+
+        Chunk(FileChannel channel, int index, long position, int capacity) {
+            this.channel = channel;
+            this.index = index;
+            this.position = position;
+            this.capacity = capacity;
+        }
+
+        void changed(int offset, int length) {
+            if (length > 0) {
+                changedPages.set(offset >>> PAGE_SHIFT, ((offset + length - 1) >>> PAGE_SHIFT) + 1);
+            }
+        }
+
+        /**
+         * @return the length of the page that starts at pageStart, shorter for the last page
+         */
+        int pageLength(int pageStart) {
+            return Math.min(PAGE_SIZE, capacity - pageStart);
+        }
+
+        /**
+         * @return a view of the bytes of a page of the chunk
+         */
+        ByteBuffer page(int page) {
+            int pageStart = page << PAGE_SHIFT;
+            ByteBuffer bytes = buffer.duplicate();
+            bytes.position(pageStart);
+            bytes.limit(pageStart + pageLength(pageStart));
+            return bytes;
+        }
+    }
+
+    /**
+     * The channels and the chunks of the files of a tree. the chunks of nodes are laid one
+     * after another after the header of the node file, and every chunk of the info arena is
+     * prefixed by its capacity, so that the chunks can be found again on reopening.
+     */
+    private static class MappedFiles {
+        private final FileChannel nodes;
+        private final FileChannel infos;
+        private final FileChannel redo;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final List<Chunk> nodeChunks = new ArrayList<Chunk>();
+        private final List<Chunk> infoChunks = new ArrayList<Chunk>();
+        private final List<long[]> existingInfoChunks = new ArrayList<long[]>(); // the position and capacity of every chunk
+        private final List<long[]> newInfoPrefixes = new ArrayList<long[]>(); // the position and capacity of every chunk since the last force
+        private final boolean existing;
+        private boolean loading; // the chunks of an existing tree are being mapped
+        private long infoEnd; // the position after the last chunk of the info file
+        private boolean closed;
+
+        MappedFiles(Path path) throws IOException {
+            nodes = open(path);
+            FileChannel infoChannel = null;
+            FileChannel redoChannel = null;
+            try {
+                infoChannel = open(path.resolveSibling(path.getFileName() + ".info"));
+                redoChannel = open(path.resolveSibling(path.getFileName() + ".redo"));
+                replayRedo(infoChannel, redoChannel);
+                while (header.hasRemaining() && nodes.read(header, header.position()) > 0) {
+                    // the header of a file shorter than it is left zero
+                }
+                // a file whose first force was cut short is still empty
+                existing = header.getInt(MAGIC_OFFSET) != 0;
+                if (existing) {
+                    checkHeader();
+                    findInfoChunks(infoChannel, state().getInt(24));
+                    loading = true;
+                } else {
+                    header.putInt(MAGIC_OFFSET, MAGIC);
+                    header.putInt(VERSION_OFFSET, VERSION);
+                    nodes.truncate(0);
+                    infoChannel.truncate(0);
+                }
+            } catch (IOException | RuntimeException e) {
+                nodes.close();
+                if (infoChannel != null) {
+                    infoChannel.close();
+                }
+                if (redoChannel != null) {
+                    redoChannel.close();
+                }
+                throw e;
+            }
+            infos = infoChannel;
+            redo = redoChannel;
+        }
+
+        private static FileChannel open(Path path) throws IOException {
+            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        private void checkHeader() throws IOException {
+            if (header.getInt(MAGIC_OFFSET) != MAGIC) {
+                throw new IOException("not a tree file");
+            }
+            if (header.getInt(VERSION_OFFSET) != VERSION) {
+                throw new IOException("unsupported tree file version " + header.getInt(VERSION_OFFSET));
+            }
+        }
+
+        /**
+         * Finds the first count chunks of the info file. chunks after them were added after
+         * the last force, and are written over by the chunks added from now on.
+         */
+        private void findInfoChunks(FileChannel infoChannel, int count) throws IOException {
+            ByteBuffer prefix = ByteBuffer.allocate(CHUNK_PREFIX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long position = 0;
+            for (int i = 0; i < count; i++) {
+                prefix.clear();
+                while (prefix.hasRemaining() && infoChannel.read(prefix, position + prefix.position()) > 0) {
+                    // read the whole prefix
+                }
+                int capacity = prefix.getInt(0);
+                if (prefix.hasRemaining() || capacity <= 0) {
+                    throw new IOException("the info file is missing chunks of the tree");
+                }
+                existingInfoChunks.add(new long[]{position + CHUNK_PREFIX_SIZE, capacity});
+                position += CHUNK_PREFIX_SIZE + capacity;
+            }
+            infoEnd = position;
+        }
+
+        /**
+         * Copies the entries of a redo file that was written whole into the node and info
+         * files, and empties the redo file. a redo file that was not written whole was cut
+         * short before any of the files was changed, and is only emptied.
+         */
+        private void replayRedo(FileChannel infoChannel, FileChannel redoChannel) throws IOException {
+            if (redoChannel.size() == 0) {
+                return;
+            }
+
+            if (isWhole(redoChannel)) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(redoChannel.position(0))));
+                in.readInt();
+                byte[] bytes = new byte[PAGE_SIZE];
+                byte target;
+                while ((target = in.readByte()) != END) {
+                    long position = in.readLong();
+                    int length = in.readInt();
+                    in.readFully(bytes, 0, length);
+                    writeFully(target == NODE_FILE ? nodes : infoChannel, ByteBuffer.wrap(bytes, 0, length), position);
+                }
+                nodes.force(true);
+                infoChannel.force(true);
+            }
+            redoChannel.truncate(0);
+            redoChannel.force(true);
+        }
+
+        /**
+         * @return true if the redo file ends with END and the checksum of its entries
+         */
+        private static boolean isWhole(FileChannel redoChannel) throws IOException {
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(
+                    new BufferedInputStream(Channels.newInputStream(redoChannel.position(0))), crc));
+            byte[] bytes = new byte[PAGE_SIZE];
+            try {
+                if (in.readInt() != REDO_MAGIC) {
+                    return false;
+                }
+                while (true) {
+                    byte target = in.readByte();
+                    if (target == END) {
+                        long checksum = crc.getValue();
+                        return in.readInt() == (int) checksum;
+                    }
+                    if (target != NODE_FILE && target != INFO_FILE) {
+                        return false;
+                    }
+                    in.readLong();
+                    int length = in.readInt();
+                    if (length < 0 || length > PAGE_SIZE) {
+                        return false;
+                    }
+                    in.readFully(bytes, 0, length);
+                }
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @return the part of the header that holds the state of the tree
+         */
+        ByteBuffer state() {
+            ByteBuffer state = header.duplicate();
+            state.position(STATE_OFFSET);
+            state.limit(STATE_OFFSET + STATE_SIZE);
+            return state.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        IntFunction<ByteBuffer> nodeAllocator() {
+            return new IntFunction<ByteBuffer>() {
+                public ByteBuffer apply(int capacity) {
+                    long position = HEADER_SIZE + (long) nodeChunks.size() * capacity;
+                    return addChunk(nodeChunks, nodes, position, capacity).buffer;
+                }
+            };
+        }
+
+        IntFunction<ByteBuffer> infoAllocator() {
+            return new IntFunction<ByteBuffer>() {
+                public ByteBuffer apply(int capacity) {
+                    if (loading) {
+                        long[] chunk = existingInfoChunks.get(infoChunks.size());
+                        return addChunk(infoChunks, infos, chunk[0], (int) chunk[1]).buffer;
+                    }
+
+                    // the prefix is written with the pages of the chunk on the next force
+                    newInfoPrefixes.add(new long[]{infoEnd, capacity});
+                    Chunk chunk = addChunk(infoChunks, infos, infoEnd + CHUNK_PREFIX_SIZE, capacity);
+                    infoEnd += CHUNK_PREFIX_SIZE + capacity;
+                    return chunk.buffer;
+                }
+            };
+        }
+
+        /**
+         * Maps a chunk and adds it to chunks. a new chunk, one that isn't part of an existing
+         * tree, is written out whole on the next force.
+         */
+        private Chunk addChunk(List<Chunk> chunks, FileChannel channel, long position, int capacity) {
+            Chunk chunk = new Chunk(channel, chunks.size(), position, capacity);
+            chunk.buffer = map(chunk);
+            if (!loading) {
+                chunk.changedPages.set(0, (capacity + PAGE_SIZE - 1) >>> PAGE_SHIFT);
+            }
+            chunks.add(chunk);
+            return chunk;
+        }
+
+        private static ByteBuffer map(Chunk chunk) {
+            try {
+                return chunk.channel.map(FileChannel.MapMode.PRIVATE, chunk.position, chunk.capacity)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Writes the header, the prefixes of the new info chunks and the changed pages to the
+         * redo file and forces it, then writes them to the node and info files, forces them,
+         * and empties the redo file
+         */
+        void force() throws IOException {
+            redo.truncate(0);
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(redo.position(0)), 1 << 16), crc));
+            out.writeInt(REDO_MAGIC);
+            writeEntry(out, NODE_FILE, 0, header.array(), HEADER_SIZE);
+            ByteBuffer prefix = ByteBuffer.allocate(CHUNK_PREFIX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (long[] newPrefix : newInfoPrefixes) {
+                prefix.putInt(0, (int) newPrefix[1]);
+                writeEntry(out, INFO_FILE, newPrefix[0], prefix.array(), CHUNK_PREFIX_SIZE);
+            }
+            byte[] page = new byte[PAGE_SIZE];
+            for (Chunk chunk : chunks()) {
+                byte target = chunk.channel == nodes ? NODE_FILE : INFO_FILE;
+                for (int i = chunk.changedPages.nextSetBit(0); i >= 0; i = chunk.changedPages.nextSetBit(i + 1)) {
+                    int length = chunk.pageLength(i << PAGE_SHIFT);
+                    chunk.page(i).get(page, 0, length);
+                    writeEntry(out, target, chunk.position + (i << PAGE_SHIFT), page, length);
+                }
+            }
+            out.writeByte(END);
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            redo.force(true);
+
+            // the redo file is whole, so a crash from here on is repaired by replaying it
+            writeFully(nodes, ByteBuffer.wrap(header.array()), 0);
+            for (long[] newPrefix : newInfoPrefixes) {
+                prefix.putInt(0, (int) newPrefix[1]);
+                writeFully(infos, ByteBuffer.wrap(prefix.array()), newPrefix[0]);
+            }
+            for (Chunk chunk : chunks()) {
+                for (int i = chunk.changedPages.nextSetBit(0); i >= 0; i = chunk.changedPages.nextSetBit(i + 1)) {
+                    writeFully(chunk.channel, chunk.page(i), chunk.position + (i << PAGE_SHIFT));
+                }
+            }
+            nodes.force(true);
+            infos.force(true);
+            newInfoPrefixes.clear();
+
+            redo.truncate(0);
+            redo.force(true);
+        }
+
+        /**
+         * Maps every chunk that had changed pages again, and clears its changed pages. the
+         * tree takes the new mappings and releases the old ones.
+         *
+         * @return the chunks that were mapped again
+         */
+        List<Chunk> remapChanged() {
+            List<Chunk> remapped = new ArrayList<Chunk>();
+            for (Chunk chunk : chunks()) {
+                if (!chunk.changedPages.isEmpty()) {
+                    chunk.buffer = map(chunk);
+                    chunk.changedPages.clear();
+                    remapped.add(chunk);
+                }
+            }
+            return remapped;
+        }
+
+        /**
+         * @return the chunks of nodes followed by the chunks of the info arena
+         */
+        private List<Chunk> chunks() {
+            List<Chunk> chunks = new ArrayList<Chunk>(nodeChunks);
+            chunks.addAll(infoChunks);
+            return chunks;
+        }
+
+        private static void writeEntry(DataOutputStream out, byte target, long position, byte[] bytes, int length)
+                throws IOException {
+            out.writeByte(target);
+            out.writeLong(position);
+            out.writeInt(length);
+            out.write(bytes, 0, length);
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer bytes, long position) throws IOException {
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            try {
+                nodes.close();
+                infos.close();
+                redo.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,602 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * OffHeapWAVLTree
+ *
+ * An implementation of a WAVL Tree with distinct integer keys and info, with the same
+ * contract as WAVLTree, whose nodes and infos are stored outside the Java heap, so that
+ * very large trees neither fill the heap nor lengthen the pauses of the garbage collector.
+ *
+ * A node is a fixed-width record in direct ByteBuffers, addressed by its slot number like
+ * the nodes of ArrayWAVLTree: its key, its rank, the slots of its parent and sons, and the
+ * address and length of its info. The records are balanced by AbstractSlotWAVLTree, the
+ * same code that balances ArrayWAVLTree, through accessors that read and write them.
+ *
+ * Infos are encoded as UTF-8 into a separate arena of direct ByteBuffers, in blocks whose
+ * sizes are powers of two. freed blocks are kept on a free list per size, and reused by
+ * infos of the same size class. search, min, max and infoToArray decode the info into a
+ * new String.
+ *
+ * The memory of the tree is released by close(), after which the tree can't be used.
+ * MappedWAVLTree keeps the same records in memory-mapped files instead.
+ */
+public class OffHeapWAVLTree extends AbstractSlotWAVLTree implements AutoCloseable {
+    // the layout of a node record
+    private static final int KEY = 0;
+    private static final int RANK = 4;
+    private static final int PARENT = 8;
+    private static final int LEFT = 12; // for a free record, the next record in the free list
+    private static final int RIGHT = 16;
+    private static final int INFO_LENGTH = 20; // -1 for a null info
+    private static final int INFO_ADDRESS = 24;
+    private static final int RECORD_SIZE = 32;
+
+    private static final int NODE_CHUNK_SHIFT = 16; // 65536 records, 2MB, in every chunk of nodes
+    private static final int NODE_CHUNK_MASK = (1 << NODE_CHUNK_SHIFT) - 1;
+    static final int NODE_CHUNK_SIZE = RECORD_SIZE << NODE_CHUNK_SHIFT;
+    static final int INFO_CHUNK_SIZE = 1 << 20;
+    private static final int MIN_BLOCK_SHIFT = 3; // a free block holds the address of the next one
+    private static final int MAX_INFO_LENGTH = 1 << 30; // the largest block a ByteBuffer can hold
+    static final int STATE_SIZE = 64 + 8 * 32; // the bytes saveState writes
+
+    // resolved once, as release runs for every chunk a closed tree frees
+    private static final Object UNSAFE = findUnsafe();
+    private static final Method INVOKE_CLEANER = findInvokeCleaner();
+
+    private static final IntFunction<ByteBuffer> DIRECT_CHUNKS = new IntFunction<ByteBuffer>() {
+        public ByteBuffer apply(int capacity) {
+            return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+    };
+
+    private final IntFunction<ByteBuffer> nodeAllocator; // makes the chunks of nodes, given their size in bytes
+    private final IntFunction<ByteBuffer> infoAllocator; // makes the chunks of the info arena
+    private ByteBuffer[] nodeChunks = new ByteBuffer[4];
+    private ByteBuffer[] infoChunks = new ByteBuffer[4];
+    private int infoChunkCount;
+    private int currentInfoChunk = -1; // the chunk new blocks are cut from
+    private int infoTop = INFO_CHUNK_SIZE; // the first free byte of the current chunk
+    private final long[] freeBlocks = new long[32]; // the first free block of every size class, or -1
+
+    private boolean closed;
+
+    public OffHeapWAVLTree() {
+        this(DIRECT_CHUNKS, DIRECT_CHUNKS, null);
+    }
+
+    /**
+     * Creates a tree whose chunks of nodes and infos are made by the given allocators. the
+     * allocators are asked for chunks in the order the chunks are used.
+     *
+     * @param state - null for an empty tree, or the state written by saveState, in which case
+     *              the allocators return the chunks of that tree first, in the same order
+     */
+    OffHeapWAVLTree(IntFunction<ByteBuffer> nodeAllocator, IntFunction<ByteBuffer> infoAllocator, ByteBuffer state) {
+        super(false);
+        this.nodeAllocator = nodeAllocator;
+        this.infoAllocator = infoAllocator;
+        Arrays.fill(freeBlocks, -1);
+        if (state == null) {
+            nodeChunks[0] = nodeAllocator.apply(NODE_CHUNK_SIZE);
+            setRank(EXTERNAL, -1);
+            setParent(EXTERNAL, NIL);
+            return;
+        }
+
+        loadState(state);
+        int nodeChunkCount = ((nextSlot() - 1) >>> NODE_CHUNK_SHIFT) + 1;
+        nodeChunks = new ByteBuffer[Math.max(4, nodeChunkCount)];
+        for (int i = 0; i < nodeChunkCount; i++) {
+            nodeChunks[i] = nodeAllocator.apply(NODE_CHUNK_SIZE);
+        }
+        infoChunks = new ByteBuffer[Math.max(4, infoChunkCount)];
+        for (int i = 0; i < infoChunkCount; i++) {
+            infoChunks[i] = infoAllocator.apply(INFO_CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * public String search(int k)
+     *
+     * returns the info of an item with key k if it exists in the tree
+     * otherwise, returns null
+     */
+    public String search(int key) {
+        int nearestNode = findNearestNode(key);
+        if (nearestNode == NIL || key(nearestNode) != key) {
+            return null;
+        }
+
+        return info(nearestNode);
+    }
+
+    /**
+     * public int insert(int k, String i)
+     *
+     * inserts an item with key k and info i to the WAVL tree. the tree must
+     * remain valid (keep its invariants). returns the number of rebalancing
+     * operations, or 0 if no rebalancing operations were necessary. returns -1
+     * if an item with key k already exists in the tree. throws
+     * IllegalArgumentException if i takes more than 1GB in UTF-8.
+     */
+    public int insert(int key, String info) {
+        if (empty()) {
+            return insertRoot(newNode(key, info, NIL));
+        }
+
+        //find the parent node of the new node
+        int parentNode = findNearestNode(key);
+        int parentKey = key(parentNode);
+        if (parentKey == key) {
+            return -1;
+        }
+
+        return insertBelow(parentNode, newNode(key, info, parentNode), parentKey > key);
+    }
+
+    /**
+     * public int delete(int k)
+     *
+     * deletes an item with key k from the binary tree, if it is there; the tree
+     * must remain valid (keep its invariants). returns the number of
+     * rebalancing operations, or 0 if no rebalancing operations were needed.
+     * returns -1 if an item with key k was not found in the tree.
+     */
+    public int delete(int key) {
+        int deletedNode = findNearestNode(key);
+        if (deletedNode == NIL || key(deletedNode) != key) {
+            return -1;
+        }
+
+        return deleteNode(deletedNode);
+    }
+
+    /**
+     * searches for a key in the tree, if no node with such key exisits, returns the insertion point for the key
+     *
+     * @param key - the key to look for in the tree
+     * @return a node with the specified key if one exists, the insertion point for the key otherwise,
+     * and NIL if the tree is empty
+     */
+    private int findNearestNode(int key) {
+        ensureOpen();
+        int node = root;
+        if (node == NIL) {
+            return NIL;
+        }
+
+        while (true) {
+            //if key found return node
+            int nodeKey = key(node);
+            if (nodeKey == key) {
+                return node;
+            }
+
+            //if nodes key is bigger than requested key, try to go left, else try to go right
+            //if son is external return node as insertion point
+            int son = nodeKey > key ? left(node) : right(node);
+            if (son == EXTERNAL) {
+                return node;
+            }
+            node = son;
+        }
+    }
+
+    /**
+     * public String min()
+     *
+     * Returns the info of the item with the smallest key in the tree, or null
+     * if the tree is empty
+     */
+    public String min() {
+        ensureOpen();
+        return min == NIL ? null : info(min);
+    }
+
+    /**
+     * public String max()
+     *
+     * Returns the info of the item with the largest key in the tree, or null if
+     * the tree is empty
+     */
+    public String max() {
+        ensureOpen();
+        return max == NIL ? null : info(max);
+    }
+
+    /**
+     * public int[] keysToArray()
+     *
+     * Returns a sorted array which contains all keys in the tree, or an empty
+     * array if the tree is empty.
+     */
+    public int[] keysToArray() {
+        ensureOpen();
+        int[] array = new int[size()];
+        int index = 0;
+        for (int node = min; node != NIL; node = findSuccessor(node)) {
+            array[index++] = key(node);
+        }
+
+        return array;
+    }
+
+    /**
+     * public String[] infoToArray()
+     *
+     * Returns an array which contains all info in the tree, sorted by their
+     * respective keys, or an empty array if the tree is empty.
+     */
+    public String[] infoToArray() {
+        ensureOpen();
+        String[] array = new String[size()];
+        int index = 0;
+        for (int node = min; node != NIL; node = findSuccessor(node)) {
+            array[index++] = info(node);
+        }
+
+        return array;
+    }
+
+    /**
+     * public void close()
+     *
+     * Releases the memory of the nodes and the infos of the tree. the tree can't be used
+     * after it is closed. closing a closed tree does nothing.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        for (ByteBuffer chunk : nodeChunks) {
+            release(chunk);
+        }
+        for (ByteBuffer chunk : infoChunks) {
+            release(chunk);
+        }
+        nodeChunks = null;
+        infoChunks = null;
+        restoreShape(NIL, 0, NIL, NIL, NIL, EXTERNAL + 1);
+    }
+
+    /**
+     * Takes a record from the free list, or a new record if the free list is empty, and
+     * initializes it as a leaf holding the item.
+     *
+     * @return the slot of the new node
+     */
+    private int newNode(int key, String info, int parent) {
+        ensureOpen();
+        byte[] bytes = info == null ? null : info.getBytes(StandardCharsets.UTF_8);
+        if (bytes != null && bytes.length > MAX_INFO_LENGTH) {
+            // checked before the node is taken, so a rejected info leaves the tree as it was
+            throw new IllegalArgumentException("an info of " + bytes.length + " bytes is larger than " + MAX_INFO_LENGTH);
+        }
+
+        int node = newNode(parent);
+        ByteBuffer records = changeRecord(node);
+        int offset = offset(node);
+        records.putInt(offset + KEY, key);
+        if (bytes == null) {
+            records.putInt(offset + INFO_LENGTH, -1);
+        } else {
+            long address = allocateInfo(bytes.length);
+            infoChunkChanged((int) (address >>> 32), (int) address, bytes.length);
+            ByteBuffer block = infoChunks[(int) (address >>> 32)].duplicate();
+            block.position((int) address);
+            block.put(bytes);
+            records.putInt(offset + INFO_LENGTH, bytes.length);
+            records.putLong(offset + INFO_ADDRESS, address);
+        }
+        return node;
+    }
+
+    @Override
+    final void ensureSlot(int node) {
+        int chunk = node >>> NODE_CHUNK_SHIFT;
+        if (chunk == nodeChunks.length) {
+            nodeChunks = Arrays.copyOf(nodeChunks, chunk * 2);
+        }
+        if (nodeChunks[chunk] == null) {
+            nodeChunks[chunk] = nodeAllocator.apply(NODE_CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * The info block of the item of to is freed, and to takes over the key and the info
+     * block of from, whose record then has no info to free
+     */
+    @Override
+    final void moveItem(int from, int to) {
+        freeInfo(infoAddress(to), infoLength(to));
+        ByteBuffer fromRecords = changeRecord(from);
+        ByteBuffer toRecords = changeRecord(to);
+        toRecords.putInt(offset(to) + KEY, fromRecords.getInt(offset(from) + KEY));
+        toRecords.putInt(offset(to) + INFO_LENGTH, fromRecords.getInt(offset(from) + INFO_LENGTH));
+        toRecords.putLong(offset(to) + INFO_ADDRESS, fromRecords.getLong(offset(from) + INFO_ADDRESS));
+        fromRecords.putInt(offset(from) + INFO_LENGTH, -1);
+    }
+
+    @Override
+    final void clearItem(int node) {
+        freeInfo(infoAddress(node), infoLength(node));
+    }
+
+    /**
+     * @return the address of a block of the info arena that holds length bytes, made of the
+     * index of its chunk in the high 32 bits and its offset in the chunk in the low 32 bits
+     */
+    private long allocateInfo(int length) {
+        int sizeClass = sizeClass(length);
+        long address = freeBlocks[sizeClass];
+        if (address != -1) {
+            freeBlocks[sizeClass] = infoChunks[(int) (address >>> 32)].getLong((int) address);
+            return address;
+        }
+
+        int blockSize = 1 << sizeClass;
+        if (blockSize > INFO_CHUNK_SIZE) {
+            // a block larger than a chunk gets a chunk of its own
+            return (long) addInfoChunk(blockSize) << 32;
+        }
+        if (infoTop + blockSize > INFO_CHUNK_SIZE) {
+            currentInfoChunk = addInfoChunk(INFO_CHUNK_SIZE);
+            infoTop = 0;
+        }
+
+        address = ((long) currentInfoChunk << 32) | infoTop;
+        infoTop += blockSize;
+        return address;
+    }
+
+    /**
+     * Puts a block of the info arena on the free list of its size class
+     */
+    private void freeInfo(long address, int length) {
+        if (length < 0) {
+            return;
+        }
+
+        int sizeClass = sizeClass(length);
+        infoChunkChanged((int) (address >>> 32), (int) address, 8);
+        infoChunks[(int) (address >>> 32)].putLong((int) address, freeBlocks[sizeClass]);
+        freeBlocks[sizeClass] = address;
+    }
+
+    /**
+     * @return the log of the size of the smallest block that holds length bytes, for a length
+     * of at most MAX_INFO_LENGTH
+     */
+    private static int sizeClass(int length) {
+        return Math.max(MIN_BLOCK_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1));
+    }
+
+    /**
+     * @return the index of a new chunk of the info arena
+     */
+    private int addInfoChunk(int capacity) {
+        if (infoChunkCount == infoChunks.length) {
+            infoChunks = Arrays.copyOf(infoChunks, infoChunkCount * 2);
+        }
+        infoChunks[infoChunkCount] = infoAllocator.apply(capacity);
+        return infoChunkCount++;
+    }
+
+    /**
+     * @return the info of node decoded into a String, or null
+     */
+    private String info(int node) {
+        int length = infoLength(node);
+        if (length < 0) {
+            return null;
+        }
+
+        long address = infoAddress(node);
+        ByteBuffer block = infoChunks[(int) (address >>> 32)].duplicate();
+        block.position((int) address);
+        byte[] bytes = new byte[length];
+        block.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the fields of the tree that are not in its chunks into state, from index 0.
+     * STATE_SIZE bytes are written.
+     */
+    final void saveState(ByteBuffer state) {
+        state.putInt(0, root);
+        state.putInt(4, size());
+        state.putInt(8, min);
+        state.putInt(12, max);
+        state.putInt(16, freeList());
+        state.putInt(20, nextSlot());
+        state.putInt(24, infoChunkCount);
+        state.putInt(28, currentInfoChunk);
+        state.putInt(32, infoTop);
+        for (int i = 0; i < freeBlocks.length; i++) {
+            state.putLong(64 + 8 * i, freeBlocks[i]);
+        }
+    }
+
+    /**
+     * Reads the fields written by saveState
+     */
+    private void loadState(ByteBuffer state) {
+        restoreShape(state.getInt(0), state.getInt(4), state.getInt(8), state.getInt(12), state.getInt(16), state.getInt(20));
+        infoChunkCount = state.getInt(24);
+        currentInfoChunk = state.getInt(28);
+        infoTop = state.getInt(32);
+        for (int i = 0; i < freeBlocks.length; i++) {
+            freeBlocks[i] = state.getLong(64 + 8 * i);
+        }
+    }
+
+    /**
+     * Called before length bytes at offset of a chunk of nodes are changed by anything but
+     * the setters of ranks and links, which MappedWAVLTree overrides instead so that they
+     * stay as cheap as they are here. does nothing here; MappedWAVLTree records the pages it
+     * has to write out on its next force.
+     */
+    void nodeChunkChanged(int chunk, int offset, int length) {
+    }
+
+    /**
+     * Called before length bytes at offset of a chunk of the info arena are changed, like
+     * nodeChunkChanged
+     */
+    void infoChunkChanged(int chunk, int offset, int length) {
+    }
+
+    /**
+     * Replaces a chunk of nodes by a buffer that holds the same bytes, and releases the old one
+     */
+    final void replaceNodeChunk(int index, ByteBuffer chunk) {
+        ByteBuffer old = nodeChunks[index];
+        nodeChunks[index] = chunk;
+        release(old);
+    }
+
+    /**
+     * Replaces a chunk of the info arena by a buffer that holds the same bytes, and releases
+     * the old one
+     */
+    final void replaceInfoChunk(int index, ByteBuffer chunk) {
+        ByteBuffer old = infoChunks[index];
+        infoChunks[index] = chunk;
+        release(old);
+    }
+
+    void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("the tree is closed");
+        }
+    }
+
+    /**
+     * Frees the memory of a direct buffer now instead of when it is collected, where the JVM
+     * allows it. otherwise the memory is freed when the buffer is collected.
+     */
+    private static void release(ByteBuffer buffer) {
+        if (buffer == null || INVOKE_CLEANER == null) {
+            return;
+        }
+
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // left to the garbage collector
+        }
+    }
+
+    /**
+     * @return sun.misc.Unsafe.theUnsafe, or null where the JVM doesn't allow it
+     */
+    private static Object findUnsafe() {
+        try {
+            Field theUnsafe = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return theUnsafe.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return sun.misc.Unsafe.invokeCleaner, or null where the JVM doesn't have it or doesn't
+     * allow it
+     */
+    private static Method findInvokeCleaner() {
+        if (UNSAFE == null) {
+            return null;
+        }
+
+        try {
+            return UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private ByteBuffer nodeChunk(int node) {
+        return nodeChunks[node >>> NODE_CHUNK_SHIFT];
+    }
+
+    /**
+     * Tells nodeChunkChanged that the record of node is changed
+     */
+    final void recordChanged(int node) {
+        nodeChunkChanged(node >>> NODE_CHUNK_SHIFT, offset(node), RECORD_SIZE);
+    }
+
+    /**
+     * @return the chunk of node, after telling nodeChunkChanged that its record is changed
+     */
+    private ByteBuffer changeRecord(int node) {
+        recordChanged(node);
+        return nodeChunk(node);
+    }
+
+    private static int offset(int node) {
+        return (node & NODE_CHUNK_MASK) * RECORD_SIZE;
+    }
+
+    private int key(int node) {
+        return nodeChunk(node).getInt(offset(node) + KEY);
+    }
+
+    @Override
+    final int rank(int node) {
+        return nodeChunk(node).getInt(offset(node) + RANK);
+    }
+
+    @Override
+    void setRank(int node, int rank) {
+        nodeChunk(node).putInt(offset(node) + RANK, rank);
+    }
+
+    @Override
+    final int parent(int node) {
+        return nodeChunk(node).getInt(offset(node) + PARENT);
+    }
+
+    @Override
+    void setParent(int node, int parent) {
+        nodeChunk(node).putInt(offset(node) + PARENT, parent);
+    }
+
+    @Override
+    final int left(int node) {
+        return nodeChunk(node).getInt(offset(node) + LEFT);
+    }
+
+    @Override
+    void setLeft(int node, int left) {
+        nodeChunk(node).putInt(offset(node) + LEFT, left);
+    }
+
+    @Override
+    final int right(int node) {
+        return nodeChunk(node).getInt(offset(node) + RIGHT);
+    }
+
+    @Override
+    void setRight(int node, int right) {
+        nodeChunk(node).putInt(offset(node) + RIGHT, right);
+    }
+
+    private int infoLength(int node) {
+        return nodeChunk(node).getInt(offset(node) + INFO_LENGTH);
+    }
+
+    private long infoAddress(int node) {
+        return nodeChunk(node).getLong(offset(node) + INFO_ADDRESS);
+    }
+}
@@ -0,0 +1,554 @@
+/**
+ * PersistentWAVLTree
+ *
+ * An implementation of a WAVL Tree with distinct integer keys and info, with the same
+ * contract as WAVLTree, whose versions are immutable.
+ *
+ * Nodes are never changed after they are made. insert and delete copy the nodes on the
+ * path from the root to the changed node, rebalancing the copies on the way back up, and
+ * publish the new root as the current version. Every other node is shared with the old
+ * version, so a change costs O(log n) new nodes, and snapshot() is O(1): it returns the
+ * current version, which stays the same however the tree changes afterwards.
+ *
+ * Reads of the tree and of its snapshots take no locks, and can run on any thread while
+ * the tree is changed. Changes are serialized.
+ */
+public class PersistentWAVLTree {
+    private static final Snapshot EMPTY = new Snapshot(null, 0);
+
+    private volatile Snapshot current = EMPTY;
+    private int rebalanceCount; // counts the rebalancing operations of the current change
+
+    /**
+     * public Snapshot snapshot()
+     *
+     * Returns the current version of the tree. later changes to the tree don't change it.
+     */
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    /**
+     * public boolean empty()
+     *
+     * returns true if and only if the tree is empty
+     */
+    public boolean empty() {
+        return current.empty();
+    }
+
+    /**
+     * public String search(int k)
+     *
+     * returns the info of an item with key k if it exists in the tree
+     * otherwise, returns null
+     */
+    public String search(int key) {
+        return current.search(key);
+    }
+
+    /**
+     * public int insert(int k, String i)
+     *
+     * inserts an item with key k and info i to the WAVL tree. the tree must
+     * remain valid (keep its invariants). returns the number of rebalancing
+     * operations, or 0 if no rebalancing operations were necessary. returns -1
+     * if an item with key k already exists in the tree.
+     */
+    public synchronized int insert(int key, String info) {
+        Snapshot version = current;
+        rebalanceCount = 0;
+        Node root = insert(version.root, key, info);
+        if (root == version.root) {
+            return -1;
+        }
+
+        current = new Snapshot(root, version.size + 1);
+        return rebalanceCount;
+    }
+
+    /**
+     * public int delete(int k)
+     *
+     * deletes an item with key k from the binary tree, if it is there; the tree
+     * must remain valid (keep its invariants). returns the number of
+     * rebalancing operations, or 0 if no rebalancing operations were needed.
+     * returns -1 if an item with key k was not found in the tree.
+     */
+    public synchronized int delete(int key) {
+        Snapshot version = current;
+        rebalanceCount = 0;
+        Node root = delete(version.root, key);
+        if (root == version.root) {
+            return -1;
+        }
+
+        current = new Snapshot(root, version.size - 1);
+        return rebalanceCount;
+    }
+
+    /**
+     * public String min()
+     *
+     * Returns the info of the item with the smallest key in the tree, or null
+     * if the tree is empty
+     */
+    public String min() {
+        return current.min();
+    }
+
+    /**
+     * public String max()
+     *
+     * Returns the info of the item with the largest key in the tree, or null if
+     * the tree is empty
+     */
+    public String max() {
+        return current.max();
+    }
+
+    /**
+     * public int[] keysToArray()
+     *
+     * Returns a sorted array which contains all keys in the tree, or an empty
+     * array if the tree is empty.
+     */
+    public int[] keysToArray() {
+        return current.keysToArray();
+    }
+
+    /**
+     * public String[] infoToArray()
+     *
+     * Returns an array which contains all info in the tree, sorted by their
+     * respective keys, or an empty array if the tree is empty.
+     */
+    public String[] infoToArray() {
+        return current.infoToArray();
+    }
+
+    /**
+     * public int size()
+     *
+     * Returns the number of nodes in the tree.
+     */
+    public int size() {
+        return current.size();
+    }
+
+    /**
+     * Inserts an item into a subtree.
+     *
+     * @param node - the root of the subtree, or null
+     * @return the root of the new version of the subtree, or node itself if key is already in it
+     */
+    private Node insert(Node node, int key, String info) {
+        if (node == null) {
+            return new Node(key, info, 0, null, null);
+        }
+        if (key == node.key) {
+            return node;
+        }
+
+        if (key < node.key) {
+            Node left = insert(node.left, key, info);
+            return left == node.left ? node : balanceAfterLeftInsert(node, left, node.right);
+        } else {
+            Node right = insert(node.right, key, info);
+            return right == node.right ? node : balanceAfterRightInsert(node, node.left, right);
+        }
+    }
+
+    /**
+     * Makes a copy of node with new sons, after its left subtree got an item, and rebalances it
+     * as WAVLTree does after a promote. the new left son may have the same rank as node.
+     *
+     * @return the root of the rebalanced copy
+     */
+    private Node balanceAfterLeftInsert(Node node, Node left, Node right) {
+        if (node.rank != rank(left)) {
+            return new Node(node.key, node.info, node.rank, left, right);
+        }
+
+        if (node.rank - rank(right) == 1) {
+            //a node of the form (0,1) of rank differences is promoted
+            rebalanceCount++;
+            return new Node(node.key, node.info, node.rank + 1, left, right);
+        }
+
+        // selecting between rotating right or double rotating as rotating left and then right
+        if (left.rank - rank(left.right) == 2) {
+            rebalanceCount += 2;
+            Node demoted = new Node(node.key, node.info, node.rank - 1, left.right, right);
+            return new Node(left.key, left.info, left.rank, left.left, demoted);
+        }
+
+        //double rotation then fix ranks of rotated nodes
+        rebalanceCount += 5;
+        Node b = left.right;
+        Node newLeft = new Node(left.key, left.info, left.rank - 1, left.left, b.left);
+        Node newRight = new Node(node.key, node.info, node.rank - 1, b.right, right);
+        return new Node(b.key, b.info, b.rank + 1, newLeft, newRight);
+    }
+
+    /**
+     * The mirror of balanceAfterLeftInsert, after the right subtree of node got an item.
+     */
+    private Node balanceAfterRightInsert(Node node, Node left, Node right) {
+        if (node.rank != rank(right)) {
+            return new Node(node.key, node.info, node.rank, left, right);
+        }
+
+        if (node.rank - rank(left) == 1) {
+            rebalanceCount++;
+            return new Node(node.key, node.info, node.rank + 1, left, right);
+        }
+
+        if (right.rank - rank(right.left) == 2) {
+            rebalanceCount += 2;
+            Node demoted = new Node(node.key, node.info, node.rank - 1, left, right.left);
+            return new Node(right.key, right.info, right.rank, demoted, right.right);
+        }
+
+        rebalanceCount += 5;
+        Node b = right.left;
+        Node newLeft = new Node(node.key, node.info, node.rank - 1, left, b.left);
+        Node newRight = new Node(right.key, right.info, right.rank - 1, b.right, right.right);
+        return new Node(b.key, b.info, b.rank + 1, newLeft, newRight);
+    }
+
+    /**
+     * Deletes an item from a subtree. a binary node is replaced by its successor, and a leaf
+     * or unary node by its son, as in WAVLTree.
+     *
+     * @param node - the root of the subtree, or null
+     * @return the root of the new version of the subtree, or node itself if key is not in it
+     */
+    private Node delete(Node node, int key) {
+        if (node == null) {
+            return null;
+        }
+
+        if (key < node.key) {
+            Node left = delete(node.left, key);
+            return left == node.left ? node : balanceAfterLeftDelete(node.key, node.info, node.rank, left, node.right);
+        }
+        if (key > node.key) {
+            Node right = delete(node.right, key);
+            return right == node.right ? node : balanceAfterRightDelete(node.key, node.info, node.rank, node.left, right);
+        }
+
+        if (node.left == null) {
+            return node.right;
+        }
+        if (node.right == null) {
+            return node.left;
+        }
+
+        Node successor = node.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+        Node right = deleteMinimum(node.right);
+        return balanceAfterRightDelete(successor.key, successor.info, node.rank, node.left, right);
+    }
+
+    /**
+     * @param node - the root of a subtree, assuming it is not null
+     * @return the root of the new version of the subtree, without its minimum
+     */
+    private Node deleteMinimum(Node node) {
+        if (node.left == null) {
+            return node.right;
+        }
+
+        Node left = deleteMinimum(node.left);
+        return balanceAfterLeftDelete(node.key, node.info, node.rank, left, node.right);
+    }
+
+    /**
+     * Makes a node with new sons, after its left subtree lost an item, and rebalances it as
+     * WAVLTree does after a delete. the new left son may be a 3-son, or the node may be a (2,2) leaf.
+     *
+     * @return the root of the rebalanced subtree
+     */
+    private Node balanceAfterLeftDelete(int key, String info, int rank, Node left, Node right) {
+        if (left == null && right == null && rank == 1) {
+            // a (2,2) leaf is demoted
+            rebalanceCount++;
+            return new Node(key, info, 0, null, null);
+        }
+        if (rank - rank(left) != 3) {
+            return new Node(key, info, rank, left, right);
+        }
+
+        if (rank - rank(right) == 2) {
+            // the case of (3,2), in this case we demote
+            rebalanceCount++;
+            return new Node(key, info, rank - 1, left, right);
+        }
+
+        if (right.rank - rank(right.left) == 2 && right.rank - rank(right.right) == 2) {
+            // double demote, we demote the node and it's right son
+            rebalanceCount += 2;
+            Node demoted = new Node(right.key, right.info, right.rank - 1, right.left, right.right);
+            return new Node(key, info, rank - 1, left, demoted);
+        }
+
+        if (right.rank - rank(right.right) == 1) {
+            //rotate - we rotate left the node with it's right son and fix ranks
+            rebalanceCount += 3;
+            int lowerRank = rank - 1;
+            if (left == null && right.left == null) {
+                // the lowered node is a (2,2) leaf
+                lowerRank--;
+                rebalanceCount++;
+            }
+            Node lowered = new Node(key, info, lowerRank, left, right.left);
+            return new Node(right.key, right.info, right.rank + 1, lowered, right.right);
+        }
+
+        // we double rotate and fix ranks
+        rebalanceCount += 7;
+        Node a = right.left;
+        Node newLeft = new Node(key, info, rank - 2, left, a.left);
+        Node newRight = new Node(right.key, right.info, right.rank - 1, a.right, right.right);
+        return new Node(a.key, a.info, a.rank + 2, newLeft, newRight);
+    }
+
+    /**
+     * The mirror of balanceAfterLeftDelete, after the right subtree of a node lost an item.
+     */
+    private Node balanceAfterRightDelete(int key, String info, int rank, Node left, Node right) {
+        if (left == null && right == null && rank == 1) {
+            rebalanceCount++;
+            return new Node(key, info, 0, null, null);
+        }
+        if (rank - rank(right) != 3) {
+            return new Node(key, info, rank, left, right);
+        }
+
+        if (rank - rank(left) == 2) {
+            rebalanceCount++;
+            return new Node(key, info, rank - 1, left, right);
+        }
+
+        if (left.rank - rank(left.left) == 2 && left.rank - rank(left.right) == 2) {
+            rebalanceCount += 2;
+            Node demoted = new Node(left.key, left.info, left.rank - 1, left.left, left.right);
+            return new Node(key, info, rank - 1, demoted, right);
+        }
+
+        if (left.rank - rank(left.left) == 1) {
+            rebalanceCount += 3;
+            int lowerRank = rank - 1;
+            if (right == null && left.right == null) {
+                lowerRank--;
+                rebalanceCount++;
+            }
+            Node lowered = new Node(key, info, lowerRank, left.right, right);
+            return new Node(left.key, left.info, left.rank + 1, left.left, lowered);
+        }
+
+        rebalanceCount += 7;
+        Node a = left.right;
+        Node newLeft = new Node(left.key, left.info, left.rank - 1, left.left, a.left);
+        Node newRight = new Node(key, info, rank - 2, a.right, right);
+        return new Node(a.key, a.info, a.rank + 2, newLeft, newRight);
+    }
+
+    /**
+     * @return the rank of node, -1 for a missing node
+     */
+    private static int rank(Node node) {
+        return node == null ? -1 : node.rank;
+    }
+
+    /**
+     * public static class Snapshot
+     *
+     * An immutable version of the tree. it can be read from any number of threads without locks.
+     */
+    public static class Snapshot {
+        private final Node root;
+        private final int size;
+
+        private Snapshot(Node root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        /**
+         * returns true if and only if the snapshot is empty
+         */
+        public boolean empty() {
+            return size == 0;
+        }
+
+        /**
+         * Returns the number of items in the snapshot
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * returns the info of the item with key k in the snapshot, or null if there is none
+         */
+        public String search(int key) {
+            Node node = root;
+            while (node != null) {
+                if (node.key == key) {
+                    return node.info;
+                }
+                node = node.key > key ? node.left : node.right;
+            }
+            return null;
+        }
+
+        /**
+         * Returns the info of the item with the smallest key in the snapshot, or null if it is empty
+         */
+        public String min() {
+            Node node = root;
+            if (node == null) {
+                return null;
+            }
+            while (node.left != null) {
+                node = node.left;
+            }
+            return node.info;
+        }
+
+        /**
+         * Returns the info of the item with the largest key in the snapshot, or null if it is empty
+         */
+        public String max() {
+            Node node = root;
+            if (node == null) {
+                return null;
+            }
+            while (node.right != null) {
+                node = node.right;
+            }
+            return node.info;
+        }
+
+        /**
+         * Returns a sorted array which contains all keys in the snapshot
+         */
+        public int[] keysToArray() {
+            final int[] keys = new int[size];
+            forEach(new WAVLTree.IntObjConsumer() {
+                private int index;
+
+                public void accept(int key, String info) {
+                    keys[index++] = key;
+                }
+            });
+            return keys;
+        }
+
+        /**
+         * Returns an array which contains all info in the snapshot, sorted by their respective keys
+         */
+        public String[] infoToArray() {
+            final String[] infos = new String[size];
+            forEach(new WAVLTree.IntObjConsumer() {
+                private int index;
+
+                public void accept(int key, String info) {
+                    infos[index++] = info;
+                }
+            });
+            return infos;
+        }
+
+        /**
+         * Passes the key and info of every item in the snapshot to consumer, in ascending order of keys
+         */
+        public void forEach(WAVLTree.IntObjConsumer consumer) {
+            forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, consumer);
+        }
+
+        /**
+         * Passes the key and info of every item whose key is between lo and hi, inclusive, to
+         * consumer in ascending order of keys
+         */
+        public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer consumer) {
+            forEachInRange(root, lo, hi, consumer);
+        }
+
+        private static void forEachInRange(Node node, int lo, int hi, WAVLTree.IntObjConsumer consumer) {
+            if (node == null) {
+                return;
+            }
+
+            if (node.key > lo) {
+                forEachInRange(node.left, lo, hi, consumer);
+            }
+            if (lo <= node.key && node.key <= hi) {
+                consumer.accept(node.key, node.info);
+            }
+            if (node.key < hi) {
+                forEachInRange(node.right, lo, hi, consumer);
+            }
+        }
+
+        /**
+         * Checks the rules of the WAVL tree in the snapshot: the rank differences of 1 or 2,
+         * the rank 0 of the leaves, the order of the keys and the size. for the testers.
+         * throws IllegalStateException at the first broken rule.
+         */
+        void checkInvariants() {
+            if (checkSubtree(root, Integer.MIN_VALUE - 1L, Integer.MAX_VALUE + 1L) != size) {
+                throw new IllegalStateException("the size of the snapshot doesn't match its nodes");
+            }
+        }
+
+        /**
+         * @param low  - the keys of the subtree must be greater than low
+         * @param high - and smaller than high
+         * @return the number of nodes in the subtree of node, after checking it
+         */
+        private static int checkSubtree(Node node, long low, long high) {
+            if (node == null) {
+                return 0;
+            }
+
+            int leftDifference = node.rank - rank(node.left);
+            int rightDifference = node.rank - rank(node.right);
+            if (leftDifference < 1 || leftDifference > 2 || rightDifference < 1 || rightDifference > 2) {
+                throw new IllegalStateException("key " + node.key + " has rank differences " + leftDifference + ", " + rightDifference);
+            }
+            if (node.left == null && node.right == null && node.rank != 0) {
+                throw new IllegalStateException("leaf " + node.key + " has rank " + node.rank);
+            }
+            if (node.key <= low || node.key >= high) {
+                throw new IllegalStateException("key " + node.key + " is out of the order of the keys");
+            }
+            return checkSubtree(node.left, low, node.key) + 1 + checkSubtree(node.right, node.key, high);
+        }
+    }
+
+    /**
+     * private static class Node
+     *
+     * an immutable node of the tree. missing sons are null, and have rank -1.
+     */
+    private static class Node {
+        final int key;
+        final String info;
+        final int rank;
+        final Node left;
+        final Node right;
+
+        Node(int key, String info, int rank, Node left, Node right) {
+            this.key = key;
+            this.info = info;
+            this.rank = rank;
+            this.left = left;
+            this.right = right;
+        }
+    }
+}
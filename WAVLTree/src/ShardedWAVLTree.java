@@ -0,0 +1,510 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+/**
+ * ShardedWAVLTree
+ *
+ * A thread safe sorted map with distinct integer keys and info, with the same contract as
+ * WAVLTree, built for write throughput on many cores.
+ *
+ * The key space is split into ranges, and the items of every range are kept in a WAVLTree of
+ * their own, a shard, behind a lock of its own, so writers to different shards never wait for
+ * each other. insert, search and delete find the shard of their key by a binary search over the
+ * lower bounds of the ranges, and lock only it. Ordered reads walk the shards in order of their
+ * ranges, reading every shard under its read lock, so every shard is read at one point in time
+ * but the shards are not read at the same one.
+ *
+ * A shard is split in two at its median key when it grows over maxShardSize items, or when it
+ * is hot: when it takes more than twice its fair share of the writes, its share being one in
+ * the current number of shards. Splitting moves no items, the shard's tree is split in
+ * O(log n), and the new ranges are published in a new routing table while the old shard is
+ * still locked, so a thread that waited for it finds it retired and routes its key again.
+ *
+ * A shard that is cold, taking less than half its fair share of the writes, or that is
+ * emptied by a delete, is merged with a neighbour that is cold too when both hold at most
+ * maxShardSize / 2 items together, so the shards left behind by a moving hot range are folded
+ * back. a cold shard takes too few writes to finish its windows often, so the shards emptied
+ * by deletes don't wait for them. the trees
+ * are joined in O(log n) and the merged shard is published the same way under the locks of
+ * both. the neighbour's lock is only tried, so two shards merging towards each other never
+ * wait for each other, and the merge is left to a later window instead.
+ */
+public class ShardedWAVLTree {
+    private static final int DEFAULT_MAX_SHARD_SIZE = 1 << 20;
+    private static final int MIN_SPLIT_SIZE = 1 << 10; // smaller shards aren't split even when they are hot
+    private static final int MAX_SHARDS = 1 << 12;
+    private static final int HOT_WINDOW = 1 << 14; // a shard checks whether it is hot once in this many writes
+
+    private final int maxShardSize;
+    private final LongAdder writes = new LongAdder(); // the writes to all the shards, which hotness is measured against
+    private volatile Table table;
+
+    /**
+     * Creates an empty tree whose key space is split evenly into a shard for every processor
+     */
+    public ShardedWAVLTree() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_SHARD_SIZE);
+    }
+
+    /**
+     * Creates an empty tree whose key space is split evenly into shardCount shards, which are
+     * split again when they grow over maxShardSize items or when they become hot.
+     * throws IllegalArgumentException if shardCount isn't positive or maxShardSize is too small
+     * to split.
+     */
+    public ShardedWAVLTree(int shardCount, int maxShardSize) {
+        if (shardCount < 1 || shardCount > MAX_SHARDS) {
+            throw new IllegalArgumentException("shardCount: " + shardCount + " is not between 1 and " + MAX_SHARDS);
+        }
+        if (maxShardSize < MIN_SPLIT_SIZE) {
+            throw new IllegalArgumentException("maxShardSize: " + maxShardSize + " is smaller than " + MIN_SPLIT_SIZE);
+        }
+
+        this.maxShardSize = maxShardSize;
+        int[] lowers = new int[shardCount];
+        Shard[] shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            lowers[i] = (int) (Integer.MIN_VALUE + (1L << 32) * i / shardCount);
+        }
+        for (int i = 0; i < shardCount; i++) {
+            long upper = i + 1 < shardCount ? lowers[i + 1] : Integer.MAX_VALUE + 1L;
+            shards[i] = new Shard(new WAVLTree(), lowers[i], upper, 0);
+        }
+        table = new Table(lowers, shards);
+    }
+
+    /**
+     * public boolean empty()
+     *
+     * returns true if and only if the tree is empty
+     */
+    public boolean empty() {
+        return size() == 0;
+    }
+
+    /**
+     * public String search(int k)
+     *
+     * returns the info of an item with key k if it exists in the tree
+     * otherwise, returns null
+     */
+    public String search(int key) {
+        while (true) {
+            Shard shard = route(key);
+            long stamp = shard.lock.readLock();
+            try {
+                if (!shard.retired) {
+                    return shard.tree.search(key);
+                }
+            } finally {
+                shard.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * public int insert(int k, String i)
+     *
+     * inserts an item with key k and info i to the tree. returns the number of rebalancing
+     * operations of its shard, or 0 if no rebalancing operations were necessary. returns -1
+     * if an item with key k already exists in the tree.
+     */
+    public int insert(int key, String info) {
+        while (true) {
+            Shard shard = route(key);
+            long stamp = shard.lock.writeLock();
+            try {
+                if (!shard.retired) {
+                    int rebalanceCount = shard.tree.insert(key, info);
+                    if (rebalanceCount != -1) {
+                        afterWrite(shard);
+                    }
+                    return rebalanceCount;
+                }
+            } finally {
+                shard.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * public int delete(int k)
+     *
+     * deletes an item with key k from the tree, if it is there. returns the number of
+     * rebalancing operations of its shard, or 0 if no rebalancing operations were needed.
+     * returns -1 if an item with key k was not found in the tree.
+     */
+    public int delete(int key) {
+        while (true) {
+            Shard shard = route(key);
+            long stamp = shard.lock.writeLock();
+            try {
+                if (!shard.retired) {
+                    int rebalanceCount = shard.tree.delete(key);
+                    if (rebalanceCount != -1) {
+                        afterWrite(shard);
+                    }
+                    return rebalanceCount;
+                }
+            } finally {
+                shard.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer consumer)
+     *
+     * Passes the key and info of every item whose key is between lo and hi, inclusive, to
+     * consumer in ascending order of keys, one shard at a time under its read lock. the tree
+     * must not be modified by consumer.
+     */
+    public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer consumer) {
+        long from = lo;
+        while (from <= hi) {
+            Shard shard = route((int) from);
+            long stamp = shard.lock.readLock();
+            try {
+                if (!shard.retired) {
+                    shard.tree.forEachInRange((int) from, (int) Math.min(hi, shard.upper - 1), consumer);
+                    from = shard.upper;
+                }
+            } finally {
+                shard.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * public int[] keysToArray()
+     *
+     * Returns a sorted array which contains all keys in the tree, or an empty
+     * array if the tree is empty.
+     */
+    public int[] keysToArray() {
+        List<int[]> parts = readShards(WAVLTree::keysToArray);
+        int length = 0;
+        for (int[] part : parts) {
+            length += part.length;
+        }
+
+        int[] array = new int[length];
+        int index = 0;
+        for (int[] part : parts) {
+            System.arraycopy(part, 0, array, index, part.length);
+            index += part.length;
+        }
+        return array;
+    }
+
+    /**
+     * public String[] infoToArray()
+     *
+     * Returns an array which contains all info in the tree, sorted by their
+     * respective keys, or an empty array if the tree is empty.
+     */
+    public String[] infoToArray() {
+        List<String[]> parts = readShards(WAVLTree::infoToArray);
+        int length = 0;
+        for (String[] part : parts) {
+            length += part.length;
+        }
+
+        String[] array = new String[length];
+        int index = 0;
+        for (String[] part : parts) {
+            System.arraycopy(part, 0, array, index, part.length);
+            index += part.length;
+        }
+        return array;
+    }
+
+    /**
+     * public int size()
+     *
+     * Returns the number of items in the tree.
+     */
+    public int size() {
+        int size = 0;
+        for (int shardSize : readShards(WAVLTree::size)) {
+            size += shardSize;
+        }
+        return size;
+    }
+
+    /**
+     * public int shardCount()
+     *
+     * Returns the number of shards the key space is split into now.
+     */
+    public int shardCount() {
+        return table.shards.length;
+    }
+
+    /**
+     * Checks that the ranges of the shards cover the key space one after another, that every
+     * shard holds only keys of its range, and the rules of the WAVL tree of every shard, one
+     * shard at a time under its read lock, while no thread changes the tree. for the testers.
+     * throws IllegalStateException at the first broken rule.
+     */
+    void checkInvariants() {
+        Table current = table;
+        long expectedLower = Integer.MIN_VALUE;
+        for (int i = 0; i < current.shards.length; i++) {
+            Shard shard = current.shards[i];
+            if (current.lowers[i] != shard.lower || shard.lower != expectedLower || shard.upper <= shard.lower) {
+                throw new IllegalStateException("shard " + i + " doesn't start where shard " + (i - 1) + " ends");
+            }
+            expectedLower = shard.upper;
+
+            long stamp = shard.lock.readLock();
+            try {
+                shard.tree.checkInvariants();
+                if (!shard.tree.empty() && (shard.tree.peekMinKey() < shard.lower || shard.tree.peekMaxKey() >= shard.upper)) {
+                    throw new IllegalStateException("shard " + i + " holds keys out of its range");
+                }
+            } finally {
+                shard.lock.unlockRead(stamp);
+            }
+        }
+        if (expectedLower != Integer.MAX_VALUE + 1L) {
+            throw new IllegalStateException("the shards don't cover the key space");
+        }
+    }
+
+    /**
+     * Reads every shard in ascending order of ranges, each under its read lock
+     *
+     * @param reader - reads a shard's tree, which it must not modify
+     * @return the results of reader, in the order of the shards
+     */
+    private <T> List<T> readShards(Function<WAVLTree, T> reader) {
+        List<T> results = new ArrayList<>();
+        long from = Integer.MIN_VALUE;
+        while (from <= Integer.MAX_VALUE) {
+            Shard shard = route((int) from);
+            long stamp = shard.lock.readLock();
+            try {
+                if (!shard.retired) {
+                    results.add(reader.apply(shard.tree));
+                    from = shard.upper;
+                }
+            } finally {
+                shard.lock.unlockRead(stamp);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the shard whose range holds key in the current routing table. it may be retired
+     * by the time it is locked, and then key has to be routed again.
+     */
+    private Shard route(int key) {
+        Table current = table;
+        int[] lowers = current.lowers;
+        // the last shard whose lower bound is at most key, the first one's is Integer.MIN_VALUE
+        int low = 0;
+        int high = lowers.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (lowers[middle] <= key) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return current.shards[low];
+    }
+
+    /**
+     * Counts a write to a shard and splits the shard if it is oversized or hot, or merges it
+     * with a cold neighbour if it is cold or empty. assuming the write lock of shard is held.
+     */
+    private void afterWrite(Shard shard) {
+        writes.increment();
+        boolean oversized = shard.tree.size() > maxShardSize;
+        if (++shard.windowWrites < HOT_WINDOW && !oversized && !shard.tree.empty()) {
+            return;
+        }
+
+        boolean hot = false;
+        boolean cold = false;
+        int shardCount = table.shards.length;
+        if (shard.windowWrites >= HOT_WINDOW) {
+            // the shard took HOT_WINDOW of the writes done since its window started
+            long total = writes.sum();
+            hot = isHot(HOT_WINDOW, total - shard.windowStart, shardCount);
+            cold = isCold(HOT_WINDOW, total - shard.windowStart, shardCount);
+            shard.windowWrites = 0;
+            shard.windowStart = total;
+        }
+
+        if ((oversized || hot) && shard.tree.size() >= MIN_SPLIT_SIZE && shardCount < MAX_SHARDS) {
+            split(shard);
+        } else if ((cold || shard.tree.empty()) && shardCount > 1) {
+            mergeWithNeighbour(shard);
+        }
+    }
+
+    /**
+     * @return whether a shard that took shardWrites of totalWrites writes took more than twice
+     * its share of them
+     */
+    private static boolean isHot(long shardWrites, long totalWrites, int shardCount) {
+        return shardWrites * shardCount > 2 * totalWrites;
+    }
+
+    /**
+     * @return whether a shard that took shardWrites of totalWrites writes took less than half
+     * its share of them
+     */
+    private static boolean isCold(long shardWrites, long totalWrites, int shardCount) {
+        return 2 * shardWrites * shardCount < totalWrites;
+    }
+
+    /**
+     * Splits a shard into two at its median key, publishes them in a new routing table, and
+     * retires the shard. assuming the write lock of shard is held.
+     */
+    private void split(Shard shard) {
+        WAVLTree tree = shard.tree;
+        int middleKey = tree.select(tree.size() / 2);
+        WAVLTree[] parts = tree.split(middleKey);
+        long windowStart = writes.sum();
+        Shard lower = new Shard(parts[0], shard.lower, middleKey, windowStart);
+        Shard upper = new Shard(parts[1], middleKey, shard.upper, windowStart);
+
+        // other shards may be split or merged at the same time, so the table is replaced under the monitor
+        synchronized (this) {
+            Table current = table;
+            int index = 0;
+            while (current.shards[index] != shard) {
+                index++;
+            }
+
+            int length = current.shards.length;
+            int[] lowers = new int[length + 1];
+            Shard[] shards = new Shard[length + 1];
+            System.arraycopy(current.lowers, 0, lowers, 0, index);
+            System.arraycopy(current.shards, 0, shards, 0, index);
+            lowers[index] = lower.lower;
+            shards[index] = lower;
+            lowers[index + 1] = upper.lower;
+            shards[index + 1] = upper;
+            System.arraycopy(current.lowers, index + 1, lowers, index + 2, length - index - 1);
+            System.arraycopy(current.shards, index + 1, shards, index + 2, length - index - 1);
+            table = new Table(lowers, shards);
+        }
+        shard.retired = true;
+    }
+
+    /**
+     * Merges a cold shard with its lower or its upper neighbour, the first one that is cold
+     * too, is not locked by another thread, and holds few enough items, publishes the merged
+     * shard in a new routing table, and retires both. assuming the write lock of shard is
+     * held.
+     */
+    private void mergeWithNeighbour(Shard shard) {
+        Table current = table;
+        int index = 0;
+        while (current.shards[index] != shard) {
+            index++;
+        }
+
+        long total = writes.sum();
+        for (int neighbourIndex = index - 1; neighbourIndex <= index + 1; neighbourIndex += 2) {
+            if (neighbourIndex < 0 || neighbourIndex == current.shards.length) {
+                continue;
+            }
+
+            Shard neighbour = current.shards[neighbourIndex];
+            long stamp = neighbour.lock.tryWriteLock();
+            if (stamp == 0) {
+                continue;
+            }
+            try {
+                // the ranges of live shards don't change, so a live neighbour is still adjacent
+                if (!neighbour.retired
+                        && shard.tree.size() + neighbour.tree.size() <= maxShardSize / 2
+                        && isCold(neighbour.windowWrites, total - neighbour.windowStart, current.shards.length)) {
+                    merge(neighbourIndex < index ? neighbour : shard, neighbourIndex < index ? shard : neighbour);
+                    return;
+                }
+            } finally {
+                neighbour.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Merges two adjacent shards into one, publishes it in a new routing table, and retires
+     * both. assuming the write locks of both are held.
+     */
+    private void merge(Shard lower, Shard upper) {
+        WAVLTree tree = WAVLTree.join(lower.tree, upper.tree);
+        Shard merged = new Shard(tree, lower.lower, upper.upper, writes.sum());
+
+        // other shards may be split or merged at the same time, so the table is replaced under the monitor
+        synchronized (this) {
+            Table current = table;
+            int index = 0;
+            while (current.shards[index] != lower) {
+                index++;
+            }
+
+            int length = current.shards.length;
+            int[] lowers = new int[length - 1];
+            Shard[] shards = new Shard[length - 1];
+            System.arraycopy(current.lowers, 0, lowers, 0, index);
+            System.arraycopy(current.shards, 0, shards, 0, index);
+            lowers[index] = merged.lower;
+            shards[index] = merged;
+            System.arraycopy(current.lowers, index + 2, lowers, index + 1, length - index - 2);
+            System.arraycopy(current.shards, index + 2, shards, index + 1, length - index - 2);
+            table = new Table(lowers, shards);
+        }
+        lower.retired = true;
+        upper.retired = true;
+    }
+
+    /**
+     * private static class Table
+     *
+     * the ranges of the shards, which is replaced as a whole whenever a shard is split or merged
+     */
+    private static class Table {
+        final int[] lowers; // the lower bound of the range of every shard, in ascending order
+        final Shard[] shards;
+
+        Table(int[] lowers, Shard[] shards) {
+            this.lowers = lowers;
+            this.shards = shards;
+        }
+    }
+
+    /**
+     * private static class Shard
+     *
+     * the items of a range of keys [lower, upper), and the lock that guards them
+     */
+    private static class Shard {
+        final StampedLock lock = new StampedLock();
+        final WAVLTree tree;
+        final int lower;
+        final long upper; // exclusive, Integer.MAX_VALUE + 1 for the last shard
+        boolean retired; // the shard was split or merged and its items moved to new shards, guarded by lock
+        int windowWrites; // the writes since the window started, guarded by lock
+        long windowStart; // the writes to all the shards when the window started, guarded by lock
+
+        Shard(WAVLTree tree, int lower, long upper, long windowStart) {
+            this.tree = tree;
+            this.lower = lower;
+            this.upper = upper;
+            this.windowStart = windowStart;
+        }
+    }
+}
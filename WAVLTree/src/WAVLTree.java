@@ -1,3 +1,26 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  *  Made By:
  *  tamirdennis - 208538702
@@ -14,7 +37,147 @@ public class WAVLTree {
     private int size;
     private WAVLNode min;
     private WAVLNode max;
-    private final WAVLNode external = new WAVLNode();
+    private WAVLNode finger; // the node the last finger operation reached, or null
+    private int joinRebalanceCount; // the rebalancing operations done by joinSubtrees since it was last reset
+    private WAVLTreeMetrics metrics; // the counters the operations report to, or null
+    private Augmentation<Object> augmentation; // the monoid every node keeps the aggregate of its subtree in, or null
+    private WAVLTreeLog log; // the write-ahead log the changes are appended to, or null
+    private boolean relaxed; // whether deletes leave the ranks as they are, see setRelaxed
+    private int relaxedDeletes; // the deletes that left the ranks as they were since the tree was last rebuilt
+    private static final WAVLNode EXTERNAL = new WAVLNode(); // the external leaf shared by all the trees
+    private static final byte[] SNAPSHOT_MAGIC = {'W', 'A', 'V', 'L'};
+    private static final byte SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_BUFFER_SIZE = 1 << 16;
+    private static final int PARALLEL_THRESHOLD = 1 << 13; // subtrees smaller than this are walked by one task
+
+    /**
+     * public static WAVLTree fromSorted(int[] keys, String[] infos)
+     *
+     * returns a new WAVL tree holding the items with key keys[i] and info infos[i],
+     * built in linear time. keys must be strictly increasing, and infos must have
+     * the same length as keys. this is the inverse of keysToArray() and infoToArray().
+     */
+    public static WAVLTree fromSorted(int[] keys, String[] infos) {
+        if (keys.length != infos.length) {
+            throw new IllegalArgumentException("keys and infos must have the same length");
+        }
+        for (int i = 1; i < keys.length; i++) {
+            if (keys[i - 1] >= keys[i]) {
+                throw new IllegalArgumentException("keys must be strictly increasing");
+            }
+        }
+
+        WAVLTree tree = new WAVLTree();
+        if (keys.length == 0) {
+            return tree;
+        }
+
+        tree.root = tree.buildSubtree(keys, infos, 0, keys.length - 1, null);
+        tree.min = tree.minimumNode(tree.root);
+        tree.max = tree.maximumNode(tree.root);
+        tree.size = keys.length;
+        return tree;
+    }
+
+    /**
+     * Builds a perfectly balanced subtree out of a range of sorted items. the ranks of the
+     * subtree are the heights of its nodes, and since the heights of the sons of a node
+     * differ by at most one, every rank difference is 1 or 2.
+     *
+     * @param from   - the index of the first item of the subtree
+     * @param to     - the index of the last item of the subtree
+     * @param parent - the parent of the subtree's root
+     * @return the root of the subtree, or the external node if the range is empty
+     */
+    private WAVLNode buildSubtree(int[] keys, String[] infos, int from, int to, WAVLNode parent) {
+        if (from > to) {
+            return EXTERNAL;
+        }
+
+        int middle = (from + to) >>> 1;
+        WAVLNode node = new WAVLNode(keys[middle], infos[middle], parent);
+        node.left = buildSubtree(keys, infos, from, middle - 1, node);
+        node.right = buildSubtree(keys, infos, middle + 1, to, node);
+        linkBetween(node.left, node, node.right);
+        node.rank = Math.max(node.left.rank, node.right.rank) + 1;
+        updateSubtree(node);
+        return node;
+    }
+
+    /**
+     * public void writeTo(OutputStream out)
+     *
+     * writes a snapshot of the tree to out, which readFrom reads back into an equal tree.
+     * the snapshot holds the number of items, then the items in ascending order of keys:
+     * every key as a varint of its distance from the previous key, and every info as a varint
+     * of its length in UTF-8 followed by its bytes. the items are written as the tree is
+     * walked, through a buffer of fixed size. out is not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        SnapshotOutput output = new SnapshotOutput(out);
+        output.writeHeader(size);
+        for (WAVLNode node = min; node != null; node = findSuccessor(node)) {
+            output.writeItem(node.key, node.info);
+        }
+        output.flush();
+    }
+
+    /**
+     * public void writeTo(WritableByteChannel channel)
+     *
+     * writes a snapshot of the tree to channel, as writeTo(OutputStream). channel is not closed.
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        writeTo(Channels.newOutputStream(channel));
+    }
+
+    /**
+     * public static WAVLTree readFrom(InputStream in)
+     *
+     * reads a snapshot written by writeTo into a new tree. the items are built into a
+     * balanced tree in linear time as they are read, so besides the tree itself reading
+     * takes memory of a fixed buffer and a recursion of logarithmic depth.
+     * throws IOException if the snapshot can't be read or is not valid.
+     */
+    public static WAVLTree readFrom(InputStream in) throws IOException {
+        SnapshotInput input = new SnapshotInput(in);
+        int count = input.readHeader();
+        WAVLTree tree = new WAVLTree();
+        tree.setRoot(tree.readSubtree(input, count, null));
+        return tree;
+    }
+
+    /**
+     * public static WAVLTree readFrom(ReadableByteChannel channel)
+     *
+     * reads a snapshot written by writeTo from channel, as readFrom(InputStream).
+     */
+    public static WAVLTree readFrom(ReadableByteChannel channel) throws IOException {
+        return readFrom(Channels.newInputStream(channel));
+    }
+
+    /**
+     * Builds a perfectly balanced subtree out of the next count items of a snapshot, like
+     * buildSubtree: the left subtree is read first, then the root, then the right subtree.
+     *
+     * @return the root of the subtree, or the external node if count is 0
+     */
+    private WAVLNode readSubtree(SnapshotInput input, int count, WAVLNode parent) throws IOException {
+        if (count == 0) {
+            return EXTERNAL;
+        }
+
+        int leftCount = (count - 1) >>> 1;
+        WAVLNode left = readSubtree(input, leftCount, null);
+        WAVLNode node = new WAVLNode(input.readKey(), input.readInfo(), parent);
+        node.left = left;
+        left.setParent(node);
+        node.right = readSubtree(input, count - 1 - leftCount, node);
+        linkBetween(node.left, node, node.right);
+        node.rank = Math.max(node.left.rank, node.right.rank) + 1;
+        updateSubtree(node);
+        return node;
+    }
 
     /**
      * public boolean empty()
@@ -32,12 +195,16 @@ public class WAVLTree {
      * otherwise, returns null
      */
     public String search(int key) {
+        if (metrics != null) {
+            metrics.begin();
+        }
         WAVLNode nearestNode = findNearestNode(key);
-        if (nearestNode == null || nearestNode.key != key) {
-            return null;
+        boolean found = nearestNode != null && nearestNode.key == key;
+        if (metrics != null) {
+            metrics.end(WAVLTreeMetrics.Operation.SEARCH, key, found ? 1 : 0);
         }
 
-        return nearestNode.info;
+        return found ? nearestNode.info : null;
     }
 
     /**
@@ -49,45 +216,90 @@ public class WAVLTree {
      * if an item with key k already exists in the tree.
      */
     public int insert(int key, String info) {
+        if (metrics == null) {
+            return insertItem(key, info);
+        }
+
+        metrics.begin();
+        int rebalanceCount = insertItem(key, info);
+        metrics.end(WAVLTreeMetrics.Operation.INSERT, key, rebalanceCount);
+        return rebalanceCount;
+    }
+
+    /**
+     * Inserts an item, as insert does without its metrics
+     */
+    private int insertItem(int key, String info) {
         if (empty()) {
+            long sequence = log == null ? 0 : log.appendInsert(key, info);
             root = new WAVLNode(key, info, null);
+            updateSubtree(root);
             min = root;
             max = root;
             size = 1;
+            if (log != null) {
+                log.finishChange(sequence);
+            }
             return 0;
         }
 
         //find the parent node of the new node
-        WAVLNode parentNode = findNearestNode(key);
+        return insertBelow(findNearestNode(key), key, info);
+    }
+
+    /**
+     * Inserts an item as a son of its insertion point and rebalances the tree.
+     *
+     * @param parentNode - the result of findNearestNode for key
+     * @return the number of rebalancing operations, or -1 if parentNode has key
+     */
+    private int insertBelow(WAVLNode parentNode, int key, String info) {
         if (parentNode.key == key) {
             return -1;
         }
 
+        long sequence = log == null ? 0 : log.appendInsert(key, info);
         int rebalanceCount = 0;
         WAVLNode newNode = new WAVLNode(key, info, parentNode);
-        boolean isParentALeaf = parentNode.isLeafNode();
+        updateSubtree(newNode);
+        // only a node of rank 0 gets the rank of the new leaf. in a WAVL tree these are the leaves,
+        // while a leaf left by relaxed deletes may have a higher rank, which leaves room for the new leaf
+        boolean isParentRankZero = parentNode.rank == 0;
 
         newNode.parent = parentNode;
+        // the insertion point is the neighbour of the new node in the order of keys
         if (parentNode.key > key) {
             parentNode.left = newNode;
+            link(parentNode.prev, newNode);
+            link(newNode, parentNode);
         } else {
             parentNode.right = newNode;
+            link(newNode, parentNode.next);
+            link(parentNode, newNode);
         }
 
+        updateSubtreeSizes(parentNode);
+
         //update max and min if necessary
         if (newNode.key < min.key)
             min = newNode;
         if (newNode.key > max.key)
             max = newNode;
 
-        //if parent was a leaf than it needs to be promoted, otherwise tree is  already balanced
-        if (isParentALeaf) {
+        //if parent had rank 0 than it needs to be promoted, otherwise tree is  already balanced
+        if (isParentRankZero) {
             parentNode.promote();
             rebalanceCount++;
+            if (metrics != null) {
+                metrics.insertPromotions++;
+            }
             rebalanceCount = rebalanceInsert(parentNode, rebalanceCount);
         }
 
         size++;
+        if (log != null) {
+            log.finishChange(sequence);
+        }
         return rebalanceCount;
     }
 
@@ -96,22 +308,41 @@ public class WAVLTree {
      * returns the number of rebalancing operations that was necessary
      */
     private int rebalanceInsert(WAVLNode node, int rebalanceCount) {
-        if (node.rankDifference() == -1 || node.rankDifference() == 1)
-            return rebalanceCount;
-        else {
+        // every promote moves the violation one level up, and every rotation ends the rebalancing.
+        // the rank differences a relaxed tree has above 2 are handled as the differences of 2
+        while (node.rankDifference() == 0) {
             WAVLNode parent = node.parent;
-            //here node.rankDifference() = 0 and parent is not null
             if (parent.leftChildRankDifference() == 1 || parent.rightChildRankDifference() == 1) {
                 //rebalance a node of the form (1,0) or (0,1) of rank differences
                 parent.promote();
                 rebalanceCount++;
-                rebalanceCount = rebalanceInsert(parent, rebalanceCount);
+                if (metrics != null) {
+                    metrics.insertPromotions++;
+                }
+                node = parent;
+            } else if (node.leftChildRankDifference() == 1 && node.rightChildRankDifference() == 1) {
+                // a (1,1) node with a rank difference of 0 is only left by a join, never by an insert.
+                // rotating it above its parent leaves it with a rank difference of 0 from its parent,
+                // so it is promoted and we move up the tree
+                if (node.isARightChild()) {
+                    rotateLeft(parent);
+                } else {
+                    rotateRight(parent);
+                }
+                node.promote();
+                rebalanceCount += 2;
+                if (metrics != null) {
+                    metrics.insertRotations++;
+                }
             } else if (node.isARightChild()) {
                 // selecting between rotating left or double rotating as rotating right and then left
-                if (node.leftChildRankDifference() == 2) {
+                if (node.leftChildRankDifference() != 1) {
                     parent.demote();
                     rotateLeft(parent);
                     rebalanceCount += 2;
+                    if (metrics != null) {
+                        metrics.insertRotations++;
+                    }
                 } else {
                     //double rotation then fix ranks of rotated nodes
                     WAVLNode b = node.left;
@@ -120,13 +351,20 @@ public class WAVLTree {
                     parent.demote();
                     b.promote();
                     rebalanceCount += 5;
+                    if (metrics != null) {
+                        metrics.insertDoubleRotations++;
+                    }
                 }
+                return rebalanceCount;
             } else {
                 // selecting between rotating right or double rotating as rotating left and then right
-                if (node.rightChildRankDifference() == 2) {
+                if (node.rightChildRankDifference() != 1) {
                     parent.demote();
                     rotateRight(parent);
                     rebalanceCount += 2;
+                    if (metrics != null) {
+                        metrics.insertRotations++;
+                    }
                 } else {
                     //double rotation then fix ranks of rotated nodes
                     WAVLNode b = node.right;
@@ -135,11 +373,15 @@ public class WAVLTree {
                     parent.demote();
                     b.promote();
                     rebalanceCount += 5;
+                    if (metrics != null) {
+                        metrics.insertDoubleRotations++;
+                    }
                 }
+                return rebalanceCount;
             }
-
-            return rebalanceCount;
         }
+
+        return rebalanceCount;
     }
 
     /**
@@ -151,37 +393,329 @@ public class WAVLTree {
      * returns -1 if an item with key k was not found in the tree.
      */
     public int delete(int key) {
+        if (metrics != null) {
+            metrics.begin();
+        }
         WAVLNode deletedNode = findNearestNode(key);
-        if (deletedNode == null || deletedNode.key != key) {
-            return -1;
+        int rebalanceCount = deletedNode == null || deletedNode.key != key ? -1 : deleteNode(deletedNode);
+        if (metrics != null) {
+            metrics.end(WAVLTreeMetrics.Operation.DELETE, key, rebalanceCount);
+        }
+
+        return rebalanceCount;
+    }
+
+    /**
+     * public String fingerSearch(int k)
+     *
+     * like search, but the search starts from the node the previous finger operation
+     * reached, and climbs from it only as far as the place of k, instead of descending
+     * from the root. for keys that arrive close to each other, like timestamps, this takes
+     * time about logarithmic in the distance from the previous key rather than in the size
+     * of the tree.
+     */
+    public String fingerSearch(int key) {
+        if (metrics != null) {
+            metrics.begin();
+        }
+        WAVLNode node = empty() ? null : findNearestNodeFromFinger(key);
+        boolean found = node != null && node.key == key;
+        if (metrics != null) {
+            metrics.end(WAVLTreeMetrics.Operation.SEARCH, key, found ? 1 : 0);
+        }
+
+        return found ? node.info : null;
+    }
+
+    /**
+     * public int fingerInsert(int k, String i)
+     *
+     * like insert, but the insertion point is found by a finger search as in fingerSearch
+     */
+    public int fingerInsert(int key, String info) {
+        if (metrics != null) {
+            metrics.begin();
+        }
+        // the insertion point stays in the tree through the rotations of the insert, so it stays the finger
+        int rebalanceCount = empty() ? insertItem(key, info) : insertBelow(findNearestNodeFromFinger(key), key, info);
+        if (metrics != null) {
+            metrics.end(WAVLTreeMetrics.Operation.INSERT, key, rebalanceCount);
+        }
+
+        return rebalanceCount;
+    }
+
+    /**
+     * public int fingerDelete(int k)
+     *
+     * like delete, but the item is found by a finger search as in fingerSearch
+     */
+    public int fingerDelete(int key) {
+        if (metrics != null) {
+            metrics.begin();
+        }
+        WAVLNode node = empty() ? null : findNearestNodeFromFinger(key);
+        int rebalanceCount = node == null || node.key != key ? -1 : deleteNode(node);
+        if (metrics != null) {
+            metrics.end(WAVLTreeMetrics.Operation.DELETE, key, rebalanceCount);
+        }
+
+        return rebalanceCount;
+    }
+
+    /**
+     * public void setMetrics(WAVLTreeMetrics metrics)
+     *
+     * attaches metrics to the tree, which its later operations report to, or detaches the
+     * metrics of the tree if metrics is null. a tree has no metrics when it is created.
+     */
+    public void setMetrics(WAVLTreeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * public WAVLTreeMetrics getMetrics()
+     *
+     * returns the metrics attached to the tree, or null if it has none
+     */
+    public WAVLTreeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Attaches a write-ahead log to the tree, which the later changes of the tree are
+     * appended to, or detaches the log of the tree if log is null. called by WAVLTreeLog.
+     */
+    void setLog(WAVLTreeLog log) {
+        this.log = log;
+    }
+
+    /**
+     * public WAVLTreeLog getLog()
+     *
+     * returns the write-ahead log attached to the tree by WAVLTreeLog.open, or null if it has none
+     */
+    public WAVLTreeLog getLog() {
+        return log;
+    }
+
+    /**
+     * public void setRelaxed(boolean relaxed)
+     *
+     * turns relaxed deletes on or off. a relaxed delete removes its node without changing any
+     * rank, so it does no rebalancing and returns 0, while inserts keep rebalancing with the
+     * rule that every rank difference is positive, as in the deletion without rebalancing of
+     * Sen and Tarjan. to keep the height bounded the tree is rebuilt, in linear time, once the
+     * relaxed deletes since the last rebuild outnumber its items: a tree of n items has then had
+     * at most 2n + 1 items since the rebuild, so the rank of its root, which bounds its height,
+     * is at most log_phi(2n + 1), about 1.44 log n + 1.44, against 2 log n for a WAVL tree. the
+     * rebuilds cost O(1) amortized time per delete, but the delete that triggers one takes
+     * O(n) time, as do turning relaxed deletes off and the first split, join, union,
+     * intersection, difference or large insertAll after relaxed deletes, which rebuild the
+     * tree into a WAVL tree first. a tree deletes with rebalancing when it is created, and
+     * the trees that split, join, union, intersection and difference return do too.
+     */
+    public void setRelaxed(boolean relaxed) {
+        this.relaxed = relaxed;
+        if (!relaxed && relaxedDeletes > 0) {
+            rebuild();
+        }
+    }
+
+    /**
+     * public boolean isRelaxed()
+     *
+     * returns true if and only if the deletes of the tree are relaxed
+     */
+    public boolean isRelaxed() {
+        return relaxed;
+    }
+
+    /**
+     * public void setAugmentation(Augmentation<A> augmentation)
+     *
+     * makes every node of the tree keep the aggregate of the items of its subtree in the monoid
+     * augmentation, which aggregate(lo, hi) reads, or stops keeping aggregates if augmentation
+     * is null. the aggregates of all the nodes are computed in O(n) time, and after that every
+     * change of the tree updates them along its path in O(log n). a tree has no augmentation
+     * when it is created, and the trees that split, join, union, intersection and difference
+     * return have none either.
+     */
+    @SuppressWarnings("unchecked")
+    public <A> void setAugmentation(Augmentation<A> augmentation) {
+        this.augmentation = (Augmentation<Object>) augmentation;
+        if (!empty()) {
+            updateAggregates(root);
+        }
+    }
+
+    /**
+     * public Augmentation<?> getAugmentation()
+     *
+     * returns the augmentation of the tree, or null if it has none
+     */
+    public Augmentation<?> getAugmentation() {
+        return augmentation;
+    }
+
+    /**
+     * public <A> A aggregate(int lo, int hi)
+     *
+     * returns the combination of the values of the items whose keys are between lo and hi,
+     * inclusive, in ascending order of keys, in the monoid of the tree's augmentation, or its
+     * identity if there are no such items. takes O(log n) time: the range is covered by the
+     * aggregates of O(log n) subtrees along the paths to lo and hi.
+     * throws IllegalStateException if the tree has no augmentation.
+     */
+    @SuppressWarnings("unchecked")
+    public <A> A aggregate(int lo, int hi) {
+        if (augmentation == null) {
+            throw new IllegalStateException("the tree has no augmentation");
+        }
+
+        // find the highest node in the range, where the paths to lo and hi part
+        WAVLNode top = empty() ? EXTERNAL : root;
+        while (!top.isExternalNode() && (top.key < lo || top.key > hi)) {
+            top = top.key < lo ? top.right : top.left;
+        }
+        if (top.isExternalNode()) {
+            return (A) augmentation.identity();
+        }
+
+        // every node on the path to lo that is in the range adds itself and its right subtree
+        Object lower = augmentation.identity();
+        for (WAVLNode node = top.left; !node.isExternalNode(); ) {
+            if (node.key >= lo) {
+                Object part = augmentation.combine(augmentation.valueOf(node.key, node.info), aggregateOf(node.right));
+                lower = augmentation.combine(part, lower);
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+
+        // and every node on the path to hi that is in the range adds its left subtree and itself
+        Object upper = augmentation.identity();
+        for (WAVLNode node = top.right; !node.isExternalNode(); ) {
+            if (node.key <= hi) {
+                Object part = augmentation.combine(aggregateOf(node.left), augmentation.valueOf(node.key, node.info));
+                upper = augmentation.combine(upper, part);
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+
+        Object middle = augmentation.combine(lower, augmentation.valueOf(top.key, top.info));
+        return (A) augmentation.combine(middle, upper);
+    }
+
+    /**
+     * @return the aggregate of the subtree of node, or the identity if node is the external node
+     */
+    private Object aggregateOf(WAVLNode node) {
+        return node.isExternalNode() ? augmentation.identity() : node.aggregate;
+    }
+
+    /**
+     * Recomputes the aggregates of all the nodes of a subtree, sons before their parents
+     *
+     * @param node - the root of the subtree, or the external node
+     */
+    private void updateAggregates(WAVLNode node) {
+        if (node.isExternalNode()) {
+            return;
+        }
+
+        updateAggregates(node.left);
+        updateAggregates(node.right);
+        updateSubtree(node);
+    }
+
+    /**
+     * recomputes the size of the subtree of node, and its aggregate if the tree has an
+     * augmentation, from the sons of node
+     */
+    private void updateSubtree(WAVLNode node) {
+        node.updateSubtreeSize();
+        if (augmentation == null) {
+            node.aggregate = null;
+            return;
+        }
+
+        Object aggregate = augmentation.valueOf(node.key, node.info);
+        if (!node.left.isExternalNode()) {
+            aggregate = augmentation.combine(node.left.aggregate, aggregate);
+        }
+        if (!node.right.isExternalNode()) {
+            aggregate = augmentation.combine(aggregate, node.right.aggregate);
+        }
+        node.aggregate = aggregate;
+    }
+
+    /**
+     * Deletes a node from the tree and rebalances the tree. a binary node takes the key and
+     * info of its successor, whose node is removed instead.
+     *
+     * @param deletedNode - a node of the tree
+     * @return the number of rebalancing operations
+     */
+    private int deleteNode(WAVLNode deletedNode) {
+        if (log == null) {
+            return removeNode(deletedNode);
         }
 
+        // the record is appended before the tree changes, as for an insert
+        long sequence = log.appendDelete(deletedNode.key);
+        int rebalanceCount = removeNode(deletedNode);
+        log.finishChange(sequence);
+        return rebalanceCount;
+    }
+
+    /**
+     * Removes a node from the tree, as deleteNode does without logging
+     */
+    private int removeNode(WAVLNode deletedNode) {
         size--;
         if (empty()) {
             root = null;
             min = null;
             max = null;
+            finger = null;
+            relaxedDeletes = 0;
             return 0;
         }
 
-        if (deletedNode.key == min.key)
-            min = min.parent;
-        if (deletedNode.key == max.key)
-            max = max.parent;
+        // the minimum has no left son and the maximum has no right son, so neither is ever
+        // replaced by its successor below, and their neighbours stay in the tree.
+        if (deletedNode == min)
+            min = deletedNode.next;
+        if (deletedNode == max)
+            max = deletedNode.prev;
         WAVLNode parent; // the parent of the node we deleted - used when we rebalance the tree.
         if (!(deletedNode.isUnaryNode() || deletedNode.isLeafNode())) { // choosing its successor node to replace it if its not leaf and not unary node.
-            WAVLNode s = findSuccessor(deletedNode);
+            WAVLNode s = deletedNode.next;
             parent = s.parent;
             removeNodeFromTree(s); //remove the successor node from the tree
 
+            // deletedNode takes the place of its successor in the order of keys
+            link(deletedNode, s.next);
             deletedNode.key = s.key;
             deletedNode.info = s.info;
+            updateSubtreeSizes(parent); // after the item moved, since the aggregates above it depend on it
             if (max == s) {
                 max = deletedNode;
             }
+            if (finger == s) {
+                finger = deletedNode;
+            }
             deletedNode = s;
         } else {
             parent = deletedNode.parent;
+            link(deletedNode.prev, deletedNode.next);
+            if (finger == deletedNode) {
+                finger = parent;
+            }
             if (deletedNode == root) { // size > 0 because we checked this option in the start of delete.
                 // here is the option when we delete a root that is unary node in the tree.
                 if (deletedNode.right.isExternalNode()) {
@@ -192,24 +726,83 @@ public class WAVLTree {
                     root.parent = null;
                 }
                 deletedNode.deleteFields();
-                return 0;
-            } else
+                return relaxed ? countRelaxedDelete() : 0;
+            } else {
                 removeNodeFromTree(deletedNode); //if the node is already a leaf or unary node we remove it from the tree.
+                updateSubtreeSizes(parent);
+            }
         }
 
         deletedNode.deleteFields(); //delete the node entirely
+        if (relaxed) {
+            return countRelaxedDelete();
+        }
 
         // rebalance the tree from now with the pointer to parent.
         int rebalanceCount = 0;
         if (parent.isLeafNode() && parent.rightChildRankDifference() == 2 && parent.leftChildRankDifference() == 2) {
             parent.demote();
             rebalanceCount++;
+            if (metrics != null) {
+                metrics.deleteDemotions++;
+            }
             parent = parent.parent;
         }
 
         return rebalanceDelete(parent, rebalanceCount);
     }
 
+    /**
+     * Counts a delete that left the ranks as they were, and rebuilds the tree once there were
+     * more of them since the last rebuild than the tree has items, as setRelaxed describes.
+     *
+     * @return the number of rebalancing operations, which is 0
+     */
+    private int countRelaxedDelete() {
+        relaxedDeletes++;
+        if (relaxedDeletes > size) {
+            rebuild();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Rebuilds the tree into a perfectly balanced WAVL tree of the same nodes in linear time,
+     * like fromSorted. the nodes stay linked in the order of keys, so min, max and the finger
+     * stay as they are.
+     */
+    private void rebuild() {
+        WAVLNode[] next = {min};
+        root = relinkSubtree(next, size, null);
+        relaxedDeletes = 0;
+    }
+
+    /**
+     * Builds a perfectly balanced subtree out of the next count nodes of the links, like
+     * readSubtree: the left subtree is built first, then the root, then the right subtree.
+     *
+     * @param next - holds the next node of the links, and is moved along them
+     * @return the root of the subtree, or the external node if count is 0
+     */
+    private WAVLNode relinkSubtree(WAVLNode[] next, int count, WAVLNode parent) {
+        if (count == 0) {
+            return EXTERNAL;
+        }
+
+        int leftCount = (count - 1) >>> 1;
+        WAVLNode left = relinkSubtree(next, leftCount, null);
+        WAVLNode node = next[0];
+        next[0] = node.next;
+        node.parent = parent;
+        node.left = left;
+        left.setParent(node);
+        node.right = relinkSubtree(next, count - 1 - leftCount, node);
+        node.rank = Math.max(node.left.rank, node.right.rank) + 1;
+        updateSubtree(node);
+        return node;
+    }
+
     /**
      * this function is fixing a violation of the WAVLTree from a specific node
      * up and returns the number of rebalancing opperations done in order to fix it.
@@ -219,77 +812,102 @@ public class WAVLTree {
      * @return total amount of rebalancing opperations done untill the tree is WAVLTree (from bottom to root).
      */
     private int rebalanceDelete(WAVLNode node, int rebalanceCount) {
-        if ((node == null || !(node.leftChildRankDifference() == 3 || node.rightChildRankDifference() == 3))) {
-            return rebalanceCount; // rebalance complete.
-        }
-
-        if (node.leftChildRankDifference() == 2 || node.rightChildRankDifference() == 2) {
-            // the case of (3,2) or (2,3), in this case we demote and move up the tree
-            node.demote();
-            rebalanceCount++;
-            return rebalanceDelete(node.parent, rebalanceCount);
-        }
-
-        if (node.leftChildRankDifference() == 3) {
-            WAVLNode right = node.right;
-            if (right.leftChildRankDifference() == 2 && right.rightChildRankDifference() == 2) {
-                // double demote, we demote the node and it's right son and move up the tree
+        // every demote moves the violation one level up, and every rotation ends the rebalancing
+        while (node != null && (node.leftChildRankDifference() == 3 || node.rightChildRankDifference() == 3)) {
+            if (node.leftChildRankDifference() == 2 || node.rightChildRankDifference() == 2) {
+                // the case of (3,2) or (2,3), in this case we demote and move up the tree
                 node.demote();
-                right.demote();
-                rebalanceCount += 2;
-                return rebalanceDelete(node.parent, rebalanceCount);
+                rebalanceCount++;
+                if (metrics != null) {
+                    metrics.deleteDemotions++;
+                }
+                node = node.parent;
+                continue;
             }
-            if (right.rightChildRankDifference() == 1) {
-                //rotate - we rotate left the node with it's right son and fix ranks, and we're finished with rebalancing
-                rotateLeft(node);
-                right.promote();
-                node.demote();
-                rebalanceCount += 3;
-                if (node.isLeafNode() && node.rightChildRankDifference() == 2 && node.leftChildRankDifference() == 2) {
+
+            if (node.leftChildRankDifference() == 3) {
+                WAVLNode right = node.right;
+                if (right.leftChildRankDifference() == 2 && right.rightChildRankDifference() == 2) {
+                    // double demote, we demote the node and it's right son and move up the tree
                     node.demote();
-                    rebalanceCount++;
+                    right.demote();
+                    rebalanceCount += 2;
+                    if (metrics != null) {
+                        metrics.deleteDoubleDemotions++;
+                    }
+                    node = node.parent;
+                    continue;
                 }
-
-                return rebalanceCount;
-            } else {
-                // we double rotate and fix ranks, and we're finished with rebalancing
-                WAVLNode a = right.left;
-                rotateRightThenLeft(node);
-                a.rank += 2;
-                right.demote();
-                node.rank -= 2;
-                rebalanceCount += 7;
-                return rebalanceCount;
-            }
-        } else { //- (1,3) = mirror cases of (3,1) - double demote and go up the tree
-            WAVLNode left = node.left;
-            if (left.leftChildRankDifference() == 2 && left.rightChildRankDifference() == 2) { //double demote
-                node.demote();
-                left.demote();
-                rebalanceCount += 2;
-                return rebalanceDelete(node.parent, rebalanceCount);
-            }
-            if (left.leftChildRankDifference() == 1) { //rotate and fix ranks
-                rotateRight(node);
-                left.promote();
-                node.demote();
-                rebalanceCount += 3;
-                if (node.isLeafNode() && node.rightChildRankDifference() == 2 && node.leftChildRankDifference() == 2) {
+                if (right.rightChildRankDifference() == 1) {
+                    //rotate - we rotate left the node with it's right son and fix ranks, and we're finished with rebalancing
+                    rotateLeft(node);
+                    right.promote();
                     node.demote();
-                    rebalanceCount++;
+                    rebalanceCount += 3;
+                    if (node.isLeafNode() && node.rightChildRankDifference() == 2 && node.leftChildRankDifference() == 2) {
+                        node.demote();
+                        rebalanceCount++;
+                    }
+                    if (metrics != null) {
+                        metrics.deleteRotations++;
+                    }
+
+                    return rebalanceCount;
+                } else {
+                    // we double rotate and fix ranks, and we're finished with rebalancing
+                    WAVLNode a = right.left;
+                    rotateRightThenLeft(node);
+                    a.rank += 2;
+                    right.demote();
+                    node.rank -= 2;
+                    rebalanceCount += 7;
+                    if (metrics != null) {
+                        metrics.deleteDoubleRotations++;
+                    }
+                    return rebalanceCount;
                 }
-                return rebalanceCount;
-            } else { //double rotate and fix ranks
-                WAVLNode a = left.right;
-                rotateLeftThenRight(node);
-                a.rank += 2;
-                left.demote();
-                node.rank -= 2;
-                rebalanceCount += 7;
-                return rebalanceCount;
-            }
-        }
-    }
+            } else { //- (1,3) = mirror cases of (3,1) - double demote and go up the tree
+                WAVLNode left = node.left;
+                if (left.leftChildRankDifference() == 2 && left.rightChildRankDifference() == 2) { //double demote
+                    node.demote();
+                    left.demote();
+                    rebalanceCount += 2;
+                    if (metrics != null) {
+                        metrics.deleteDoubleDemotions++;
+                    }
+                    node = node.parent;
+                    continue;
+                }
+                if (left.leftChildRankDifference() == 1) { //rotate and fix ranks
+                    rotateRight(node);
+                    left.promote();
+                    node.demote();
+                    rebalanceCount += 3;
+                    if (node.isLeafNode() && node.rightChildRankDifference() == 2 && node.leftChildRankDifference() == 2) {
+                        node.demote();
+                        rebalanceCount++;
+                    }
+                    if (metrics != null) {
+                        metrics.deleteRotations++;
+                    }
+                    return rebalanceCount;
+                } else { //double rotate and fix ranks
+                    WAVLNode a = left.right;
+                    rotateLeftThenRight(node);
+                    a.rank += 2;
+                    left.demote();
+                    node.rank -= 2;
+                    rebalanceCount += 7;
+                    if (metrics != null) {
+                        metrics.deleteDoubleRotations++;
+                    }
+                    return rebalanceCount;
+                }
+            }
+        }
+
+        return rebalanceCount; // rebalance complete.
+    }
 
     /**
      * this function remove all pointers to the node's in the tree and bypass the node.
@@ -300,7 +918,7 @@ public class WAVLTree {
         WAVLNode parent = s.parent;
         if (s.isARightChild()) {
             if (s.isLeafNode())
-                parent.right = external;
+                parent.right = EXTERNAL;
             else {
                 if (s.right.isExternalNode()) {
                     parent.right = s.left;
@@ -312,7 +930,7 @@ public class WAVLTree {
             }
         } else {
             if (s.isLeafNode())
-                parent.left = external;
+                parent.left = EXTERNAL;
             else {
                 if (s.right.isExternalNode()) {
                     parent.left = s.left;
@@ -330,17 +948,33 @@ public class WAVLTree {
      * @return the successor of node in the tree. or null if node has the largest key in the tree.
      */
     private WAVLNode findSuccessor(WAVLNode node) {
-        // if node has right son go right then go all the way lefft
-        if (!node.right.isExternalNode())
-            return minimumNode(node.right);
+        return node.next;
+    }
 
-        // go up until the first turn right
-        WAVLNode y = node.parent;
-        while (y != null && node == y.right) {
-            node = y;
-            y = node.parent;
+    /**
+     * Links two nodes as neighbours in the order of keys
+     *
+     * @param prev - the node before next, or null if next is the first node
+     * @param next - the node after prev, or null if prev is the last node
+     */
+    private static void link(WAVLNode prev, WAVLNode next) {
+        if (prev != null) {
+            prev.next = next;
+        }
+        if (next != null) {
+            next.prev = prev;
         }
-        return y;
+    }
+
+    /**
+     * Links a node as the neighbour of the maximum of one subtree and of the minimum of another
+     *
+     * @param left   - the root of the subtree before node, or the external node
+     * @param right  - the root of the subtree after node, or the external node
+     */
+    private void linkBetween(WAVLNode left, WAVLNode node, WAVLNode right) {
+        link(left.isExternalNode() ? null : maximumNode(left), node);
+        link(node, right.isExternalNode() ? null : minimumNode(right));
     }
 
     /**
@@ -356,6 +990,19 @@ public class WAVLTree {
         return node;
     }
 
+    /**
+     * @param node is the root of a subtree in which we return the node with the maximum key in. assuming node is not null.
+     * @return WAVLNode with the maximum key in the subtree of node.
+     */
+    private WAVLNode maximumNode(WAVLNode node) {
+        //go all the way right from node to get to the maximum
+        while (!node.right.isExternalNode()) {
+            node = node.right;
+        }
+
+        return node;
+    }
+
 
     /**
      * searches for a key in the tree, if no node with such ket exisits, returns the insertion point for the key
@@ -370,6 +1017,33 @@ public class WAVLTree {
             return null;
         }
 
+        WAVLNode nearestNode = findNearestNode(node, key);
+        if (metrics != null) {
+            metrics.recordSearchPath(depth(nearestNode) + 1);
+        }
+
+        return nearestNode;
+    }
+
+    /**
+     * @return the number of ancestors of node
+     */
+    private static int depth(WAVLNode node) {
+        int depth = 0;
+        for (WAVLNode ancestor = node.parent; ancestor != null; ancestor = ancestor.parent) {
+            depth++;
+        }
+
+        return depth;
+    }
+
+    /**
+     * searches for a key in a subtree, like findNearestNode(key)
+     *
+     * @param node - the root of the subtree, assuming it is not the external node
+     * @return a node with the specified key if one exists in the subtree, and the insertion point for the key otherwise
+     */
+    private WAVLNode findNearestNode(WAVLNode node, int key) {
         while (true) {
             //if key found return node
             if (node.key == key) {
@@ -392,6 +1066,52 @@ public class WAVLTree {
         }
     }
 
+    /**
+     * Climbs from a node to its lowest ancestor whose subtree holds the place of key, so that
+     * the search for a key close to the key of the node doesn't start from the root.
+     *
+     * @param node - a node of the tree
+     * @return node, one of its ancestors, min or max, from which findNearestNode(node, key) finds key
+     */
+    private WAVLNode climbTowards(WAVLNode node, int key) {
+        // beyond the ends of the tree the place of key is next to min or max, and climbing
+        // along the spine to the root would only find the same node
+        if (key > max.key) {
+            return max;
+        }
+        if (key < min.key) {
+            return min;
+        }
+
+        WAVLNode parent = node.parent;
+        if (key > node.key) {
+            // the keys of a left subtree are smaller than the key of its parent
+            while (parent != null && !(node == parent.left && parent.key > key)) {
+                node = parent;
+                parent = node.parent;
+            }
+        } else {
+            while (parent != null && !(node == parent.right && parent.key < key)) {
+                node = parent;
+                parent = node.parent;
+            }
+        }
+
+        return node;
+    }
+
+    /**
+     * searches for a key from the finger, and moves the finger to the node found.
+     * assuming the tree is not empty
+     *
+     * @return a node with the specified key if one exists, and the insertion point for the key otherwise
+     */
+    private WAVLNode findNearestNodeFromFinger(int key) {
+        WAVLNode start = finger == null ? root : climbTowards(finger, key);
+        finger = findNearestNode(start, key);
+        return finger;
+    }
+
     /**
      * public String min()
      *
@@ -399,7 +1119,7 @@ public class WAVLTree {
      * if the tree is empty
      */
     public String min() {
-        return min.info;
+        return min == null ? null : min.info;
     }
 
     /**
@@ -409,43 +1129,140 @@ public class WAVLTree {
      * the tree is empty
      */
     public String max() {
-        return max.info;
+        return max == null ? null : max.info;
     }
 
     /**
-     * public int[] keysToArray()
+     * public int peekMinKey()
      *
-     * Returns a sorted array which contains all keys in the tree, or an empty
-     * array if the tree is empty.
+     * Returns the smallest key in the tree. throws NoSuchElementException if the tree is empty.
      */
-    public int[] keysToArray() {
-        if (empty()) {
-            return new int[0];
+    public int peekMinKey() {
+        if (min == null) {
+            throw new NoSuchElementException();
         }
+        return min.key;
+    }
 
-        int[] keys = new int[size];
-        keysToArrayRecursive(root, keys, 0);
-        return keys;
+    /**
+     * public int peekMaxKey()
+     *
+     * Returns the largest key in the tree. throws NoSuchElementException if the tree is empty.
+     */
+    public int peekMaxKey() {
+        if (max == null) {
+            throw new NoSuchElementException();
+        }
+        return max.key;
     }
 
     /**
-     * Inserts the keys of the nodes in the subtree of a node, into an array at a specified index
+     * public String pollMin()
      *
-     * @param node  - The node whose subtree is to be inserted into the array
-     * @param array - The array that the keys are inserted into
-     * @param index - The index at which the keys are inserted
-     * @return The last index where a key was inserted
+     * Deletes the item with the smallest key from the tree and returns its info, or returns
+     * null if the tree is empty. the item is the cached minimum, so it is deleted without a
+     * search: the minimum has no left son, so it is removed in place and its successor becomes
+     * the minimum through its link. the rebalancing takes amortized O(1) rotations, but the
+     * subtree sizes and aggregates are updated up to the root, so the deletion takes O(log n)
+     * time, as delete does. a heap such as java.util.PriorityQueue is faster when only the
+     * minimum is needed.
      */
-    private int keysToArrayRecursive(WAVLNode node, int[] array, int index) {
-        if (node.isExternalNode()) {
-            return index;
+    public String pollMin() {
+        return pollNode(min);
+    }
+
+    /**
+     * public String pollMax()
+     *
+     * Deletes the item with the largest key from the tree and returns its info, or returns
+     * null if the tree is empty, as pollMin does for the smallest key.
+     */
+    public String pollMax() {
+        return pollNode(max);
+    }
+
+    /**
+     * Deletes the minimum or the maximum of the tree, as delete does without the search
+     *
+     * @param node - min or max, or null if the tree is empty
+     * @return the info of node, or null if node is null
+     */
+    private String pollNode(WAVLNode node) {
+        if (node == null) {
+            return null;
+        }
+
+        String info = node.info;
+        if (metrics == null) {
+            deleteNode(node);
+            return info;
         }
 
-        index = keysToArrayRecursive(node.left, array, index);
+        metrics.begin();
+        int key = node.key;
+        int rebalanceCount = deleteNode(node);
+        metrics.end(WAVLTreeMetrics.Operation.DELETE, key, rebalanceCount);
+        return info;
+    }
+
+    /**
+     * public Integer floorKey(int k)
+     *
+     * Returns the largest key in the tree that is smaller than or equal to k, or null if
+     * there is none. takes one search and at most one step along the links between
+     * neighbouring nodes, as do ceilingKey, higherKey and lowerKey.
+     */
+    public Integer floorKey(int key) {
+        WAVLNode node = floorNode(key);
+        return node == null ? null : node.key;
+    }
+
+    /**
+     * public Integer ceilingKey(int k)
+     *
+     * Returns the smallest key in the tree that is greater than or equal to k, or null if there is none
+     */
+    public Integer ceilingKey(int key) {
+        WAVLNode node = ceilingNode(key);
+        return node == null ? null : node.key;
+    }
+
+    /**
+     * public Integer higherKey(int k)
+     *
+     * Returns the smallest key in the tree that is greater than k, or null if there is none
+     */
+    public Integer higherKey(int key) {
+        WAVLNode node = ceilingNode(key);
+        if (node != null && node.key == key) {
+            node = node.next;
+        }
+        return node == null ? null : node.key;
+    }
 
-        array[index++] = node.key;
+    /**
+     * public Integer lowerKey(int k)
+     *
+     * Returns the largest key in the tree that is smaller than k, or null if there is none
+     */
+    public Integer lowerKey(int key) {
+        WAVLNode node = floorNode(key);
+        if (node != null && node.key == key) {
+            node = node.prev;
+        }
+        return node == null ? null : node.key;
+    }
 
-        return keysToArrayRecursive(node.right, array, index);
+    /**
+     * public int[] keysToArray()
+     *
+     * Returns a sorted array which contains all keys in the tree, or an empty
+     * array if the tree is empty.
+     */
+    public int[] keysToArray() {
+        int[] keys = new int[size];
+        exportInOrder(keys, null);
+        return keys;
     }
 
     /**
@@ -455,33 +1272,173 @@ public class WAVLTree {
      * respective keys, or an empty array if the tree is empty.
      */
     public String[] infoToArray() {
-        if (empty()) {
-            return new String[0];
+        String[] infos = new String[size];
+        exportInOrder(null, infos);
+        return infos;
+    }
+
+    /**
+     * Copies the keys or the infos of the tree into an array in order. the tree is walked
+     * down its left spines with an explicit stack of the nodes whose right subtrees are still
+     * to be copied, so the call stack isn't used, and every node is read once - following the
+     * next links instead reads the nodes in the order of keys, which is far from the order
+     * they lie in memory in a large tree.
+     *
+     * @param keys  - the array the keys are copied into, or null when copying the infos
+     * @param infos - the array the infos are copied into, when keys is null
+     */
+    private void exportInOrder(int[] keys, String[] infos) {
+        WAVLNode[] stack = new WAVLNode[64]; // a tree of n nodes is at most 2 log n deep, and a relaxed one 1.44 log 2n
+        int depth = 0;
+        int index = 0;
+        WAVLNode node = empty() ? EXTERNAL : root;
+        while (true) {
+            while (node != EXTERNAL) {
+                stack[depth++] = node;
+                node = node.left;
+            }
+            if (depth == 0) {
+                return;
+            }
+
+            node = stack[--depth];
+            if (keys != null) {
+                keys[index++] = node.key;
+            } else {
+                infos[index++] = node.info;
+            }
+            node = node.right;
         }
+    }
 
-        String[] arr = new String[size];
-        infoToArrayRecursive(root, arr, 0);
-        return arr;
+    /**
+     * public void forEachInRange(int lo, int hi, IntObjConsumer consumer)
+     *
+     * Passes the key and info of every item whose key is between lo and hi, inclusive, to
+     * consumer in ascending order of keys. takes O(log n + k) time for k items in the range,
+     * and allocates nothing. the tree must not be modified by consumer.
+     */
+    public void forEachInRange(int lo, int hi, IntObjConsumer consumer) {
+        for (WAVLNode node = ceilingNode(lo); node != null && node.key <= hi; node = findSuccessor(node)) {
+            consumer.accept(node.key, node.info);
+        }
     }
 
     /**
-     * Inserts the infos of the subtree of node into an array at a specific index inorder
+     * public Cursor cursor()
      *
-     * @param node  - The node whose subtree is inserted into the array
-     * @param array - The array that the infos are inserted into
-     * @param index The index at which the infos are inserted
-     * @return The last index where infos were inserted
+     * Returns a new cursor over the items of the tree, which is not positioned on any item
+     * until seek() or first() is called.
      */
-    private int infoToArrayRecursive(WAVLNode node, String[] array, int index) {
-        if (node.isExternalNode()) {
-            return index;
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * public IntStream stream()
+     *
+     * Returns a stream of the keys of the tree in ascending order. the stream can be made
+     * parallel, in which case it is split at the median of every part using the subtree sizes.
+     * the tree must not be modified while the stream is used.
+     */
+    public IntStream stream() {
+        return StreamSupport.intStream(new KeySpliterator(min, 0, size), false);
+    }
+
+    /**
+     * public Stream<String> infoStream()
+     *
+     * Returns a stream of the infos of the tree, sorted by their respective keys. it can be
+     * made parallel the same way as stream().
+     */
+    public Stream<String> infoStream() {
+        return StreamSupport.stream(new InfoSpliterator(min, 0, size), false);
+    }
+
+    /**
+     * public int[] parallelKeysToArray()
+     *
+     * Returns the same array as keysToArray(), filled by tasks of the common ForkJoinPool.
+     * the tree is split at the roots of its subtrees, and every task writes the keys of its
+     * subtree into the part of the array given by the subtree sizes.
+     * the tree must not be modified until this returns.
+     */
+    public int[] parallelKeysToArray() {
+        int[] keys = new int[size];
+        if (!empty()) {
+            ForkJoinPool.commonPool().invoke(new ExportTask(root, 0, keys, null));
+        }
+        return keys;
+    }
+
+    /**
+     * public String[] parallelInfoToArray()
+     *
+     * Returns the same array as infoToArray(), filled in parallel as in parallelKeysToArray().
+     */
+    public String[] parallelInfoToArray() {
+        String[] infos = new String[size];
+        if (!empty()) {
+            ForkJoinPool.commonPool().invoke(new ExportTask(root, 0, null, infos));
+        }
+        return infos;
+    }
+
+    /**
+     * public void parallelForEach(IntObjConsumer consumer)
+     *
+     * Passes the key and info of every item to consumer, from tasks of the common ForkJoinPool,
+     * in no particular order. consumer is called from several threads at once and must be
+     * thread safe. the tree must not be modified until this returns.
+     */
+    public void parallelForEach(IntObjConsumer consumer) {
+        if (!empty()) {
+            ForkJoinPool.commonPool().invoke(new ForEachTask(root, consumer));
+        }
+    }
+
+    /**
+     * public <U> U parallelReduce(U identity, IntObjAccumulator<U> accumulator, BinaryOperator<U> combiner)
+     *
+     * Folds the items into a result in parallel, like the three argument Stream.reduce: every
+     * task folds the items of its subtree in ascending order of keys into identity with
+     * accumulator, and the results of the subtrees are combined in the same order with combiner.
+     * combiner must be associative, identity must be an identity of combiner, and neither
+     * may modify the tree. returns identity if the tree is empty.
+     */
+    public <U> U parallelReduce(U identity, IntObjAccumulator<U> accumulator, BinaryOperator<U> combiner) {
+        if (empty()) {
+            return identity;
+        }
+        return ForkJoinPool.commonPool().invoke(new ReduceTask<>(root, identity, accumulator, combiner));
+    }
+
+    /**
+     * @param key - the key to look for in the tree
+     * @return the node with the smallest key that is greater than or equal to key, or null if there is none
+     */
+    private WAVLNode ceilingNode(int key) {
+        // the insertion point of a key is the node just before it or just after it
+        WAVLNode node = findNearestNode(key);
+        if (node == null || node.key >= key) {
+            return node;
         }
 
-        index = infoToArrayRecursive(node.left, array, index);
+        return node.next;
+    }
 
-        array[index++] = node.info;
+    /**
+     * @param key - the key to look for in the tree
+     * @return the node with the largest key that is smaller than or equal to key, or null if there is none
+     */
+    private WAVLNode floorNode(int key) {
+        // the insertion point of a key is the node just before it or just after it
+        WAVLNode node = findNearestNode(key);
+        if (node == null || node.key <= key) {
+            return node;
+        }
 
-        return infoToArrayRecursive(node.right, array, index);
+        return node.prev;
     }
 
     /**
@@ -510,6 +1467,9 @@ public class WAVLTree {
         node.right.setParent(node);
 
         rotatedNode.left = node;
+
+        updateSubtree(node);
+        updateSubtree(rotatedNode);
     }
 
     /**
@@ -538,6 +1498,9 @@ public class WAVLTree {
         node.left.setParent(node);
 
         rotatedNode.right = node;
+
+        updateSubtree(node);
+        updateSubtree(rotatedNode);
     }
 
     /**
@@ -570,57 +1533,1317 @@ public class WAVLTree {
     }
 
     /**
-     * private class WAVLNode
+     * public int select(int k)
+     *
+     * Returns the key of the item with the k-th smallest key in the tree, counting from 0,
+     * which is keysToArray()[k]. throws IndexOutOfBoundsException if k is not in [0, size()).
      */
-    private class WAVLNode {
+    public int select(int k) {
+        if (k < 0 || k >= size) {
+            throw new IndexOutOfBoundsException("k: " + k + ", size: " + size);
+        }
 
-        public int key;
-        public String info;
-        public int rank;
-        public WAVLNode parent;
-        public WAVLNode left;
-        public WAVLNode right;
+        return selectNode(k).key;
+    }
 
-        /**
-         * Creating External node
-         */
-        public WAVLNode() {
-            this.rank = -1;
+    /**
+     * @param k - the index of a node in the tree in the sorted order, assuming 0 <= k < size
+     * @return the node with the k-th smallest key in the tree
+     */
+    private WAVLNode selectNode(int k) {
+        WAVLNode node = root;
+        while (true) {
+            int leftSize = node.left.subtreeSize;
+            if (k < leftSize) {
+                node = node.left;
+            } else if (k == leftSize) {
+                return node;
+            } else {
+                k -= leftSize + 1;
+                node = node.right;
+            }
         }
+    }
 
-        /**
-         * Constructor for a new leaf node.
-         */
-        public WAVLNode(int key, String info, WAVLNode parent) {
-            this.key = key;
-            this.info = info;
-            this.rank = 0;
-            this.parent = parent;
-            this.right = external;
-            this.left = external;
+    /**
+     * public int rank(int k)
+     *
+     * Returns the number of items in the tree whose keys are smaller than k. k doesn't have
+     * to be in the tree, and if it is, this is its index in keysToArray().
+     */
+    public int rank(int key) {
+        return countSmaller(key, false);
+    }
+
+    /**
+     * public int countInRange(int lo, int hi)
+     *
+     * Returns the number of items in the tree whose keys are between lo and hi, inclusive.
+     */
+    public int countInRange(int lo, int hi) {
+        if (lo > hi) {
+            return 0;
         }
 
-        public boolean isExternalNode() {
-            return rank == -1;
+        return countSmaller(hi, true) - countSmaller(lo, false);
+    }
+
+    /**
+     * @param key       - the key to compare the keys of the tree with
+     * @param inclusive - whether an item with the key itself is counted
+     * @return the number of items in the tree whose keys are smaller than key (or equal to it, if inclusive)
+     */
+    private int countSmaller(int key, boolean inclusive) {
+        int count = 0;
+        WAVLNode node = empty() ? EXTERNAL : root;
+        while (!node.isExternalNode()) {
+            if (node.key < key || (inclusive && node.key == key)) {
+                // node and its whole left subtree are smaller
+                count += node.left.subtreeSize + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
         }
 
-        /**
-         * @return true if this node is a leaf and false otherwise
-         */
-        public boolean isLeafNode() {
-            return left == external && right == external;
+        return count;
+    }
+
+    /**
+     * recomputes the sizes and the aggregates of the subtrees of a node and of all its ancestors,
+     * after a node was added or removed below it
+     *
+     * @param node - the lowest node whose subtree changed, or null
+     */
+    private void updateSubtreeSizes(WAVLNode node) {
+        while (node != null) {
+            updateSubtree(node);
+            node = node.parent;
         }
+    }
 
-        /**
-         * @return true if this node has only one son that isn;t external
-         */
-        public boolean isUnaryNode() {
-            return (this.left.isExternalNode() ^ this.right.isExternalNode());
+    /**
+     * Throws IllegalStateException if the tree has a write-ahead log. split, join and the set
+     * operations empty their trees without writing log records, so a replayed log would bring
+     * the removed items back.
+     */
+    private void checkNotLogged() {
+        if (log != null) {
+            throw new IllegalStateException("a tree with a write-ahead log cannot be split, joined or combined");
         }
+    }
 
-        /**
-         * @return -1 if this.parent is null and the rank difference between this and its parent otherwise.
-         */
+    /**
+     * public WAVLTree[] split(int key)
+     *
+     * splits the tree around key into two trees: the first holds the items whose keys are
+     * smaller than key, and the second holds the rest of the items. this tree is left empty.
+     * throws IllegalStateException if the tree has a write-ahead log.
+     */
+    public WAVLTree[] split(int key) {
+        checkNotLogged();
+        WAVLNode[] parts = splitSubtree(detachRoot(), key);
+        WAVLTree smaller = new WAVLTree();
+        smaller.setRoot(parts[0]);
+        WAVLTree greater = new WAVLTree();
+        greater.setRoot(parts[1] == null ? parts[2] : greater.joinSubtrees(EXTERNAL, parts[1], parts[2]));
+        return new WAVLTree[]{smaller, greater};
+    }
+
+    /**
+     * public static WAVLTree join(WAVLTree smaller, int k, String i, WAVLTree greater)
+     *
+     * returns a tree holding the items of smaller, an item with key k and info i, and the
+     * items of greater. all the keys of smaller must be smaller than k, and all the keys of
+     * greater must be greater than k. smaller and greater are left empty.
+     * throws IllegalStateException if smaller or greater has a write-ahead log.
+     */
+    public static WAVLTree join(WAVLTree smaller, int key, String info, WAVLTree greater) {
+        smaller.checkNotLogged();
+        greater.checkNotLogged();
+        if (smaller == greater && !smaller.empty()) {
+            throw new IllegalArgumentException("cannot join a tree with itself");
+        }
+        if ((!smaller.empty() && smaller.max.key >= key) || (!greater.empty() && greater.min.key <= key)) {
+            throw new IllegalArgumentException("the keys of smaller must be smaller than key and the keys of greater must be greater than it");
+        }
+
+        WAVLTree joined = new WAVLTree();
+        joined.setRoot(joined.joinLinked(smaller.detachRoot(), new WAVLNode(key, info, null), greater.detachRoot()));
+        return joined;
+    }
+
+    /**
+     * public static WAVLTree join(WAVLTree smaller, WAVLTree greater)
+     *
+     * returns a tree holding the items of smaller and of greater. all the keys of smaller must
+     * be smaller than all the keys of greater. this is the inverse of split. smaller and greater
+     * are left empty.
+     * throws IllegalStateException if smaller or greater has a write-ahead log.
+     */
+    public static WAVLTree join(WAVLTree smaller, WAVLTree greater) {
+        smaller.checkNotLogged();
+        greater.checkNotLogged();
+        if (smaller == greater && !smaller.empty()) {
+            throw new IllegalArgumentException("cannot join a tree with itself");
+        }
+        if (!smaller.empty() && !greater.empty() && smaller.max.key >= greater.min.key) {
+            throw new IllegalArgumentException("the keys of smaller must be smaller than the keys of greater");
+        }
+
+        WAVLTree joined = new WAVLTree();
+        joined.setRoot(joined.joinLinked(smaller.detachRoot(), greater.detachRoot()));
+        return joined;
+    }
+
+    /**
+     * public static WAVLTree union(WAVLTree first, WAVLTree second)
+     *
+     * returns a tree holding the items of first and of second. when both trees have an item
+     * with the same key, the item of first is kept. first and second are left empty.
+     * throws IllegalStateException if first or second has a write-ahead log.
+     */
+    public static WAVLTree union(WAVLTree first, WAVLTree second) {
+        first.checkNotLogged();
+        second.checkNotLogged();
+        if (first == second) {
+            throw new IllegalArgumentException("cannot unite a tree with itself");
+        }
+
+        WAVLTree result = new WAVLTree();
+        result.setRoot(result.unionSubtrees(first.detachRoot(), second.detachRoot()));
+        return result;
+    }
+
+    /**
+     * public static WAVLTree intersection(WAVLTree first, WAVLTree second)
+     *
+     * returns a tree holding the items of first whose keys are also in second.
+     * first and second are left empty.
+     * throws IllegalStateException if first or second has a write-ahead log.
+     */
+    public static WAVLTree intersection(WAVLTree first, WAVLTree second) {
+        first.checkNotLogged();
+        second.checkNotLogged();
+        if (first == second) {
+            throw new IllegalArgumentException("cannot intersect a tree with itself");
+        }
+
+        WAVLTree result = new WAVLTree();
+        result.setRoot(result.intersectSubtrees(first.detachRoot(), second.detachRoot()));
+        return result;
+    }
+
+    /**
+     * public static WAVLTree difference(WAVLTree first, WAVLTree second)
+     *
+     * returns a tree holding the items of first whose keys are not in second.
+     * first and second are left empty.
+     * throws IllegalStateException if first or second has a write-ahead log.
+     */
+    public static WAVLTree difference(WAVLTree first, WAVLTree second) {
+        first.checkNotLogged();
+        second.checkNotLogged();
+        if (first == second) {
+            throw new IllegalArgumentException("cannot subtract a tree from itself");
+        }
+
+        WAVLTree result = new WAVLTree();
+        result.setRoot(result.subtractSubtrees(first.detachRoot(), second.detachRoot()));
+        return result;
+    }
+
+    /**
+     * public BatchResult insertAll(int[] keys, String[] infos)
+     *
+     * inserts the items with key keys[i] and info infos[i] to the tree, like calling insert
+     * for every i in order: when a key is already in the tree or appears more than once in
+     * keys, the first item with it is kept. the batch is sorted first, and every item is
+     * inserted with fingerInsert, so consecutive searches share their descent and walk
+     * memory the tree has just touched.
+     * a batch at least as large as the tree is built into a subtree in linear time and
+     * united with the tree instead.
+     * returns the number of items inserted and of the rebalancing operations done.
+     */
+    public BatchResult insertAll(int[] keys, String[] infos) {
+        if (keys.length != infos.length) {
+            throw new IllegalArgumentException("keys and infos must have the same length");
+        }
+
+        // sorting the keys together with their indices keeps the first item of every key first
+        long[] sorted = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            sorted[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(sorted);
+
+        int count = 0;
+        int[] batchKeys = new int[keys.length];
+        String[] batchInfos = new String[keys.length];
+        for (int i = 0; i < sorted.length; i++) {
+            int key = (int) (sorted[i] >> 32);
+            if (count == 0 || batchKeys[count - 1] != key) {
+                batchKeys[count] = key;
+                batchInfos[count] = infos[(int) sorted[i]];
+                count++;
+            }
+        }
+
+        int oldSize = size;
+        if (count >= size) {
+            joinRebalanceCount = 0;
+            // the items whose keys are in the tree are skipped when the log is replayed, as they are here.
+            // all of the records are appended before the union, and only the last one is waited for.
+            long sequence = 0;
+            if (log != null) {
+                for (int i = 0; i < count; i++) {
+                    sequence = log.appendInsert(batchKeys[i], batchInfos[i]);
+                }
+            }
+            WAVLNode batch = count == 0 ? EXTERNAL : buildSubtree(batchKeys, batchInfos, 0, count - 1, null);
+            setRoot(unionSubtrees(detachRoot(), batch));
+            if (log != null) {
+                log.finishChange(sequence);
+            }
+            return new BatchResult(size - oldSize, joinRebalanceCount);
+        }
+
+        int rebalanceCount = 0;
+        for (int i = 0; i < count; i++) {
+            rebalanceCount += Math.max(fingerInsert(batchKeys[i], batchInfos[i]), 0);
+        }
+
+        return new BatchResult(size - oldSize, rebalanceCount);
+    }
+
+    /**
+     * public BatchResult deleteAll(int[] keys)
+     *
+     * deletes the items with the given keys from the tree, skipping keys that are not in it.
+     * the keys are sorted first, and every item is deleted with fingerDelete, as in insertAll.
+     * returns the number of items deleted and of the rebalancing operations done.
+     */
+    public BatchResult deleteAll(int[] keys) {
+        int[] sorted = keys.clone();
+        Arrays.sort(sorted);
+
+        int oldSize = size;
+        int rebalanceCount = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i - 1] != sorted[i]) {
+                rebalanceCount += Math.max(fingerDelete(sorted[i]), 0);
+            }
+        }
+
+        return new BatchResult(oldSize - size, rebalanceCount);
+    }
+
+    /**
+     * Empties the tree and returns its old root, so its nodes can be moved to other trees.
+     *
+     * @return the old root of the tree, or the external node if the tree was empty
+     */
+    private WAVLNode detachRoot() {
+        // joins walk the spines by rank, so the ranks must be those of a WAVL tree again
+        if (relaxedDeletes > 0) {
+            rebuild();
+        }
+        WAVLNode oldRoot = empty() ? EXTERNAL : root;
+        root = null;
+        min = null;
+        max = null;
+        finger = null;
+        size = 0;
+        return oldRoot;
+    }
+
+    /**
+     * Makes node the root of this tree, and updates the size, min and max of the tree.
+     * assuming the tree was empty.
+     *
+     * @param node - the root of a valid WAVL tree, or the external node
+     */
+    private void setRoot(WAVLNode node) {
+        if (node.isExternalNode()) {
+            return;
+        }
+
+        node.parent = null;
+        root = node;
+        min = minimumNode(node);
+        max = maximumNode(node);
+        // the ends may still be linked to the nodes of the trees the subtree was split from
+        min.prev = null;
+        max.next = null;
+        size = node.subtreeSize;
+    }
+
+    /**
+     * Takes a node out of its subtree, leaving its sons as the roots of their own subtrees.
+     * assuming node is a root.
+     */
+    private void detachSons(WAVLNode node) {
+        node.left.setParent(null);
+        node.right.setParent(null);
+        node.left = EXTERNAL;
+        node.right = EXTERNAL;
+        updateSubtree(node);
+    }
+
+    /**
+     * Joins two subtrees and a node between them into one subtree. the subtree of higher rank
+     * is walked down its spine to the first node whose rank is at most one more than the rank
+     * of the other subtree, which is replaced by middle with the two smaller subtrees as sons.
+     * if middle got the rank of its new parent, the tree is rebalanced as after an insert.
+     * this takes time proportional to the difference between the ranks of the subtrees.
+     *
+     * all the subtrees' nodes must be outside the tree whose root is this tree's root, so that
+     * the rotations of the rebalancing don't replace this tree's root.
+     *
+     * @param left   - the root of a subtree whose keys are smaller than middle's, or the external node
+     * @param middle - a node that is not in any tree
+     * @param right  - the root of a subtree whose keys are greater than middle's, or the external node
+     * @return the root of the joined subtree
+     */
+    private WAVLNode joinSubtrees(WAVLNode left, WAVLNode middle, WAVLNode right) {
+        middle.parent = null;
+        if (Math.abs(left.rank - right.rank) <= 1) {
+            // the subtrees are already balanced under middle
+            setSons(middle, left, right);
+            middle.rank = Math.max(left.rank, right.rank) + 1;
+            updateSubtree(middle);
+            return middle;
+        }
+
+        // the walk may end at an external node, which doesn't know its parent, so the parent is kept aside
+        WAVLNode parent = null;
+        WAVLNode node;
+        if (left.rank > right.rank) {
+            node = left;
+            while (node.rank > right.rank + 1) {
+                parent = node;
+                node = node.right;
+            }
+
+            setSons(middle, node, right);
+            parent.right = middle;
+        } else {
+            node = right;
+            while (node.rank > left.rank + 1) {
+                parent = node;
+                node = node.left;
+            }
+
+            setSons(middle, left, node);
+            parent.left = middle;
+        }
+        middle.parent = parent;
+        updateSubtreeSizes(middle);
+
+        // the rank of middle is one more than the rank of the subtree it replaced, so its rank difference is 0 or 1
+        middle.rank = node.rank + 1;
+        joinRebalanceCount += rebalanceInsert(middle, 0);
+
+        while (middle.parent != null) {
+            middle = middle.parent;
+        }
+
+        return middle;
+    }
+
+    /**
+     * Joins two subtrees into one subtree, by taking the maximum out of the smaller one and
+     * joining the subtrees with it in the middle.
+     *
+     * @param left  - the root of a subtree whose keys are smaller than right's, or the external node
+     * @param right - the root of a subtree whose keys are greater than left's, or the external node
+     * @return the root of the joined subtree
+     */
+    private WAVLNode joinSubtrees(WAVLNode left, WAVLNode right) {
+        if (left.isExternalNode()) {
+            return right;
+        }
+
+        WAVLNode[] parts = splitMaximum(left);
+        return joinSubtrees(parts[0], parts[1], right);
+    }
+
+    /**
+     * Joins two subtrees and a node between them like joinSubtrees, for subtrees that were
+     * not next to each other in the same tree, so node is first linked between the maximum
+     * of left and the minimum of right. a subtree split from a tree keeps the links between
+     * its own nodes, so only the joins of parts of different trees have to link them.
+     */
+    private WAVLNode joinLinked(WAVLNode left, WAVLNode middle, WAVLNode right) {
+        linkBetween(left, middle, right);
+        return joinSubtrees(left, middle, right);
+    }
+
+    /**
+     * Joins two subtrees like joinSubtrees, linking them as joinLinked does
+     */
+    private WAVLNode joinLinked(WAVLNode left, WAVLNode right) {
+        if (left.isExternalNode()) {
+            return right;
+        }
+
+        WAVLNode[] parts = splitMaximum(left);
+        return joinLinked(parts[0], parts[1], right);
+    }
+
+    /**
+     * Sets left and right as the sons of node
+     */
+    private void setSons(WAVLNode node, WAVLNode left, WAVLNode right) {
+        node.left = left;
+        left.setParent(node);
+        node.right = right;
+        right.setParent(node);
+    }
+
+    /**
+     * Splits a subtree around a key.
+     *
+     * @param node - the root of the subtree, or the external node
+     * @return the root of the subtree of keys smaller than key, the node with key or null if
+     * there is none, and the root of the subtree of keys greater than key
+     */
+    private WAVLNode[] splitSubtree(WAVLNode node, int key) {
+        if (node.isExternalNode()) {
+            return new WAVLNode[]{EXTERNAL, null, EXTERNAL};
+        }
+
+        WAVLNode left = node.left;
+        WAVLNode right = node.right;
+        detachSons(node);
+        if (node.key == key) {
+            return new WAVLNode[]{left, node, right};
+        }
+
+        WAVLNode[] parts;
+        if (key < node.key) {
+            parts = splitSubtree(left, key);
+            parts[2] = joinSubtrees(parts[2], node, right);
+        } else {
+            parts = splitSubtree(right, key);
+            parts[0] = joinSubtrees(left, node, parts[0]);
+        }
+
+        return parts;
+    }
+
+    /**
+     * Takes the node with the maximum key out of a subtree.
+     *
+     * @param node - the root of the subtree, assuming it is not the external node
+     * @return the root of the subtree without its maximum, and the maximum node
+     */
+    private WAVLNode[] splitMaximum(WAVLNode node) {
+        WAVLNode left = node.left;
+        WAVLNode right = node.right;
+        detachSons(node);
+        if (right.isExternalNode()) {
+            return new WAVLNode[]{left, node};
+        }
+
+        WAVLNode[] parts = splitMaximum(right);
+        parts[0] = joinSubtrees(left, node, parts[0]);
+        return parts;
+    }
+
+    /**
+     * Unites two subtrees by splitting second around the root of first, uniting the halves
+     * recursively, and joining them with the root of first in the middle.
+     *
+     * @return the root of the united subtree. on equal keys, the node of first is kept
+     */
+    private WAVLNode unionSubtrees(WAVLNode first, WAVLNode second) {
+        if (first.isExternalNode()) {
+            return second;
+        }
+        if (second.isExternalNode()) {
+            return first;
+        }
+
+        WAVLNode left = first.left;
+        WAVLNode right = first.right;
+        detachSons(first);
+        WAVLNode[] parts = splitSubtree(second, first.key);
+        if (parts[1] != null) {
+            parts[1].deleteFields();
+        }
+
+        return joinLinked(unionSubtrees(left, parts[0]), first, unionSubtrees(right, parts[2]));
+    }
+
+    /**
+     * Intersects two subtrees by splitting second around the root of first, intersecting the
+     * halves recursively, and joining them with the root of first in the middle if its key is
+     * also in second.
+     *
+     * @return the root of the subtree of the nodes of first whose keys are in second
+     */
+    private WAVLNode intersectSubtrees(WAVLNode first, WAVLNode second) {
+        if (first.isExternalNode() || second.isExternalNode()) {
+            return EXTERNAL;
+        }
+
+        WAVLNode left = first.left;
+        WAVLNode right = first.right;
+        detachSons(first);
+        WAVLNode[] parts = splitSubtree(second, first.key);
+        WAVLNode intersectedLeft = intersectSubtrees(left, parts[0]);
+        WAVLNode intersectedRight = intersectSubtrees(right, parts[2]);
+        if (parts[1] == null) {
+            first.deleteFields();
+            return joinLinked(intersectedLeft, intersectedRight);
+        }
+
+        parts[1].deleteFields();
+        return joinLinked(intersectedLeft, first, intersectedRight);
+    }
+
+    /**
+     * Subtracts second from first by splitting first around the root of second, subtracting
+     * the halves recursively, and joining them without the root of second's key.
+     *
+     * @return the root of the subtree of the nodes of first whose keys are not in second
+     */
+    private WAVLNode subtractSubtrees(WAVLNode first, WAVLNode second) {
+        if (first.isExternalNode() || second.isExternalNode()) {
+            return first;
+        }
+
+        WAVLNode left = second.left;
+        WAVLNode right = second.right;
+        detachSons(second);
+        WAVLNode[] parts = splitSubtree(first, second.key);
+        if (parts[1] != null) {
+            parts[1].deleteFields();
+        }
+
+        return joinLinked(subtractSubtrees(parts[0], left), subtractSubtrees(parts[2], right));
+    }
+
+    /**
+     * Checks the rules of the WAVL tree and the fields the nodes keep: the rank differences of
+     * 1 or 2, the rank 0 of the leaves, the parent links, the subtree sizes and aggregates, the
+     * prev and next links in ascending order of keys and in the order of the tree, and the
+     * size, min and max of the tree. after relaxed deletes the rank differences only have to be
+     * positive, and the rank of the root must be within the bound setRelaxed gives. for the testers.
+     * throws IllegalStateException at the first broken rule.
+     */
+    void checkInvariants() {
+        if (empty()) {
+            if (root != null || min != null || max != null) {
+                throw new IllegalStateException("an empty tree has a root, min or max");
+            }
+            return;
+        }
+        if (root.parent != null) {
+            throw new IllegalStateException("the root has a parent");
+        }
+        if (relaxedDeletes > size || (!relaxed && relaxedDeletes > 0)) {
+            throw new IllegalStateException("the tree wasn't rebuilt after " + relaxedDeletes + " relaxed deletes");
+        }
+        // the items the tree has had since it was rebuilt
+        double items = (double) size + relaxedDeletes;
+        if (relaxedDeletes > 0 && root.rank > Math.log(items) / Math.log((1 + Math.sqrt(5)) / 2)) {
+            throw new IllegalStateException("the root has rank " + root.rank + " after " + relaxedDeletes + " relaxed deletes");
+        }
+
+        int linked = 0;
+        WAVLNode previous = null;
+        for (WAVLNode node = min; node != null; node = node.next) {
+            if (node.prev != previous || (previous != null && previous.key >= node.key)) {
+                throw new IllegalStateException("the links at key " + node.key + " are out of order");
+            }
+            if (++linked > size) {
+                throw new IllegalStateException("the links hold more nodes than the size " + size);
+            }
+            previous = node;
+        }
+        if (linked != size || previous != max) {
+            throw new IllegalStateException("the links don't match the size or max of the tree");
+        }
+
+        WAVLNode[] expected = {min}; // the next node of the links, which the walk of the tree must reach next
+        if (checkSubtree(root, expected) != size || expected[0] != null) {
+            throw new IllegalStateException("the size of the tree doesn't match its nodes");
+        }
+    }
+
+    /**
+     * Checks the subtree of node as checkInvariants does, walking it in order
+     *
+     * @param expected - holds the node the walk must reach next, and is moved along its links
+     * @return the number of nodes in the subtree
+     */
+    private int checkSubtree(WAVLNode node, WAVLNode[] expected) {
+        if (node.isExternalNode()) {
+            return 0;
+        }
+
+        int leftDifference = node.leftChildRankDifference();
+        int rightDifference = node.rightChildRankDifference();
+        int maxDifference = relaxedDeletes > 0 ? Integer.MAX_VALUE : 2;
+        if (leftDifference < 1 || leftDifference > maxDifference || rightDifference < 1 || rightDifference > maxDifference) {
+            throw new IllegalStateException("key " + node.key + " has rank differences " + leftDifference + ", " + rightDifference);
+        }
+        if (node.isLeafNode() && node.rank != 0 && relaxedDeletes == 0) {
+            throw new IllegalStateException("leaf " + node.key + " has rank " + node.rank);
+        }
+        if ((!node.left.isExternalNode() && node.left.parent != node) || (!node.right.isExternalNode() && node.right.parent != node)) {
+            throw new IllegalStateException("a son of key " + node.key + " has another parent");
+        }
+
+        int count = checkSubtree(node.left, expected);
+        if (expected[0] != node) {
+            throw new IllegalStateException("key " + node.key + " is out of the order of the links");
+        }
+        expected[0] = node.next;
+        count += 1 + checkSubtree(node.right, expected);
+        if (node.subtreeSize != count) {
+            throw new IllegalStateException("key " + node.key + " has subtree size " + node.subtreeSize + " instead of " + count);
+        }
+
+        if (augmentation != null) {
+            Object aggregate = augmentation.valueOf(node.key, node.info);
+            if (!node.left.isExternalNode()) {
+                aggregate = augmentation.combine(node.left.aggregate, aggregate);
+            }
+            if (!node.right.isExternalNode()) {
+                aggregate = augmentation.combine(aggregate, node.right.aggregate);
+            }
+            if (!Objects.deepEquals(aggregate, node.aggregate)) {
+                throw new IllegalStateException("key " + node.key + " has a stale aggregate");
+            }
+        }
+        return count;
+    }
+
+    /**
+     * public interface IntObjConsumer
+     *
+     * an operation on the key and info of an item
+     */
+    public interface IntObjConsumer {
+        void accept(int key, String info);
+    }
+
+    /**
+     * public interface Augmentation
+     *
+     * a monoid over the items of a tree: every item has a value, and combine must be associative
+     * with identity as its identity. aggregate(lo, hi) combines the values of the items of a
+     * range in ascending order of keys, so combine doesn't have to be commutative. for example
+     * the sum of the keys has identity 0, valueOf(k, i) = k and combine(a, b) = a + b.
+     */
+    public interface Augmentation<A> {
+        A identity();
+
+        A valueOf(int key, String info);
+
+        A combine(A first, A second);
+    }
+
+    /**
+     * public interface IntObjAccumulator
+     *
+     * folds the key and info of an item into a result
+     */
+    public interface IntObjAccumulator<U> {
+        U apply(U result, int key, String info);
+    }
+
+    /**
+     * Writes the format of writeTo through a buffer
+     */
+    private static class SnapshotOutput {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[SNAPSHOT_BUFFER_SIZE];
+        private int position;
+        private boolean first = true;
+        private int previousKey;
+
+        SnapshotOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeHeader(int count) throws IOException {
+            for (byte b : SNAPSHOT_MAGIC) {
+                buffer[position++] = b;
+            }
+            buffer[position++] = SNAPSHOT_VERSION;
+            writeVarint(count);
+        }
+
+        void writeItem(int key, String info) throws IOException {
+            // the first key is zigzag encoded since it may be negative, and every later key is
+            // greater than the previous one, so its distance minus one is encoded
+            writeVarint(first ? ((key << 1) ^ (key >> 31)) & 0xFFFFFFFFL : (long) key - previousKey - 1);
+            first = false;
+            previousKey = key;
+
+            if (info == null) {
+                writeVarint(0);
+                return;
+            }
+
+            byte[] bytes = info.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length + 1L);
+            if (bytes.length > buffer.length - position) {
+                flush();
+            }
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+            } else {
+                System.arraycopy(bytes, 0, buffer, position, bytes.length);
+                position += bytes.length;
+            }
+        }
+
+        private void writeVarint(long value) throws IOException {
+            if (buffer.length - position < 10) {
+                flush();
+            }
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void flush() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads the format of writeTo through a buffer
+     */
+    private static class SnapshotInput {
+        private final InputStream in;
+        private final byte[] buffer = new byte[SNAPSHOT_BUFFER_SIZE];
+        private int position;
+        private int limit;
+        private boolean first = true;
+        private int previousKey;
+
+        SnapshotInput(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return the number of items of the snapshot
+         */
+        int readHeader() throws IOException {
+            for (byte b : SNAPSHOT_MAGIC) {
+                if (readByte() != (b & 0xFF)) {
+                    throw new IOException("not a tree snapshot");
+                }
+            }
+            int version = readByte();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("unsupported snapshot version " + version);
+            }
+
+            long count = readVarint();
+            if (count > Integer.MAX_VALUE) {
+                throw new IOException("corrupt snapshot: " + count + " items");
+            }
+            return (int) count;
+        }
+
+        int readKey() throws IOException {
+            long value = readVarint();
+            long key;
+            if (first) {
+                key = (int) (value >>> 1) ^ -(int) (value & 1);
+                first = false;
+            } else {
+                key = previousKey + value + 1;
+            }
+            if (value > 0xFFFFFFFFL || key > Integer.MAX_VALUE) {
+                throw new IOException("corrupt snapshot: keys out of order");
+            }
+
+            previousKey = (int) key;
+            return previousKey;
+        }
+
+        String readInfo() throws IOException {
+            long length = readVarint() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("corrupt snapshot: info of " + length + " bytes");
+            }
+
+            int remaining = (int) length;
+            if (remaining <= buffer.length) {
+                if (limit - position < remaining) {
+                    // move the bytes that were read to the start of the buffer and read the rest after them
+                    System.arraycopy(buffer, position, buffer, 0, limit - position);
+                    limit -= position;
+                    position = 0;
+                    while (limit < remaining) {
+                        fill(limit);
+                    }
+                }
+
+                String info = new String(buffer, position, remaining, StandardCharsets.UTF_8);
+                position += remaining;
+                return info;
+            }
+
+            byte[] bytes = new byte[remaining];
+            int read = limit - position;
+            System.arraycopy(buffer, position, bytes, 0, read);
+            position = limit;
+            while (read < remaining) {
+                int n = in.read(bytes, read, remaining - read);
+                if (n < 0) {
+                    throw new EOFException("the snapshot ended in the middle of an info");
+                }
+                read += n;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("corrupt snapshot: varint too long");
+        }
+
+        private int readByte() throws IOException {
+            if (position == limit) {
+                position = 0;
+                limit = 0;
+                fill(0);
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        /**
+         * reads more bytes into the buffer from index from, which is the limit of the buffer
+         */
+        private void fill(int from) throws IOException {
+            int n = in.read(buffer, from, buffer.length - from);
+            if (n < 0) {
+                throw new EOFException("the snapshot ended too soon");
+            }
+            limit = from + n;
+        }
+    }
+
+    /**
+     * public static class BatchResult
+     *
+     * the outcome of insertAll or deleteAll
+     */
+    public static class BatchResult {
+        private final int count;
+        private final int rebalanceCount;
+
+        private BatchResult(int count, int rebalanceCount) {
+            this.count = count;
+            this.rebalanceCount = rebalanceCount;
+        }
+
+        /**
+         * returns the number of items that were inserted or deleted
+         */
+        public int count() {
+            return count;
+        }
+
+        /**
+         * returns the number of rebalancing operations done by the batch
+         */
+        public int rebalanceCount() {
+            return rebalanceCount;
+        }
+    }
+
+    /**
+     * public class Cursor
+     *
+     * A reusable position in the sorted order of the items of the tree. moving the cursor
+     * to the next item takes amortized O(1) time and allocates nothing. the cursor is not
+     * valid after the tree is modified, until it is positioned again.
+     */
+    public class Cursor {
+        private WAVLNode node; // the current item, or null if the cursor is not on an item
+
+        private Cursor() {
+        }
+
+        /**
+         * Positions the cursor on the item with the smallest key that is greater than or equal to key.
+         *
+         * @return true if there is such an item, false otherwise
+         */
+        public boolean seek(int key) {
+            node = ceilingNode(key);
+            return node != null;
+        }
+
+        /**
+         * Positions the cursor on the item with the smallest key in the tree.
+         *
+         * @return true if the tree is not empty, false otherwise
+         */
+        public boolean first() {
+            node = min;
+            return node != null;
+        }
+
+        /**
+         * Moves the cursor to the next item.
+         *
+         * @return true if there is a next item, false if the cursor was on the last item or not on any item
+         */
+        public boolean next() {
+            if (node != null) {
+                node = findSuccessor(node);
+            }
+            return node != null;
+        }
+
+        /**
+         * @return true if the cursor is on an item
+         */
+        public boolean valid() {
+            return node != null;
+        }
+
+        /**
+         * @return the key of the current item. throws NoSuchElementException if the cursor is not on an item
+         */
+        public int key() {
+            return current().key;
+        }
+
+        /**
+         * @return the info of the current item. throws NoSuchElementException if the cursor is not on an item
+         */
+        public String info() {
+            return current().info;
+        }
+
+        private WAVLNode current() {
+            if (node == null) {
+                throw new NoSuchElementException();
+            }
+            return node;
+        }
+    }
+
+    /**
+     * A spliterator over a range of the items of the tree, given by the indices of the items
+     * in the sorted order. it walks the range through the successors of its first node, and
+     * splits at the middle index, which is found through the subtree sizes.
+     */
+    private abstract class NodeSpliterator {
+        WAVLNode node; // the next node to visit
+        int index; // the index of node in the sorted order
+        final int fence; // the index after the last node of the range
+
+        NodeSpliterator(WAVLNode node, int index, int fence) {
+            this.node = node;
+            this.index = index;
+            this.fence = fence;
+        }
+
+        /**
+         * @return the next node of the range, or null if the range is done
+         */
+        WAVLNode nextNode() {
+            if (index >= fence) {
+                return null;
+            }
+
+            WAVLNode current = node;
+            index++;
+            node = index < fence ? findSuccessor(current) : null;
+            return current;
+        }
+
+        /**
+         * Gives the first half of the remaining range to a new spliterator and keeps the second half.
+         *
+         * @return the first node of the second half, or null if the range is too small to split
+         */
+        WAVLNode splitAtMiddle() {
+            if (fence - index < 2) {
+                return null;
+            }
+
+            int middle = (index + fence) >>> 1;
+            WAVLNode middleNode = selectNode(middle);
+            node = middleNode;
+            index = middle;
+            return middleNode;
+        }
+
+        public long estimateSize() {
+            return fence - index;
+        }
+    }
+
+    private class KeySpliterator extends NodeSpliterator implements Spliterator.OfInt {
+        KeySpliterator(WAVLNode node, int index, int fence) {
+            super(node, index, fence);
+        }
+
+        public OfInt trySplit() {
+            WAVLNode first = node;
+            int firstIndex = index;
+            if (splitAtMiddle() == null) {
+                return null;
+            }
+            return new KeySpliterator(first, firstIndex, index);
+        }
+
+        public boolean tryAdvance(IntConsumer action) {
+            WAVLNode current = nextNode();
+            if (current == null) {
+                return false;
+            }
+            action.accept(current.key);
+            return true;
+        }
+
+        public void forEachRemaining(IntConsumer action) {
+            for (WAVLNode current = nextNode(); current != null; current = nextNode()) {
+                action.accept(current.key);
+            }
+        }
+
+        public int characteristics() {
+            return ORDERED | SORTED | DISTINCT | NONNULL | SIZED | SUBSIZED;
+        }
+
+        public Comparator<? super Integer> getComparator() {
+            return null; // the keys are in their natural order
+        }
+    }
+
+    private class InfoSpliterator extends NodeSpliterator implements Spliterator<String> {
+        InfoSpliterator(WAVLNode node, int index, int fence) {
+            super(node, index, fence);
+        }
+
+        public Spliterator<String> trySplit() {
+            WAVLNode first = node;
+            int firstIndex = index;
+            if (splitAtMiddle() == null) {
+                return null;
+            }
+            return new InfoSpliterator(first, firstIndex, index);
+        }
+
+        public boolean tryAdvance(Consumer<? super String> action) {
+            WAVLNode current = nextNode();
+            if (current == null) {
+                return false;
+            }
+            action.accept(current.info);
+            return true;
+        }
+
+        public void forEachRemaining(Consumer<? super String> action) {
+            for (WAVLNode current = nextNode(); current != null; current = nextNode()) {
+                action.accept(current.info);
+            }
+        }
+
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED;
+        }
+    }
+
+    /**
+     * Writes the keys or the infos of a subtree into an array, starting at offset. a subtree of
+     * at least PARALLEL_THRESHOLD nodes writes its root and forks a task for each of its sons.
+     */
+    private class ExportTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final WAVLNode node;
+        private final int offset;
+        private final int[] keys; // null when exporting the infos
+        private final String[] infos; // null when exporting the keys
+
+        ExportTask(WAVLNode node, int offset, int[] keys, String[] infos) {
+            this.node = node;
+            this.offset = offset;
+            this.keys = keys;
+            this.infos = infos;
+        }
+
+        protected void compute() {
+            int count = node.subtreeSize;
+            if (count < PARALLEL_THRESHOLD) {
+                WAVLNode current = count == 0 ? null : minimumNode(node);
+                for (int index = offset; index < offset + count; index++) {
+                    if (keys != null) {
+                        keys[index] = current.key;
+                    } else {
+                        infos[index] = current.info;
+                    }
+                    current = findSuccessor(current);
+                }
+                return;
+            }
+
+            int nodeIndex = offset + node.left.subtreeSize;
+            if (keys != null) {
+                keys[nodeIndex] = node.key;
+            } else {
+                infos[nodeIndex] = node.info;
+            }
+            invokeAll(new ExportTask(node.left, offset, keys, infos),
+                    new ExportTask(node.right, nodeIndex + 1, keys, infos));
+        }
+    }
+
+    /**
+     * Passes the items of a subtree to a consumer, splitting it as ExportTask does
+     */
+    private class ForEachTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final WAVLNode node;
+        private final IntObjConsumer consumer;
+
+        ForEachTask(WAVLNode node, IntObjConsumer consumer) {
+            this.node = node;
+            this.consumer = consumer;
+        }
+
+        protected void compute() {
+            int count = node.subtreeSize;
+            if (count < PARALLEL_THRESHOLD) {
+                WAVLNode current = count == 0 ? null : minimumNode(node);
+                for (int i = 0; i < count; i++) {
+                    consumer.accept(current.key, current.info);
+                    current = findSuccessor(current);
+                }
+                return;
+            }
+
+            invokeAll(new ForEachTask(node.left, consumer), new ForEachTask(node.right, consumer));
+            consumer.accept(node.key, node.info);
+        }
+    }
+
+    /**
+     * Folds the items of a subtree in ascending order of keys, splitting it as ExportTask does
+     */
+    private class ReduceTask<U> extends RecursiveTask<U> {
+        private static final long serialVersionUID = 1L;
+
+        private final WAVLNode node;
+        private final U identity;
+        private final IntObjAccumulator<U> accumulator;
+        private final BinaryOperator<U> combiner;
+
+        ReduceTask(WAVLNode node, U identity, IntObjAccumulator<U> accumulator, BinaryOperator<U> combiner) {
+            this.node = node;
+            this.identity = identity;
+            this.accumulator = accumulator;
+            this.combiner = combiner;
+        }
+
+        protected U compute() {
+            int count = node.subtreeSize;
+            if (count < PARALLEL_THRESHOLD) {
+                U result = identity;
+                WAVLNode current = count == 0 ? null : minimumNode(node);
+                for (int i = 0; i < count; i++) {
+                    result = accumulator.apply(result, current.key, current.info);
+                    current = findSuccessor(current);
+                }
+                return result;
+            }
+
+            ReduceTask<U> left = new ReduceTask<>(node.left, identity, accumulator, combiner);
+            left.fork();
+            U right = new ReduceTask<>(node.right, identity, accumulator, combiner).compute();
+            U result = accumulator.apply(left.join(), node.key, node.info);
+            return combiner.apply(result, right);
+        }
+    }
+
+    /**
+     * private static class WAVLNode
+     */
+    private static class WAVLNode {
+
+        public int key;
+        public String info;
+        public int rank;
+        public WAVLNode parent;
+        public WAVLNode left;
+        public WAVLNode right;
+        public int subtreeSize; // the number of nodes in the subtree of this node, 0 for the external node
+        public Object aggregate; // the aggregate of the subtree of this node in the tree's augmentation, or null
+        public WAVLNode prev; // the node before this node in the order of keys, or null if it is the first
+        public WAVLNode next; // the node after this node in the order of keys, or null if it is the last
+
+        /**
+         * Creating External node
+         */
+        public WAVLNode() {
+            this.rank = -1;
+        }
+
+        /**
+         * Constructor for a new leaf node.
+         */
+        public WAVLNode(int key, String info, WAVLNode parent) {
+            this.key = key;
+            this.info = info;
+            this.rank = 0;
+            this.parent = parent;
+            this.right = EXTERNAL;
+            this.left = EXTERNAL;
+            this.subtreeSize = 1;
+        }
+
+        public boolean isExternalNode() {
+            return rank == -1;
+        }
+
+        /**
+         * @return true if this node is a leaf and false otherwise
+         */
+        public boolean isLeafNode() {
+            return left == EXTERNAL && right == EXTERNAL;
+        }
+
+        /**
+         * @return true if this node has only one son that isn;t external
+         */
+        public boolean isUnaryNode() {
+            return (this.left.isExternalNode() ^ this.right.isExternalNode());
+        }
+
+        /**
+         * @return -1 if this.parent is null and the rank difference between this and its parent otherwise.
+         */
         public int rankDifference() {
             if (this.parent == null)
                 return -1;
@@ -667,6 +2890,13 @@ public class WAVLTree {
         }
 
 
+        /**
+         * recomputes the size of the subtree of this node from the sizes of the subtrees of its sons
+         */
+        public void updateSubtreeSize() {
+            subtreeSize = left.subtreeSize + right.subtreeSize + 1;
+        }
+
         public void promote() {
             rank++;
         }
@@ -679,7 +2909,10 @@ public class WAVLTree {
             this.left = null;
             this.right = null;
             this.parent = null;
+            this.prev = null;
+            this.next = null;
             this.info = null;
+            this.aggregate = null;
         }
     }
 }
@@ -0,0 +1,1278 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * WAVLTreeBenchmark
+ *
+ * Measures the throughput and the allocation rate of the tree operations, so that changes
+ * to the trees can be compared against a baseline.
+ *
+ * Every combination of benchmark, implementation, key distribution and tree size is run as
+ * a number of warmup iterations followed by measured iterations. An iteration repeats the
+ * benchmark until its timed sections add up to the iteration time; work that only prepares
+ * the tree (like filling it before a delete benchmark) is not timed. For every combination
+ * the mean throughput and its standard deviation over the measured iterations is printed,
+ * together with the bytes allocated per operation and the number of garbage collections
+ * that ran during the timed sections.
+ *
+ * The memory benchmark fills a tree with items whose info is a 64-bit id - a decimal String
+ * for the trees with String info, a long for IntLongWAVLTree and 8 bytes for IntBytesWAVLTree -
+ * and prints the heap the tree retains per item, measured between full garbage collections.
+ *
+ * The concurrent benchmarks run the same mix of operations from several threads on one shared
+ * tree, once for every thread count, and report the total throughput of all the threads.
+ *
+ * usage: java WAVLTreeBenchmark [-b benchmark,...] [-impl implementation,...] [-d distribution,...]
+ *                               [-s size,...] [-wi warmupIterations] [-i iterations] [-t millisPerIteration]
+ *                               [-threads threadCount,...]
+ *
+ * benchmarks:    insert, delete, search, mixed95, mixed50, keysToArray, infoToArray,
+ *                parallelKeysToArray, parallelInfoToArray (the exports split over the common ForkJoinPool),
+ *                batch, batchLoop (a batch of insertAll and deleteAll, and the same batch one key at a time),
+ *                local, localFinger (searches for keys close to the previous key, with search and with fingerSearch),
+ *                queue (pollMin and an insert of a new key on a full tree, to compare with a heap, not run by default),
+ *                memory (the heap a full tree retains per item, not run by default)
+ *                concurrent100, concurrent95, concurrent50 (not run by default)
+ * implementations: WAVLTree, ArrayWAVLTree, ConcurrentWAVLTree, PersistentWAVLTree, LongWAVLTree, OffHeapWAVLTree,
+ *                  BlockedWAVLTree (items in sorted blocks at the nodes, compare with WAVLTree on search),
+ *                  IntLongWAVLTree and IntBytesWAVLTree (memory only),
+ *                  LockedWAVLTree (a WAVLTree behind one global lock, the baseline for ConcurrentWAVLTree),
+ *                  ShardedWAVLTree (WAVLTrees over ranges of keys with a lock each, compare on concurrent50),
+ *                  MeteredWAVLTree (a WAVLTree with WAVLTreeMetrics attached, to measure their cost),
+ *                  RelaxedWAVLTree (a WAVLTree with relaxed deletes, compare with WAVLTree on delete and mixed50),
+ *                  SyncLoggedWAVLTree and GroupLoggedWAVLTree (a WAVLTree changed through a WAVLTreeLog in a
+ *                  temporary directory, concurrent benchmarks only, compare GROUP with SYNC on concurrent50),
+ *                  PriorityQueue (a java.util.PriorityQueue of the keys, the baseline of queue only)
+ * a benchmark an implementation doesn't support is skipped, and reported as n/a.
+ * distributions: sequential, random, zipfian
+ * sizes default to 1000,10000,100000,1000000. sizes of 1e7 and 1e8 need a heap of several gigabytes.
+ */
+public class WAVLTreeBenchmark {
+    private static final String INFO = "info"; // every item has the same info so only the tree itself allocates
+    private static final int ACCESS_TABLE_SIZE = 1 << 20;
+    private static final int BATCH_SIZE = 1 << 14;
+    private static final int STOP_CHECK_INTERVAL = 256; // the operations a concurrent thread runs between checks for the end of an iteration
+
+    private static volatile int sink; // results are folded here so the JIT cannot drop the measured work
+    private static Object retained; // keeps the tree of the memory benchmark reachable while it is measured
+
+    public static void main(String[] args) {
+        String[] benchmarks = {"insert", "delete", "search", "mixed95", "mixed50", "keysToArray", "infoToArray"};
+        String[] implementations = {"WAVLTree", "ArrayWAVLTree"};
+        String[] distributions = {"sequential", "random", "zipfian"};
+        int[] sizes = {1000, 10000, 100000, 1000000};
+        int warmupIterations = 5;
+        int iterations = 5;
+        int iterationMillis = 1000;
+        int[] threadCounts = {1, 2, 4, 8};
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-b": benchmarks = value.split(","); break;
+                case "-impl": implementations = value.split(","); break;
+                case "-d": distributions = value.split(","); break;
+                case "-s": sizes = parseSizes(value); break;
+                case "-wi": warmupIterations = Integer.parseInt(value); break;
+                case "-i": iterations = Integer.parseInt(value); break;
+                case "-t": iterationMillis = Integer.parseInt(value); break;
+                case "-threads": threadCounts = parseSizes(value); break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+
+        System.out.printf("%-16s %-18s %-11s %10s %16s %12s %10s %10s %6s%n",
+                "Benchmark", "Implementation", "Keys", "Size", "ops/s", "+-", "ns/op", "B/op", "GCs");
+        for (String benchmark : benchmarks) {
+            for (String implementation : implementations) {
+                if (!supports(benchmark, implementation)) {
+                    System.out.printf("%-16s %-18s %-11s %10s %16s%n", benchmark, implementation, "-", "-", "n/a");
+                    continue;
+                }
+                for (String distribution : distributions) {
+                    KeyDistribution keys = KeyDistribution.valueOf(distribution.toUpperCase(Locale.ROOT));
+                    for (int size : sizes) {
+                        if (benchmark.equals("memory")) {
+                            double bytes = measureMemory(implementation, keys, size);
+                            System.out.printf("%-16s %-18s %-11s %10d %16.1f bytes/item%n",
+                                    benchmark, implementation, distribution, size, bytes);
+                            continue;
+                        }
+                        if (benchmark.startsWith("concurrent")) {
+                            int readPercent = Integer.parseInt(benchmark.substring("concurrent".length()));
+                            for (int threads : threadCounts) {
+                                ConcurrentWorkload workload = new ConcurrentWorkload(implementation(implementation),
+                                        keys, size, readPercent, threads);
+                                Result result = measureConcurrent(workload, warmupIterations, iterations, iterationMillis);
+                                print(benchmark + "/" + threads, implementation, distribution, size, result);
+                            }
+                            continue;
+                        }
+
+                        Workload workload = createWorkload(benchmark, implementation(implementation), keys, size);
+                        Result result = measure(workload, warmupIterations, iterations, iterationMillis * 1000000L);
+                        print(benchmark, implementation, distribution, size, result);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void print(String benchmark, String implementation, String distribution, int size, Result result) {
+        System.out.printf("%-16s %-18s %-11s %10d %16.1f %12.1f %10.1f %10.1f %6d%n",
+                benchmark, implementation, distribution, size, result.meanOpsPerSecond,
+                result.deviation, 1e9 / result.meanOpsPerSecond, result.bytesPerOp, result.collections);
+    }
+
+    /**
+     * @return true if the implementation has the operations the benchmark measures
+     */
+    private static boolean supports(String benchmark, String implementation) {
+        if (benchmark.equals("memory")) {
+            return true;
+        }
+        if (implementation.equals("IntLongWAVLTree") || implementation.equals("IntBytesWAVLTree")) {
+            return false; // their infos aren't Strings, so they only run the memory benchmark
+        }
+        return implementation(implementation).supports(benchmark);
+    }
+
+    private static int[] parseSizes(String value) {
+        String[] parts = value.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = (int) Double.parseDouble(parts[i]); // accepts 1e6 as well as 1000000
+        }
+        return sizes;
+    }
+
+    /**
+     * Runs the warmup and the measured iterations of a workload
+     */
+    private static Result measure(Workload workload, int warmupIterations, int iterations, long iterationNanos) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        double[] opsPerSecond = new double[iterations];
+        long measuredOps = 0;
+        long measuredBytes = 0;
+        long collections = 0;
+
+        for (int iteration = 0; iteration < warmupIterations + iterations; iteration++) {
+            long ops = 0;
+            long nanos = 0;
+            long bytes = 0;
+            long gcs = 0;
+            while (nanos < iterationNanos) {
+                workload.prepare();
+                long gcsBefore = collectionCount();
+                long bytesBefore = allocatedBytes(threads);
+                long start = System.nanoTime();
+                ops += workload.run();
+                nanos += System.nanoTime() - start;
+                bytes += allocatedBytes(threads) - bytesBefore;
+                gcs += collectionCount() - gcsBefore;
+            }
+
+            if (iteration >= warmupIterations) {
+                opsPerSecond[iteration - warmupIterations] = ops * 1e9 / nanos;
+                measuredOps += ops;
+                measuredBytes += bytes;
+                collections += gcs;
+            }
+        }
+
+        return summarize(opsPerSecond, measuredOps, measuredBytes, collections);
+    }
+
+    /**
+     * Runs the warmup and the measured iterations of a concurrent workload. the threads of an
+     * iteration start together and run for the iteration time.
+     */
+    private static Result measureConcurrent(ConcurrentWorkload workload, int warmupIterations, int iterations,
+                                            int iterationMillis) {
+        double[] opsPerSecond = new double[iterations];
+        long measuredOps = 0;
+        long measuredBytes = 0;
+        long collections = 0;
+
+        for (int iteration = 0; iteration < warmupIterations + iterations; iteration++) {
+            long gcsBefore = collectionCount();
+            long start = System.nanoTime();
+            long[] opsAndBytes = workload.run(iterationMillis);
+            long nanos = System.nanoTime() - start;
+            long gcs = collectionCount() - gcsBefore;
+
+            if (iteration >= warmupIterations) {
+                opsPerSecond[iteration - warmupIterations] = opsAndBytes[0] * 1e9 / nanos;
+                measuredOps += opsAndBytes[0];
+                measuredBytes += opsAndBytes[1];
+                collections += gcs;
+            }
+        }
+
+        return summarize(opsPerSecond, measuredOps, measuredBytes, collections);
+    }
+
+    /**
+     * @return the bytes of heap retained per item by a tree of the given size
+     */
+    private static double measureMemory(String implementation, KeyDistribution distribution, int size) {
+        long before = usedHeap();
+        retained = fillWithIds(implementation, distribution, size);
+        long after = usedHeap();
+        retained = null;
+        return (after - before) / (double) size;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return a tree holding size items whose info is a 64-bit id derived from the key
+     */
+    private static Object fillWithIds(String implementation, KeyDistribution distribution, int size) {
+        switch (implementation) {
+            case "IntLongWAVLTree": {
+                IntLongWAVLTree tree = new IntLongWAVLTree();
+                for (int i = 0; i < size; i++) {
+                    int key = distribution.key(i);
+                    tree.insert(key, id(key));
+                }
+                return tree;
+            }
+            case "IntBytesWAVLTree": {
+                IntBytesWAVLTree tree = new IntBytesWAVLTree();
+                for (int i = 0; i < size; i++) {
+                    int key = distribution.key(i);
+                    long id = id(key);
+                    byte[] info = new byte[8];
+                    for (int b = 0; b < info.length; b++) {
+                        info[b] = (byte) (id >>> (8 * b));
+                    }
+                    tree.insert(key, info);
+                }
+                return tree;
+            }
+            default: {
+                Tree tree = implementation(implementation).create();
+                for (int i = 0; i < size; i++) {
+                    int key = distribution.key(i);
+                    tree.insert(key, Long.toString(id(key)));
+                }
+                return tree;
+            }
+        }
+    }
+
+    private static long id(int key) {
+        return key * 0x9E3779B97F4A7C15L;
+    }
+
+    private static Result summarize(double[] opsPerSecond, long measuredOps, long measuredBytes, long collections) {
+        int iterations = opsPerSecond.length;
+        double mean = 0;
+        for (double value : opsPerSecond) {
+            mean += value / iterations;
+        }
+        double variance = 0;
+        for (double value : opsPerSecond) {
+            variance += (value - mean) * (value - mean) / Math.max(1, iterations - 1);
+        }
+        return new Result(mean, Math.sqrt(variance), (double) measuredBytes / measuredOps, collections);
+    }
+
+    /**
+     * @return the number of bytes allocated so far by the current thread, or 0 if the JVM can't tell
+     */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static Workload createWorkload(String benchmark, Implementation implementation,
+                                           KeyDistribution distribution, int size) {
+        switch (benchmark) {
+            case "insert": return new InsertWorkload(implementation, distribution, size);
+            case "delete": return new DeleteWorkload(implementation, distribution, size);
+            case "search": return new MixedWorkload(implementation, distribution, size, 100);
+            case "mixed95": return new MixedWorkload(implementation, distribution, size, 95);
+            case "mixed50": return new MixedWorkload(implementation, distribution, size, 50);
+            case "keysToArray": return new ExportWorkload(implementation, distribution, size, false, false);
+            case "infoToArray": return new ExportWorkload(implementation, distribution, size, true, false);
+            case "parallelKeysToArray": return new ExportWorkload(implementation, distribution, size, false, true);
+            case "parallelInfoToArray": return new ExportWorkload(implementation, distribution, size, true, true);
+            case "batch": return new BatchWorkload(implementation, distribution, size, true);
+            case "batchLoop": return new BatchWorkload(implementation, distribution, size, false);
+            case "local": return new LocalWorkload(implementation, distribution, size, false);
+            case "localFinger": return new LocalWorkload(implementation, distribution, size, true);
+            case "queue": return new QueueWorkload(implementation, distribution, size);
+            default: throw new IllegalArgumentException("unknown benchmark " + benchmark);
+        }
+    }
+
+    private static Implementation implementation(String name) {
+        switch (name) {
+            case "WAVLTree": return WAVL_TREE;
+            case "MeteredWAVLTree": return METERED_WAVL_TREE;
+            case "RelaxedWAVLTree": return RELAXED_WAVL_TREE;
+            case "ArrayWAVLTree": return ARRAY_WAVL_TREE;
+            case "ConcurrentWAVLTree": return CONCURRENT_WAVL_TREE;
+            case "LockedWAVLTree": return LOCKED_WAVL_TREE;
+            case "ShardedWAVLTree": return SHARDED_WAVL_TREE;
+            case "SyncLoggedWAVLTree": return SYNC_LOGGED_WAVL_TREE;
+            case "GroupLoggedWAVLTree": return GROUP_LOGGED_WAVL_TREE;
+            case "PersistentWAVLTree": return PERSISTENT_WAVL_TREE;
+            case "LongWAVLTree": return LONG_WAVL_TREE;
+            case "OffHeapWAVLTree": return OFF_HEAP_WAVL_TREE;
+            case "BlockedWAVLTree": return BLOCKED_WAVL_TREE;
+            case "PriorityQueue": return PRIORITY_QUEUE;
+            default: throw new IllegalArgumentException("unknown implementation " + name);
+        }
+    }
+
+    /**
+     * Scrambles an index into a key. The mapping is a bijection of int, so distinct indices
+     * give distinct keys.
+     */
+    private static int scramble(int index) {
+        int key = index * 0x9E3779B1;
+        return key ^ (key >>> 16);
+    }
+
+    private static Tree fill(Implementation implementation, KeyDistribution distribution, int size) {
+        Tree tree = implementation.create();
+        for (int i = 0; i < size; i++) {
+            tree.insert(distribution.key(i), INFO);
+        }
+        return tree;
+    }
+
+    /**
+     * The order in which the keys of a tree are inserted and deleted, and the way they are
+     * picked by searches and updates.
+     */
+    private enum KeyDistribution {
+        /**
+         * the keys 0..size-1, inserted and accessed in ascending order
+         */
+        SEQUENTIAL {
+            int key(int index) {
+                return index;
+            }
+
+            int[] accessTable(int size, Random random) {
+                int[] table = new int[ACCESS_TABLE_SIZE];
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = key(i % size);
+                }
+                return table;
+            }
+        },
+        /**
+         * scrambled keys, inserted in random order and accessed uniformly
+         */
+        RANDOM {
+            int[] accessTable(int size, Random random) {
+                int[] table = new int[ACCESS_TABLE_SIZE];
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = key(random.nextInt(size));
+                }
+                return table;
+            }
+        },
+        /**
+         * scrambled keys, inserted in random order and accessed with a Zipfian skew (theta = 0.99)
+         */
+        ZIPFIAN {
+            int[] accessTable(int size, Random random) {
+                ZipfianGenerator generator = new ZipfianGenerator(size, 0.99);
+                int[] table = new int[ACCESS_TABLE_SIZE];
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = key(generator.next(random));
+                }
+                return table;
+            }
+        };
+
+        /**
+         * @return the key that is inserted index-th into a tree
+         */
+        int key(int index) {
+            return scramble(index);
+        }
+
+        /**
+         * @return a table of keys to search and update in a tree holding the keys of the indices 0..size-1
+         */
+        abstract int[] accessTable(int size, Random random);
+    }
+
+    /**
+     * Draws integers in [0, n) where i is drawn with probability proportional to 1/(i+1)^theta
+     * (Gray et al., "Quickly generating billion-record synthetic databases").
+     */
+    private static class ZipfianGenerator {
+        private final int n;
+        private final double theta;
+        private final double alpha;
+        private final double zetaN;
+        private final double eta;
+
+        ZipfianGenerator(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            this.alpha = 1 / (1 - theta);
+            double zeta = 0;
+            for (int i = 1; i <= n; i++) {
+                zeta += 1 / Math.pow(i, theta);
+            }
+            this.zetaN = zeta;
+            double zeta2 = 1 + 1 / Math.pow(2, theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+        }
+
+        int next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, theta)) {
+                return Math.min(1, n - 1);
+            }
+            return Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+
+    /**
+     * The operations of a tree implementation that are measured
+     */
+    private interface Tree {
+        int insert(int key, String info);
+
+        int delete(int key);
+
+        String search(int key);
+
+        int[] keysToArray();
+
+        String[] infoToArray();
+
+        // implementations without a batch operation run the batch one key at a time
+        default int insertAll(int[] keys, String[] infos) {
+            int result = 0;
+            for (int i = 0; i < keys.length; i++) {
+                result += insert(keys[i], infos[i]);
+            }
+            return result;
+        }
+
+        default int deleteAll(int[] keys) {
+            int result = 0;
+            for (int key : keys) {
+                result += delete(key);
+            }
+            return result;
+        }
+
+        default String fingerSearch(int key) {
+            return search(key);
+        }
+
+        // only called by the queue benchmark, which only implementations that support it run
+        default String pollMin() {
+            throw new UnsupportedOperationException("pollMin");
+        }
+
+        // implementations without a parallel export run the sequential one
+        default int[] parallelKeysToArray() {
+            return keysToArray();
+        }
+
+        default String[] parallelInfoToArray() {
+            return infoToArray();
+        }
+    }
+
+    private interface Implementation {
+        Tree create();
+
+        // every implementation runs all the benchmarks but queue, which needs pollMin
+        default boolean supports(String benchmark) {
+            return !benchmark.equals("queue");
+        }
+    }
+
+    private static final Implementation WAVL_TREE = new Implementation() {
+        public Tree create() {
+            return wavlTree(new WAVLTree());
+        }
+
+        public boolean supports(String benchmark) {
+            return true;
+        }
+    };
+
+    private static final Implementation METERED_WAVL_TREE = new Implementation() {
+        public Tree create() {
+            WAVLTree tree = new WAVLTree();
+            tree.setMetrics(new WAVLTreeMetrics());
+            return wavlTree(tree);
+        }
+
+        public boolean supports(String benchmark) {
+            return true;
+        }
+    };
+
+    private static final Implementation RELAXED_WAVL_TREE = new Implementation() {
+        public Tree create() {
+            WAVLTree tree = new WAVLTree();
+            tree.setRelaxed(true);
+            return wavlTree(tree);
+        }
+
+        public boolean supports(String benchmark) {
+            return true;
+        }
+    };
+
+    private static Tree wavlTree(final WAVLTree tree) {
+        return new Tree() {
+            public int insert(int key, String info) {
+                return tree.insert(key, info);
+            }
+
+            public int delete(int key) {
+                return tree.delete(key);
+            }
+
+            public String search(int key) {
+                return tree.search(key);
+            }
+
+            public int[] keysToArray() {
+                return tree.keysToArray();
+            }
+
+            public String[] infoToArray() {
+                return tree.infoToArray();
+            }
+
+            public int insertAll(int[] keys, String[] infos) {
+                return tree.insertAll(keys, infos).count();
+            }
+
+            public int deleteAll(int[] keys) {
+                return tree.deleteAll(keys).count();
+            }
+
+            public String fingerSearch(int key) {
+                return tree.fingerSearch(key);
+            }
+
+            public int[] parallelKeysToArray() {
+                return tree.parallelKeysToArray();
+            }
+
+            public String[] parallelInfoToArray() {
+                return tree.parallelInfoToArray();
+            }
+
+            public String pollMin() {
+                return tree.pollMin();
+            }
+        };
+    }
+
+    private static final Implementation ARRAY_WAVL_TREE = new Implementation() {
+        public Tree create() {
+            final ArrayWAVLTree tree = new ArrayWAVLTree();
+            return new Tree() {
+                public int insert(int key, String info) {
+                    return tree.insert(key, info);
+                }
+
+                public int delete(int key) {
+                    return tree.delete(key);
+                }
+
+                public String search(int key) {
+                    return tree.search(key);
+                }
+
+                public int[] keysToArray() {
+                    return tree.keysToArray();
+                }
+
+                public String[] infoToArray() {
+                    return tree.infoToArray();
+                }
+            };
+        }
+    };
+
+    private static final Implementation CONCURRENT_WAVL_TREE = new Implementation() {
+        public Tree create() {
+            final ConcurrentWAVLTree tree = new ConcurrentWAVLTree();
+            return new Tree() {
+                public int insert(int key, String info) {
+                    return tree.insert(key, info);
+                }
+
+                public int delete(int key) {
+                    return tree.delete(key);
+                }
+
+                public String search(int key) {
+                    return tree.search(key);
+                }
+
+                public int[] keysToArray() {
+                    return tree.keysToArray();
+                }
+
+                public String[] infoToArray() {
+                    return tree.infoToArray();
+                }
+            };
+        }
+    };
+
+    private static final Implementation SHARDED_WAVL_TREE = new Implementation() {
+        public Tree create() {
+            final ShardedWAVLTree tree = new ShardedWAVLTree();
+            return new Tree() {
+                public int insert(int key, String info) {
+                    return tree.insert(key, info);
+                }
+
+                public int delete(int key) {
+                    return tree.delete(key);
+                }
+
+                public String search(int key) {
+                    return tree.search(key);
+                }
+
+                public int[] keysToArray() {
+                    return tree.keysToArray();
+                }
+
+                public String[] infoToArray() {
+                    return tree.infoToArray();
+                }
+            };
+        }
+    };
+
+    private static final Implementation LONG_WAVL_TREE = new Implementation() {
+        public Tree create() {
+            final LongWAVLTree tree = new LongWAVLTree();
+            return new Tree() {
+                public int insert(int key, String info) {
+                    return tree.insert(key, info);
+                }
+
+                public int delete(int key) {
+                    return tree.delete(key);
+                }
+
+                public String search(int key) {
+                    return tree.search(key);
+                }
+
+                public int[] keysToArray() {
+                    long[] keys = tree.keysToArray();
+                    int[] array = new int[keys.length];
+                    for (int i = 0; i < keys.length; i++) {
+                        array[i] = (int) keys[i];
+                    }
+                    return array;
+                }
+
+                public String[] infoToArray() {
+                    return tree.infoToArray();
+                }
+            };
+        }
+    };
+
+    // a heap of the keys without their infos, which only supports the operations of the queue benchmark
+    private static final Implementation PRIORITY_QUEUE = new Implementation() {
+        public Tree create() {
+            final PriorityQueue<Integer> queue = new PriorityQueue<>();
+            return new Tree() {
+                public int insert(int key, String info) {
+                    queue.add(key);
+                    return 0;
+                }
+
+                public int delete(int key) {
+                    return queue.remove(key) ? 0 : -1;
+                }
+
+                public String search(int key) {
+                    throw new UnsupportedOperationException("search");
+                }
+
+                public int[] keysToArray() {
+                    throw new UnsupportedOperationException("keysToArray");
+                }
+
+                public String[] infoToArray() {
+                    throw new UnsupportedOperationException("infoToArray");
+                }
+
+                public String pollMin() {
+                    return queue.poll() == null ? null : INFO;
+                }
+            };
+        }
+
+        // a heap has no search and no sorted exports, the benchmarks that need them are skipped
+        public boolean supports(String benchmark) {
+            return benchmark.equals("queue") || benchmark.equals("insert") || benchmark.equals("delete");
+        }
+    };
+
+    private static final Implementation BLOCKED_WAVL_TREE = new Implementation() {
+        public Tree create() {
+            final BlockedWAVLTree tree = new BlockedWAVLTree();
+            return new Tree() {
+                public int insert(int key, String info) {
+                    return tree.insert(key, info);
+                }
+
+                public int delete(int key) {
+                    return tree.delete(key);
+                }
+
+                public String search(int key) {
+                    return tree.search(key);
+                }
+
+                public int[] keysToArray() {
+                    return tree.keysToArray();
+                }
+
+                public String[] infoToArray() {
+                    return tree.infoToArray();
+                }
+            };
+        }
+    };
+
+    // the trees are not closed, their memory is freed when their buffers are collected
+    private static final Implementation OFF_HEAP_WAVL_TREE = new Implementation() {
+        public Tree create() {
+            final OffHeapWAVLTree tree = new OffHeapWAVLTree();
+            return new Tree() {
+                public int insert(int key, String info) {
+                    return tree.insert(key, info);
+                }
+
+                public int delete(int key) {
+                    return tree.delete(key);
+                }
+
+                public String search(int key) {
+                    return tree.search(key);
+                }
+
+                public int[] keysToArray() {
+                    return tree.keysToArray();
+                }
+
+                public String[] infoToArray() {
+                    return tree.infoToArray();
+                }
+            };
+        }
+    };
+
+    private static final Implementation PERSISTENT_WAVL_TREE = new Implementation() {
+        public Tree create() {
+            final PersistentWAVLTree tree = new PersistentWAVLTree();
+            return new Tree() {
+                public int insert(int key, String info) {
+                    return tree.insert(key, info);
+                }
+
+                public int delete(int key) {
+                    return tree.delete(key);
+                }
+
+                public String search(int key) {
+                    return tree.search(key);
+                }
+
+                public int[] keysToArray() {
+                    return tree.keysToArray();
+                }
+
+                public String[] infoToArray() {
+                    return tree.infoToArray();
+                }
+            };
+        }
+    };
+
+    private static final Implementation LOCKED_WAVL_TREE = new Implementation() {
+        public Tree create() {
+            final WAVLTree tree = new WAVLTree();
+            return new Tree() {
+                public synchronized int insert(int key, String info) {
+                    return tree.insert(key, info);
+                }
+
+                public synchronized int delete(int key) {
+                    return tree.delete(key);
+                }
+
+                public synchronized String search(int key) {
+                    return tree.search(key);
+                }
+
+                public synchronized int[] keysToArray() {
+                    return tree.keysToArray();
+                }
+
+                public synchronized String[] infoToArray() {
+                    return tree.infoToArray();
+                }
+            };
+        }
+    };
+
+    private static final Implementation SYNC_LOGGED_WAVL_TREE = loggedWAVLTree(WAVLTreeLog.Durability.SYNC);
+    private static final Implementation GROUP_LOGGED_WAVL_TREE = loggedWAVLTree(WAVLTreeLog.Durability.GROUP);
+
+    // the logs are not closed, their files are deleted when the benchmark exits
+    private static Implementation loggedWAVLTree(final WAVLTreeLog.Durability durability) {
+        return new Implementation() {
+            public Tree create() {
+                final WAVLTreeLog log;
+                try {
+                    Path directory = Files.createTempDirectory("WAVLTreeBenchmark");
+                    directory.toFile().deleteOnExit();
+                    Path checkpointPath = directory.resolve("tree.checkpoint");
+                    Path logPath = directory.resolve("tree.log");
+                    logPath.toFile().deleteOnExit();
+                    log = WAVLTreeLog.open(checkpointPath, logPath, durability);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                return new Tree() {
+                    public int insert(int key, String info) {
+                        return log.insert(key, info);
+                    }
+
+                    public int delete(int key) {
+                        return log.delete(key);
+                    }
+
+                    public String search(int key) {
+                        return log.search(key);
+                    }
+
+                    public int[] keysToArray() {
+                        synchronized (log.tree()) {
+                            return log.tree().keysToArray();
+                        }
+                    }
+
+                    public String[] infoToArray() {
+                        synchronized (log.tree()) {
+                            return log.tree().infoToArray();
+                        }
+                    }
+                };
+            }
+
+            // every change waits for an fsync, so only the concurrent benchmarks run long enough to share them
+            public boolean supports(String benchmark) {
+                return benchmark.startsWith("concurrent");
+            }
+        };
+    }
+
+    /**
+     * A benchmark body. prepare() is not timed, run() is timed and returns the number of
+     * operations it did.
+     */
+    private static abstract class Workload {
+        final Implementation implementation;
+        final KeyDistribution distribution;
+        final int size;
+
+        Workload(Implementation implementation, KeyDistribution distribution, int size) {
+            this.implementation = implementation;
+            this.distribution = distribution;
+            this.size = size;
+        }
+
+        void prepare() {
+        }
+
+        abstract long run();
+    }
+
+    /**
+     * Inserts all the keys into an empty tree
+     */
+    private static class InsertWorkload extends Workload {
+        private Tree tree;
+
+        InsertWorkload(Implementation implementation, KeyDistribution distribution, int size) {
+            super(implementation, distribution, size);
+        }
+
+        void prepare() {
+            tree = null; // let the previous tree be collected before the next one is made
+            tree = implementation.create();
+        }
+
+        long run() {
+            int result = 0;
+            for (int i = 0; i < size; i++) {
+                result += tree.insert(distribution.key(i), INFO);
+            }
+            sink += result;
+            return size;
+        }
+    }
+
+    /**
+     * Deletes all the keys from a full tree, in the order they were inserted
+     */
+    private static class DeleteWorkload extends Workload {
+        private Tree tree;
+
+        DeleteWorkload(Implementation implementation, KeyDistribution distribution, int size) {
+            super(implementation, distribution, size);
+        }
+
+        void prepare() {
+            tree = null;
+            tree = fill(implementation, distribution, size);
+        }
+
+        long run() {
+            int result = 0;
+            for (int i = 0; i < size; i++) {
+                result += tree.delete(distribution.key(i));
+            }
+            sink += result;
+            return size;
+        }
+    }
+
+    /**
+     * Searches and updates the keys of a full tree. Of every 100 operations readPercent are
+     * searches, and the rest are pairs of a delete and a re-insert of the same key, so the
+     * size of the tree stays the same.
+     */
+    private static class MixedWorkload extends Workload {
+        private final Tree tree;
+        private final int[] accessTable;
+        private final boolean[] isWrite;
+        private int position;
+
+        MixedWorkload(Implementation implementation, KeyDistribution distribution, int size, int readPercent) {
+            super(implementation, distribution, size);
+            Random random = new Random(42);
+            tree = fill(implementation, distribution, size);
+            accessTable = distribution.accessTable(size, random);
+            isWrite = new boolean[accessTable.length];
+            for (int i = 0; i < isWrite.length; i++) {
+                isWrite[i] = random.nextInt(100) >= readPercent;
+            }
+        }
+
+        long run() {
+            int result = 0;
+            long ops = 0;
+            int mask = accessTable.length - 1;
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                int index = position++ & mask;
+                int key = accessTable[index];
+                if (isWrite[index]) {
+                    result += tree.delete(key);
+                    result += tree.insert(key, INFO);
+                    ops += 2;
+                } else {
+                    String info = tree.search(key);
+                    result += info == null ? 0 : 1;
+                    ops++;
+                }
+            }
+            sink += result;
+            return ops;
+        }
+    }
+
+    /**
+     * Exports the keys or the infos of a full tree into an array
+     */
+    private static class ExportWorkload extends Workload {
+        private final Tree tree;
+        private final boolean infos;
+        private final boolean parallel;
+
+        ExportWorkload(Implementation implementation, KeyDistribution distribution, int size, boolean infos,
+                       boolean parallel) {
+            super(implementation, distribution, size);
+            this.tree = fill(implementation, distribution, size);
+            this.infos = infos;
+            this.parallel = parallel;
+        }
+
+        long run() {
+            if (parallel) {
+                sink += infos ? tree.parallelInfoToArray().length : tree.parallelKeysToArray().length;
+            } else {
+                sink += infos ? tree.infoToArray().length : tree.keysToArray().length;
+            }
+            return 1;
+        }
+    }
+
+    /**
+     * Inserts a batch of new keys into a full tree and deletes them again, either with
+     * insertAll and deleteAll or one key at a time, so the tree keeps its size.
+     */
+    private static class BatchWorkload extends Workload {
+        private final Tree tree;
+        private final boolean batched;
+        private final int[] keys = new int[BATCH_SIZE];
+        private final String[] infos = new String[BATCH_SIZE];
+
+        BatchWorkload(Implementation implementation, KeyDistribution distribution, int size, boolean batched) {
+            super(implementation, distribution, size);
+            this.tree = fill(implementation, distribution, size);
+            this.batched = batched;
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                keys[i] = distribution.key(size + i);
+                infos[i] = INFO;
+            }
+        }
+
+        long run() {
+            int result = 0;
+            if (batched) {
+                result += tree.insertAll(keys, infos);
+                result += tree.deleteAll(keys);
+            } else {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    result += tree.insert(keys[i], infos[i]);
+                }
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    result += tree.delete(keys[i]);
+                }
+            }
+            sink += result;
+            return 2 * BATCH_SIZE;
+        }
+    }
+
+    /**
+     * Searches the keys of a full tree along a random walk over their sorted order, where
+     * every key is at most a few keys away from the previous one, like timestamps that arrive
+     * almost in order. the searches start from the root, or from the finger.
+     */
+    private static class LocalWorkload extends Workload {
+        private final Tree tree;
+        private final boolean finger;
+        private final int[] accessTable = new int[ACCESS_TABLE_SIZE];
+        private int position;
+
+        LocalWorkload(Implementation implementation, KeyDistribution distribution, int size, boolean finger) {
+            super(implementation, distribution, size);
+            this.tree = fill(implementation, distribution, size);
+            this.finger = finger;
+            int[] keys = tree.keysToArray();
+            Random random = new Random(42);
+            int index = 0;
+            for (int i = 0; i < accessTable.length; i++) {
+                index = Math.floorMod(index + random.nextInt(17) - 4, size);
+                accessTable[i] = keys[index];
+            }
+        }
+
+        long run() {
+            int result = 0;
+            int mask = accessTable.length - 1;
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                int key = accessTable[position++ & mask];
+                String info = finger ? tree.fingerSearch(key) : tree.search(key);
+                result += info == null ? 0 : 1;
+            }
+            sink += result;
+            return BATCH_SIZE;
+        }
+    }
+
+    /**
+     * Runs the hold model of priority queues on a full tree: every step removes the item with
+     * the smallest key and inserts the next key of the distribution, so the tree keeps its
+     * size. with sequential keys the tree holds a FIFO of timestamps. PriorityQueue runs the
+     * same steps on a heap, which is the faster of the two.
+     */
+    private static class QueueWorkload extends Workload {
+        private final Tree tree;
+        private int next; // the index of the next key to insert
+
+        QueueWorkload(Implementation implementation, KeyDistribution distribution, int size) {
+            super(implementation, distribution, size);
+            this.tree = fill(implementation, distribution, size);
+            this.next = size;
+        }
+
+        long run() {
+            int result = 0;
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                result += tree.pollMin() == null ? 0 : 1;
+                result += tree.insert(distribution.key(next++), INFO);
+            }
+            sink += result;
+            return 2 * BATCH_SIZE;
+        }
+    }
+
+    /**
+     * Searches and updates the keys of a full tree shared by several threads, in the same mix
+     * as MixedWorkload. every thread has its own table of keys and operations.
+     */
+    private static class ConcurrentWorkload {
+        private final Tree tree;
+        private final int[][] accessTables;
+        private final boolean[][] isWrite;
+        private volatile boolean stop;
+
+        ConcurrentWorkload(Implementation implementation, KeyDistribution distribution, int size, int readPercent,
+                           int threads) {
+            tree = fill(implementation, distribution, size);
+            accessTables = new int[threads][];
+            isWrite = new boolean[threads][];
+            for (int thread = 0; thread < threads; thread++) {
+                Random random = new Random(42 + thread);
+                accessTables[thread] = distribution.accessTable(size, random);
+                isWrite[thread] = new boolean[ACCESS_TABLE_SIZE];
+                for (int i = 0; i < ACCESS_TABLE_SIZE; i++) {
+                    isWrite[thread][i] = random.nextInt(100) >= readPercent;
+                }
+            }
+        }
+
+        /**
+         * Runs all the threads for the given time
+         *
+         * @return the total number of operations and the total bytes allocated by the threads
+         */
+        long[] run(int millis) {
+            final int threads = accessTables.length;
+            final long[] ops = new long[threads];
+            final long[] bytes = new long[threads];
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] workers = new Thread[threads];
+            stop = false;
+            for (int thread = 0; thread < threads; thread++) {
+                final int index = thread;
+                workers[thread] = new Thread(new Runnable() {
+                    public void run() {
+                        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        long bytesBefore = allocatedBytes(threadBean);
+                        ops[index] = runThread(accessTables[index], isWrite[index]);
+                        bytes[index] = allocatedBytes(threadBean) - bytesBefore;
+                    }
+                });
+                workers[thread].start();
+            }
+
+            start.countDown();
+            try {
+                Thread.sleep(millis);
+                stop = true;
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+
+            long[] total = new long[2];
+            for (int thread = 0; thread < threads; thread++) {
+                total[0] += ops[thread];
+                total[1] += bytes[thread];
+            }
+            return total;
+        }
+
+        private long runThread(int[] accessTable, boolean[] writes) {
+            int result = 0;
+            long ops = 0;
+            int mask = accessTable.length - 1;
+            int position = 0;
+            while (!stop) {
+                for (int i = 0; i < STOP_CHECK_INTERVAL; i++) {
+                    int index = position++ & mask;
+                    int key = accessTable[index];
+                    if (writes[index]) {
+                        result += tree.delete(key);
+                        result += tree.insert(key, INFO);
+                        ops += 2;
+                    } else {
+                        String info = tree.search(key);
+                        result += info == null ? 0 : 1;
+                        ops++;
+                    }
+                }
+            }
+            sink += result;
+            return ops;
+        }
+    }
+
+    private static class Result {
+        final double meanOpsPerSecond;
+        final double deviation;
+        final double bytesPerOp;
+        final long collections;
+
+        Result(double meanOpsPerSecond, double deviation, double bytesPerOp, long collections) {
+            this.meanOpsPerSecond = meanOpsPerSecond;
+            this.deviation = deviation;
+            this.bytesPerOp = bytesPerOp;
+            this.collections = collections;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * WAVLTreeConcurrencyTester
+ *
+ * Changes the trees that can be shared between threads from several writers at once, each on
+ * its own range of keys with its own reference map, while readers search and scan the tree.
+ * Every writer checks the results of its changes and searches against its map, and every
+ * reader checks that what it finds is an item some writer inserted, in ascending order. At
+ * the end the tree must hold exactly the items of all the maps, and satisfy the rules of the
+ * WAVL tree.
+ *
+ * Covers ConcurrentWAVLTree, whose invariants the readers check while the writers go on,
+ * ShardedWAVLTree with shards small enough to split many times, and PersistentWAVLTree, whose
+ * readers check the snapshots they take. ShardedWAVLTree also runs writers that each move a
+ * window of keys up through their range, so the shards behind the windows have to be merged
+ * for the number of shards to stay bounded.
+ *
+ * Every section prints a line when it passes; the first mismatch throws an AssertionError.
+ *
+ * usage: java WAVLTreeConcurrencyTester [seed]
+ */
+public class WAVLTreeConcurrencyTester {
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int STEPS = 100000; // the operations of every writer
+    private static final int KEY_RANGE = 20000; // the keys of every writer
+    private static final int SCAN_RANGE = 1000;
+    private static final long WRITER_SPACING = (1L << 32) / WRITERS; // the distance between the ranges of the writers
+    private static final int WINDOW = 2000; // the keys every writer of testShardMerges holds at once
+    private static final int MAX_MERGED_SHARDS = 64; // the most shards testShardMerges may end with
+
+    public static void main(String[] args) throws InterruptedException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        Random random = new Random(seed);
+
+        test(new ConcurrentSubject(), random);
+        test(new ShardedSubject(), random);
+        test(new PersistentSubject(), random);
+        testShardMerges();
+        System.out.println("all the concurrent trees passed, seed " + seed);
+    }
+
+    private static void test(final Subject subject, Random random) throws InterruptedException {
+        final List<TreeMap<Integer, String>> expected = new ArrayList<>();
+        final Throwable[] failures = new Throwable[WRITERS + READERS];
+        final int[] scans = new int[READERS];
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] threads = new Thread[WRITERS + READERS];
+
+        for (int t = 0; t < WRITERS; t++) {
+            final int writer = t;
+            final long threadSeed = random.nextLong();
+            expected.add(new TreeMap<Integer, String>());
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Random threadRandom = new Random(threadSeed);
+                        TreeMap<Integer, String> items = expected.get(writer);
+                        for (int step = 0; step < STEPS; step++) {
+                            int key = writerKey(writer, threadRandom.nextInt(KEY_RANGE));
+                            switch (threadRandom.nextInt(3)) {
+                                case 0: {
+                                    String info = key + ":" + step;
+                                    check((subject.insert(key, info) == -1) == items.containsKey(key), subject.name + " insert of existing key " + key);
+                                    if (!items.containsKey(key)) {
+                                        items.put(key, info);
+                                    }
+                                    break;
+                                }
+                                case 1:
+                                    check((subject.delete(key) == -1) != items.containsKey(key), subject.name + " delete of key " + key);
+                                    items.remove(key);
+                                    break;
+                                default:
+                                    check(Objects.equals(subject.search(key), items.get(key)), subject.name + " search of key " + key);
+                                    break;
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures[writer] = e;
+                    }
+                }
+            });
+        }
+
+        for (int t = 0; t < READERS; t++) {
+            final int reader = t;
+            final long threadSeed = random.nextLong();
+            threads[WRITERS + t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Random threadRandom = new Random(threadSeed);
+                        while (!done.get()) {
+                            int writer = threadRandom.nextInt(WRITERS);
+                            int key = writerKey(writer, threadRandom.nextInt(KEY_RANGE));
+                            checkInfo(subject, key, subject.search(key));
+
+                            final int lo = writerKey(writer, threadRandom.nextInt(KEY_RANGE));
+                            final int hi = lo + threadRandom.nextInt(SCAN_RANGE);
+                            final long[] previous = {Long.MIN_VALUE};
+                            subject.forEachInRange(lo, hi, new WAVLTree.IntObjConsumer() {
+                                public void accept(int key, String info) {
+                                    check(key >= lo && key <= hi && key > previous[0], subject.name + " scan of " + lo + ".." + hi + " passed " + key);
+                                    checkInfo(subject, key, info);
+                                    previous[0] = key;
+                                }
+                            });
+                            if (++scans[reader] % 1000 == 0 && subject.checksWhileChanged) {
+                                subject.checkInvariants();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures[WRITERS + reader] = e;
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (int t = 0; t < WRITERS; t++) {
+            threads[t].join();
+        }
+        done.set(true);
+        for (int t = WRITERS; t < threads.length; t++) {
+            threads[t].join();
+        }
+        for (Throwable failure : failures) {
+            if (failure != null) {
+                throw new AssertionError(subject.name + ": a thread failed", failure);
+            }
+        }
+
+        TreeMap<Integer, String> all = new TreeMap<>();
+        for (TreeMap<Integer, String> items : expected) {
+            all.putAll(items);
+        }
+        subject.checkInvariants();
+        check(subject.size() == all.size(), subject.name + " size " + subject.size() + " instead of " + all.size());
+        int[] keys = subject.keysToArray();
+        String[] infos = subject.infoToArray();
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : all.entrySet()) {
+            check(keys[i] == entry.getKey() && Objects.equals(infos[i], entry.getValue()), subject.name + " item " + i + " is " + keys[i] + " instead of " + entry.getKey());
+            i++;
+        }
+        check(i == keys.length && i == infos.length, subject.name + " exports " + keys.length + " items");
+        subject.checkEnd();
+
+        int totalScans = 0;
+        for (int count : scans) {
+            totalScans += count;
+        }
+        System.out.println(subject.name + ": " + WRITERS + " writers of " + STEPS + " operations and " + totalScans + " reads passed");
+    }
+
+    /**
+     * Every writer inserts the keys of its range in ascending order and deletes every key
+     * WINDOW keys after inserting it, while the readers scan the tree. the shards behind the
+     * windows are emptied and must be merged, so the tree ends with few shards.
+     */
+    private static void testShardMerges() throws InterruptedException {
+        final ShardedWAVLTree tree = new ShardedWAVLTree(WRITERS, 1024);
+        final Throwable[] failures = new Throwable[WRITERS + READERS];
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] threads = new Thread[WRITERS + READERS];
+
+        for (int t = 0; t < WRITERS; t++) {
+            final int writer = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int step = 0; step < STEPS; step++) {
+                            int key = writerKey(writer, step);
+                            check(tree.insert(key, key + ":" + step) != -1, "ShardedWAVLTree insert of new key " + key);
+                            if (step >= WINDOW) {
+                                check(tree.delete(key - WINDOW) != -1, "ShardedWAVLTree delete of key " + (key - WINDOW));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures[writer] = e;
+                    }
+                }
+            });
+        }
+
+        for (int t = 0; t < READERS; t++) {
+            final int reader = t;
+            final long threadSeed = t;
+            threads[WRITERS + t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Random threadRandom = new Random(threadSeed);
+                        while (!done.get()) {
+                            int writer = threadRandom.nextInt(WRITERS);
+                            final int lo = writerKey(writer, threadRandom.nextInt(STEPS));
+                            final int hi = lo + threadRandom.nextInt(SCAN_RANGE);
+                            final long[] previous = {Long.MIN_VALUE};
+                            tree.forEachInRange(lo, hi, new WAVLTree.IntObjConsumer() {
+                                public void accept(int key, String info) {
+                                    check(key >= lo && key <= hi && key > previous[0], "ShardedWAVLTree scan of " + lo + ".." + hi + " passed " + key);
+                                    check(info.startsWith(key + ":"), "ShardedWAVLTree key " + key + " has the info " + info);
+                                    previous[0] = key;
+                                }
+                            });
+                        }
+                    } catch (Throwable e) {
+                        failures[WRITERS + reader] = e;
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (int t = 0; t < WRITERS; t++) {
+            threads[t].join();
+        }
+        done.set(true);
+        for (int t = WRITERS; t < threads.length; t++) {
+            threads[t].join();
+        }
+        for (Throwable failure : failures) {
+            if (failure != null) {
+                throw new AssertionError("ShardedWAVLTree merges: a thread failed", failure);
+            }
+        }
+
+        tree.checkInvariants();
+        check(tree.size() == WRITERS * WINDOW, "ShardedWAVLTree size " + tree.size() + " instead of " + WRITERS * WINDOW);
+        int[] keys = tree.keysToArray();
+        for (int writer = 0, i = 0; writer < WRITERS; writer++) {
+            for (int offset = STEPS - WINDOW; offset < STEPS; offset++, i++) {
+                check(keys[i] == writerKey(writer, offset), "ShardedWAVLTree item " + i + " is " + keys[i] + " instead of " + writerKey(writer, offset));
+            }
+        }
+        check(tree.shardCount() <= MAX_MERGED_SHARDS, "ShardedWAVLTree ends with " + tree.shardCount() + " shards, more than " + MAX_MERGED_SHARDS);
+        System.out.println("ShardedWAVLTree: " + WRITERS + " moving windows of " + STEPS + " keys passed with " + tree.shardCount() + " shards");
+    }
+
+    /**
+     * returns the key at offset in the range of writer. the ranges are spread over all the ints,
+     * so the first starts at Integer.MIN_VALUE
+     */
+    private static int writerKey(int writer, int offset) {
+        return (int) (Integer.MIN_VALUE + writer * WRITER_SPACING + offset);
+    }
+
+    /**
+     * checks that info is null or an info inserted with key
+     */
+    private static void checkInfo(Subject subject, int key, String info) {
+        check(info == null || info.startsWith(key + ":"), subject.name + " key " + key + " has the info " + info);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * One of the trees under test
+     */
+    private abstract static class Subject {
+        final String name;
+        final boolean checksWhileChanged; // whether checkInvariants can run while the writers change the tree
+
+        Subject(String name, boolean checksWhileChanged) {
+            this.name = name;
+            this.checksWhileChanged = checksWhileChanged;
+        }
+
+        abstract int insert(int key, String info);
+
+        abstract int delete(int key);
+
+        abstract String search(int key);
+
+        abstract void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer consumer);
+
+        abstract int[] keysToArray();
+
+        abstract String[] infoToArray();
+
+        abstract int size();
+
+        abstract void checkInvariants();
+
+        /**
+         * checks what is particular to the tree, after the threads are done
+         */
+        void checkEnd() {
+        }
+    }
+
+    private static class ConcurrentSubject extends Subject {
+        private final ConcurrentWAVLTree tree = new ConcurrentWAVLTree();
+
+        ConcurrentSubject() {
+            super("ConcurrentWAVLTree", true);
+        }
+
+        int insert(int key, String info) {
+            return tree.insert(key, info);
+        }
+
+        int delete(int key) {
+            return tree.delete(key);
+        }
+
+        String search(int key) {
+            return tree.search(key);
+        }
+
+        void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer consumer) {
+            tree.forEachInRange(lo, hi, consumer);
+        }
+
+        int[] keysToArray() {
+            return tree.keysToArray();
+        }
+
+        String[] infoToArray() {
+            return tree.infoToArray();
+        }
+
+        int size() {
+            return tree.size();
+        }
+
+        void checkInvariants() {
+            tree.checkInvariants();
+        }
+    }
+
+    private static class ShardedSubject extends Subject {
+        private static final int SHARDS = 4;
+
+        private final ShardedWAVLTree tree = new ShardedWAVLTree(SHARDS, 1024);
+
+        ShardedSubject() {
+            super("ShardedWAVLTree", false);
+        }
+
+        int insert(int key, String info) {
+            return tree.insert(key, info);
+        }
+
+        int delete(int key) {
+            return tree.delete(key);
+        }
+
+        String search(int key) {
+            return tree.search(key);
+        }
+
+        void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer consumer) {
+            tree.forEachInRange(lo, hi, consumer);
+        }
+
+        int[] keysToArray() {
+            return tree.keysToArray();
+        }
+
+        String[] infoToArray() {
+            return tree.infoToArray();
+        }
+
+        int size() {
+            return tree.size();
+        }
+
+        void checkInvariants() {
+            tree.checkInvariants();
+        }
+
+        void checkEnd() {
+            check(tree.shardCount() > SHARDS, "ShardedWAVLTree never split its " + SHARDS + " shards");
+        }
+    }
+
+    private static class PersistentSubject extends Subject {
+        private final PersistentWAVLTree tree = new PersistentWAVLTree();
+
+        PersistentSubject() {
+            super("PersistentWAVLTree", true);
+        }
+
+        int insert(int key, String info) {
+            return tree.insert(key, info);
+        }
+
+        int delete(int key) {
+            return tree.delete(key);
+        }
+
+        String search(int key) {
+            return tree.search(key);
+        }
+
+        void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer consumer) {
+            tree.snapshot().forEachInRange(lo, hi, consumer);
+        }
+
+        int[] keysToArray() {
+            return tree.keysToArray();
+        }
+
+        String[] infoToArray() {
+            return tree.infoToArray();
+        }
+
+        int size() {
+            return tree.size();
+        }
+
+        void checkInvariants() {
+            // a snapshot doesn't change, so this runs while the writers go on
+            tree.snapshot().checkInvariants();
+        }
+    }
+}
@@ -0,0 +1,509 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * WAVLTreeDurabilityTester
+ *
+ * Checks that the trees kept in files come back after a crash as the reference map that
+ * followed their changes says they should, and that they satisfy the rules of the WAVL tree.
+ * A crash is simulated by copying the files of a tree that is still open, and then cutting
+ * or corrupting the copies as a crash in the middle of a write would.
+ *
+ * WAVLTreeLog, for every durability: recovery from a checkpoint and the log after it, a log
+ * with a torn tail, a last record cut in half or corrupted, and the tree changed from several
+ * threads through the log, and the rejection of the operations a log can't record.
+ * MappedWAVLTree: reopening after close, a crash after changes that were not forced, a crash
+ * while a force copied its redo file into the files, a torn redo file, and a new file that
+ * was never forced.
+ *
+ * Every section prints a line when it passes; the first mismatch throws an AssertionError.
+ * The files are written to a temporary directory, which is deleted at the end.
+ *
+ * usage: java WAVLTreeDurabilityTester [seed]
+ */
+public class WAVLTreeDurabilityTester {
+    private static final int KEY_RANGE = 500;
+    private static final int THREADS = 8;
+    private static final int REDO_PAGE_SIZE = 4096; // the largest entry of a redo file
+
+    public static void main(String[] args) throws Exception {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        Random random = new Random(seed);
+        Path directory = Files.createTempDirectory("WAVLTreeDurabilityTester");
+        try {
+            for (WAVLTreeLog.Durability durability : WAVLTreeLog.Durability.values()) {
+                testLogRecovery(directory.resolve("log-" + durability), durability, random);
+                testConcurrentLog(directory.resolve("concurrent-" + durability), durability, random);
+            }
+            testUnloggedOperations(directory.resolve("unlogged"));
+            testMapped(directory.resolve("mapped"), random);
+        } finally {
+            deleteDirectory(directory);
+        }
+        System.out.println("all the durability checks passed, seed " + seed);
+    }
+
+    /**
+     * changes a logged tree, then recovers copies of its files cut at and inside the last record
+     */
+    private static void testLogRecovery(Path directory, WAVLTreeLog.Durability durability, Random random) throws IOException {
+        Files.createDirectories(directory);
+        Path checkpoint = directory.resolve("checkpoint");
+        Path logFile = directory.resolve("log");
+        TreeMap<Integer, String> expected = new TreeMap<>();
+
+        WAVLTreeLog log = WAVLTreeLog.open(checkpoint, logFile, durability);
+        WAVLTree tree = log.tree();
+        for (int step = 0; step < 3000; step++) {
+            int key = random.nextInt(KEY_RANGE);
+            if (random.nextBoolean()) {
+                String info = step % 7 == 0 ? null : "\u00fc" + step;
+                if (tree.insert(key, info) != -1) {
+                    expected.put(key, info);
+                }
+            } else if (tree.delete(key) != -1) {
+                expected.remove(key);
+            }
+            if (step == 1500) {
+                log.checkpoint();
+            }
+            if (step == 2000) {
+                int[] keys = {1, 2, 3, KEY_RANGE + 1, KEY_RANGE + 2};
+                String[] infos = {"a", "b", "c", "d", "e"};
+                tree.insertAll(keys, infos);
+                for (int i = 0; i < keys.length; i++) {
+                    if (!expected.containsKey(keys[i])) {
+                        expected.put(keys[i], infos[i]);
+                    }
+                }
+            }
+        }
+        log.sync();
+        long logSize = Files.size(logFile);
+
+        // a crash that left a partial record after the last one
+        Path crash = crashCopy(checkpoint, logFile, directory.resolve("torn"));
+        Files.write(logFile(crash), new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+        WAVLTreeLog recovered = WAVLTreeLog.open(crash, logFile(crash), durability);
+        checkSame(recovered.tree(), expected);
+        // the torn tail is cut, so the records after it are found again
+        recovered.tree().insert(KEY_RANGE + 3, "after the tail");
+        recovered.close();
+        TreeMap<Integer, String> afterTail = new TreeMap<>(expected);
+        afterTail.put(KEY_RANGE + 3, "after the tail");
+        recovered = WAVLTreeLog.open(crash, logFile(crash), durability);
+        checkSame(recovered.tree(), afterTail);
+        recovered.close();
+
+        // one more change, whose record a crash cuts in half or corrupts
+        int key = KEY_RANGE + 4;
+        tree.insert(key, "the last record");
+        log.sync();
+        long recordSize = Files.size(logFile) - logSize;
+        check(recordSize > 0, "the insert of " + key + " wasn't logged");
+
+        crash = crashCopy(checkpoint, logFile, directory.resolve("cut"));
+        try (FileChannel channel = FileChannel.open(logFile(crash), StandardOpenOption.WRITE)) {
+            channel.truncate(logSize + recordSize / 2);
+        }
+        recovered = WAVLTreeLog.open(crash, logFile(crash), durability);
+        checkSame(recovered.tree(), expected);
+        recovered.close();
+
+        crash = crashCopy(checkpoint, logFile, directory.resolve("corrupt"));
+        byte[] bytes = Files.readAllBytes(logFile(crash));
+        bytes[(int) (logSize + recordSize - 6)] ^= 1;
+        Files.write(logFile(crash), bytes);
+        recovered = WAVLTreeLog.open(crash, logFile(crash), durability);
+        checkSame(recovered.tree(), expected);
+        recovered.close();
+
+        crash = crashCopy(checkpoint, logFile, directory.resolve("whole"));
+        expected.put(key, "the last record");
+        recovered = WAVLTreeLog.open(crash, logFile(crash), durability);
+        checkSame(recovered.tree(), expected);
+        recovered.close();
+
+        // a clean close, and a checkpoint that empties the log
+        log.close();
+        log = WAVLTreeLog.open(checkpoint, logFile, durability);
+        checkSame(log.tree(), expected);
+        log.checkpoint();
+        log.close();
+        log = WAVLTreeLog.open(checkpoint, logFile, durability);
+        checkSame(log.tree(), expected);
+        log.close();
+        System.out.println("WAVLTreeLog " + durability + ": recovery of torn, cut and corrupt logs passed");
+    }
+
+    /**
+     * changes a logged tree from several threads on their own ranges of keys, then recovers it
+     */
+    private static void testConcurrentLog(Path directory, WAVLTreeLog.Durability durability, Random random) throws Exception {
+        Files.createDirectories(directory);
+        Path checkpoint = directory.resolve("checkpoint");
+        Path logFile = directory.resolve("log");
+        final WAVLTreeLog log = WAVLTreeLog.open(checkpoint, logFile, durability);
+
+        final List<TreeMap<Integer, String>> expected = new ArrayList<>();
+        final Throwable[] failures = new Throwable[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            final long threadSeed = random.nextLong();
+            expected.add(new TreeMap<Integer, String>());
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Random threadRandom = new Random(threadSeed);
+                        TreeMap<Integer, String> items = expected.get(thread);
+                        for (int step = 0; step < 1500; step++) {
+                            int key = thread * KEY_RANGE + threadRandom.nextInt(KEY_RANGE / 2);
+                            if (threadRandom.nextBoolean()) {
+                                if (log.insert(key, "v" + step) != -1) {
+                                    items.put(key, "v" + step);
+                                }
+                            } else if (log.delete(key) != -1) {
+                                items.remove(key);
+                            }
+                            check(Objects.equals(log.search(key), items.get(key)), "search of " + key + " through the log");
+                            if (thread == 0 && step == 700) {
+                                log.checkpoint();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures[thread] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        TreeMap<Integer, String> all = joinThreads(threads, failures, expected);
+
+        log.sync();
+        Path crash = crashCopy(checkpoint, logFile, directory.resolve("crash"));
+        WAVLTreeLog recovered = WAVLTreeLog.open(crash, logFile(crash), durability);
+        checkSame(recovered.tree(), all);
+        recovered.close();
+
+        log.close();
+        boolean thrown = false;
+        try {
+            log.insert(1, "closed");
+        } catch (IllegalStateException e) {
+            thrown = true;
+        }
+        check(thrown, "insert through a closed log");
+        System.out.println("WAVLTreeLog " + durability + ": " + THREADS + " threads through the log passed");
+    }
+
+    /**
+     * split, join and the set operations, which a log can't record, throw for a logged tree
+     * and leave it as it was
+     */
+    private static void testUnloggedOperations(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path checkpoint = directory.resolve("checkpoint");
+        Path logFile = directory.resolve("log");
+        TreeMap<Integer, String> expected = new TreeMap<>();
+
+        WAVLTreeLog log = WAVLTreeLog.open(checkpoint, logFile, WAVLTreeLog.Durability.SYNC);
+        WAVLTree tree = log.tree();
+        for (int key = 0; key < KEY_RANGE; key++) {
+            tree.insert(key, "v" + key);
+            expected.put(key, "v" + key);
+        }
+        WAVLTree other = new WAVLTree();
+        other.insert(2 * KEY_RANGE, "other");
+
+        for (int operation = 0; operation < 6; operation++) {
+            boolean thrown = false;
+            try {
+                switch (operation) {
+                    case 0:
+                        tree.split(KEY_RANGE / 2);
+                        break;
+                    case 1:
+                        WAVLTree.join(tree, other);
+                        break;
+                    case 2:
+                        WAVLTree.join(tree, KEY_RANGE, "middle", other);
+                        break;
+                    case 3:
+                        WAVLTree.union(other, tree);
+                        break;
+                    case 4:
+                        WAVLTree.intersection(tree, other);
+                        break;
+                    default:
+                        WAVLTree.difference(other, tree);
+                        break;
+                }
+            } catch (IllegalStateException e) {
+                thrown = true;
+            }
+            check(thrown, "operation " + operation + " of a logged tree didn't throw");
+            checkSame(tree, expected);
+            check(other.size() == 1, "operation " + operation + " of a logged tree changed the other tree");
+        }
+
+        log.close();
+        log = WAVLTreeLog.open(checkpoint, logFile, WAVLTreeLog.Durability.SYNC);
+        checkSame(log.tree(), expected);
+        log.close();
+        System.out.println("WAVLTreeLog: split, join and the set operations of a logged tree passed");
+    }
+
+    /**
+     * changes a mapped tree between forces, and opens copies of its files as a crash in every
+     * step of a force leaves them
+     */
+    private static void testMapped(Path directory, Random random) throws IOException {
+        Files.createDirectories(directory);
+        Path path = directory.resolve("tree");
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        int keyRange = 60000;
+
+        MappedWAVLTree tree = MappedWAVLTree.open(path);
+        for (int round = 0; round < 4; round++) {
+            for (int step = 0; step < 30000; step++) {
+                int key = random.nextInt(keyRange);
+                if (random.nextInt(3) > 0) {
+                    String info = random.nextInt(10) == 0 ? null : random.nextInt(50) == 0 ? longInfo(random.nextInt(3000)) : "v" + step;
+                    if (tree.insert(key, info) != -1) {
+                        expected.put(key, info);
+                    }
+                } else if (tree.delete(key) != -1) {
+                    expected.remove(key);
+                }
+            }
+            TreeMap<Integer, String> forced = new TreeMap<>(expected);
+            Path before = copyMapped(path, directory.resolve("before" + round));
+            tree.force();
+            check(Files.size(redoFile(path)) == 0, "the redo file wasn't emptied by force");
+            Path after = copyMapped(path, directory.resolve("after" + round));
+
+            // changes that are not forced are lost in a crash
+            for (int step = 0; step < 5000; step++) {
+                int key = random.nextInt(keyRange);
+                if (tree.insert(key, "unforced" + step) != -1) {
+                    expected.put(key, "unforced" + step);
+                }
+            }
+            Path crash = copyMapped(path, directory.resolve("crash" + round));
+            try (MappedWAVLTree copy = MappedWAVLTree.open(crash)) {
+                checkSame(copy, forced);
+            }
+
+            // a crash after the redo file was forced, with half the files copied from it
+            byte[] redo = redo(before, after);
+            Path middle = copyMapped(before, directory.resolve("middle" + round));
+            Files.write(redoFile(middle), redo);
+            byte[] afterBytes = Files.readAllBytes(after);
+            byte[] middleBytes = Files.readAllBytes(middle);
+            int copied = Math.min(afterBytes.length, middleBytes.length) / 2;
+            System.arraycopy(afterBytes, 0, middleBytes, 0, copied);
+            Files.write(middle, middleBytes);
+            try (MappedWAVLTree copy = MappedWAVLTree.open(middle)) {
+                checkSame(copy, forced);
+            }
+            check(Files.size(redoFile(middle)) == 0, "the replayed redo file wasn't emptied");
+
+            // a crash while the redo file was written leaves the tree of the force before
+            Path torn = copyMapped(before, directory.resolve("torn" + round));
+            Files.write(redoFile(torn), Arrays.copyOf(redo, redo.length - 3));
+            try (MappedWAVLTree copy = MappedWAVLTree.open(torn); MappedWAVLTree previous = MappedWAVLTree.open(before)) {
+                copy.checkInvariants();
+                check(Arrays.equals(copy.keysToArray(), previous.keysToArray())
+                        && Arrays.equals(copy.infoToArray(), previous.infoToArray()), "a torn redo file was replayed");
+            }
+
+            // a recovered tree goes on and is kept by close
+            TreeMap<Integer, String> crashItems = new TreeMap<>(forced);
+            try (MappedWAVLTree copy = MappedWAVLTree.open(crash)) {
+                for (int step = 0; step < 10000; step++) {
+                    int key = random.nextInt(keyRange);
+                    if (random.nextBoolean()) {
+                        if (copy.insert(key, "w" + step) != -1) {
+                            crashItems.put(key, "w" + step);
+                        }
+                    } else if (copy.delete(key) != -1) {
+                        crashItems.remove(key);
+                    }
+                }
+            }
+            try (MappedWAVLTree copy = MappedWAVLTree.open(crash)) {
+                checkSame(copy, crashItems);
+            }
+        }
+        tree.close();
+        try (MappedWAVLTree reopened = MappedWAVLTree.open(path)) {
+            checkSame(reopened, expected);
+        }
+
+        // a new node file whose first force never happened holds an empty tree
+        Path fresh = directory.resolve("fresh");
+        Files.write(fresh, new byte[2 * REDO_PAGE_SIZE]);
+        try (MappedWAVLTree copy = MappedWAVLTree.open(fresh)) {
+            check(copy.size() == 0, "a never forced file holds " + copy.size() + " items");
+            copy.insert(1, "a");
+        }
+        try (MappedWAVLTree copy = MappedWAVLTree.open(fresh)) {
+            check("a".equals(copy.search(1)) && copy.size() == 1, "the first item of a fresh file");
+        }
+        System.out.println("MappedWAVLTree: reopen, crash, replayed and torn redo files passed");
+    }
+
+    /**
+     * returns a redo file that turns the files of the tree at from into the files at to, as
+     * force writes it
+     */
+    private static byte[] redo(Path from, Path to) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MappedWAVLTree.REDO_MAGIC);
+        for (byte target : new byte[]{MappedWAVLTree.NODE_FILE, MappedWAVLTree.INFO_FILE}) {
+            String suffix = target == MappedWAVLTree.NODE_FILE ? "" : ".info";
+            byte[] old = Files.readAllBytes(Paths.get(from + suffix));
+            byte[] changed = Files.readAllBytes(Paths.get(to + suffix));
+            for (int position = 0; position < changed.length; position += REDO_PAGE_SIZE) {
+                int length = Math.min(REDO_PAGE_SIZE, changed.length - position);
+                boolean same = position + length <= old.length
+                        && Arrays.equals(Arrays.copyOfRange(old, position, position + length), Arrays.copyOfRange(changed, position, position + length));
+                if (!same) {
+                    out.writeByte(target);
+                    out.writeLong(position);
+                    out.writeInt(length);
+                    out.write(changed, position, length);
+                }
+            }
+        }
+        out.writeByte(MappedWAVLTree.END);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * copies the checkpoint and the log of a tree into target and target.log, as a crash leaves
+     * them, and returns the path of the copied checkpoint
+     */
+    private static Path crashCopy(Path checkpoint, Path logFile, Path target) throws IOException {
+        if (Files.exists(checkpoint)) {
+            Files.copy(checkpoint, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.copy(logFile, logFile(target), StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    private static Path logFile(Path checkpoint) {
+        return Paths.get(checkpoint + ".log");
+    }
+
+    /**
+     * copies the node, info and redo files of the tree at path to target, and returns target
+     */
+    private static Path copyMapped(Path path, Path target) throws IOException {
+        for (String suffix : new String[]{"", ".info", ".redo"}) {
+            Path from = Paths.get(path + suffix);
+            Path to = Paths.get(target + suffix);
+            if (Files.exists(from)) {
+                Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(to);
+            }
+        }
+        return target;
+    }
+
+    private static Path redoFile(Path path) {
+        return Paths.get(path + ".redo");
+    }
+
+    private static String longInfo(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    /**
+     * waits for the threads, rethrows the first failure, and returns the items of all the maps
+     */
+    private static TreeMap<Integer, String> joinThreads(Thread[] threads, Throwable[] failures, List<TreeMap<Integer, String>> maps)
+            throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable failure : failures) {
+            if (failure != null) {
+                throw new AssertionError("a thread failed", failure);
+            }
+        }
+        TreeMap<Integer, String> all = new TreeMap<>();
+        for (TreeMap<Integer, String> map : maps) {
+            all.putAll(map);
+        }
+        return all;
+    }
+
+    private static void checkSame(WAVLTree tree, TreeMap<Integer, String> expected) {
+        tree.checkInvariants();
+        checkItems(tree.keysToArray(), tree.infoToArray(), expected);
+    }
+
+    private static void checkSame(MappedWAVLTree tree, TreeMap<Integer, String> expected) {
+        tree.checkInvariants();
+        checkItems(tree.keysToArray(), tree.infoToArray(), expected);
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            check(Objects.equals(tree.search(entry.getKey()), entry.getValue()), "search of " + entry.getKey());
+        }
+    }
+
+    private static void checkItems(int[] keys, String[] infos, TreeMap<Integer, String> expected) {
+        check(keys.length == expected.size() && infos.length == expected.size(), "size " + keys.length + " instead of " + expected.size());
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            check(keys[i] == entry.getKey() && Objects.equals(infos[i], entry.getValue()), "item " + i + " is " + keys[i] + " instead of " + entry.getKey());
+            i++;
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult postVisitDirectory(Path visited, IOException e) throws IOException {
+                Files.delete(visited);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
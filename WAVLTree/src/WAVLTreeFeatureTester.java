@@ -0,0 +1,669 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BinaryOperator;
+
+/**
+ * WAVLTreeFeatureTester
+ *
+ * Runs random operations on WAVLTree and compares every result with a TreeMap that holds the
+ * same items, checking the rules of the WAVL tree and the fields its nodes keep with
+ * checkInvariants along the way. Every section covers a group of the operations of the tree.
+ *
+ * Every section prints a line when it passes; the first mismatch throws an AssertionError.
+ *
+ * usage: java WAVLTreeFeatureTester [seed]
+ */
+public class WAVLTreeFeatureTester {
+    private static final int KEY_RANGE = 4000; // small enough that inserts and deletes often find their keys
+    private static final int STEPS = 200000;
+    private static final int CHECK_INTERVAL = 1000; // the steps between full comparisons with the map
+
+    public static void main(String[] args) throws IOException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        Random random = new Random(seed);
+
+        testOperations(random);
+        testBatches(random);
+        testAggregates(random);
+        testSplitAndJoin(random);
+        testSetOperations(random);
+        testSnapshots(random);
+        testRelaxed(random);
+        System.out.println("all the WAVLTree features passed, seed " + seed);
+    }
+
+    /**
+     * single item operations and the queries of the tree, with full comparisons along the way
+     */
+    private static void testOperations(Random random) {
+        WAVLTree tree = new WAVLTree();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+
+        for (int step = 1; step <= STEPS; step++) {
+            int key = randomKey(random);
+            switch (random.nextInt(12)) {
+                case 0:
+                case 1: {
+                    String info = randomInfo(random, step);
+                    check((tree.insert(key, info) == -1) == expected.containsKey(key), "insert of existing key " + key);
+                    insert(expected, key, info);
+                    break;
+                }
+                case 2: {
+                    String info = randomInfo(random, step);
+                    check((tree.fingerInsert(key, info) == -1) == expected.containsKey(key), "fingerInsert of existing key " + key);
+                    insert(expected, key, info);
+                    break;
+                }
+                case 3:
+                case 4:
+                    check((tree.delete(key) == -1) != expected.containsKey(key), "delete of key " + key);
+                    expected.remove(key);
+                    break;
+                case 5:
+                    check((tree.fingerDelete(key) == -1) != expected.containsKey(key), "fingerDelete of key " + key);
+                    expected.remove(key);
+                    break;
+                case 6:
+                    if (random.nextBoolean()) {
+                        Map.Entry<Integer, String> first = expected.pollFirstEntry();
+                        String polled = tree.pollMin();
+                        check(first == null ? polled == null && tree.empty() : Objects.equals(polled, first.getValue()), "pollMin");
+                    } else {
+                        Map.Entry<Integer, String> last = expected.pollLastEntry();
+                        String polled = tree.pollMax();
+                        check(last == null ? polled == null && tree.empty() : Objects.equals(polled, last.getValue()), "pollMax");
+                    }
+                    break;
+                case 7:
+                    check(Objects.equals(tree.floorKey(key), expected.floorKey(key)), "floorKey of " + key);
+                    check(Objects.equals(tree.ceilingKey(key), expected.ceilingKey(key)), "ceilingKey of " + key);
+                    check(Objects.equals(tree.higherKey(key), expected.higherKey(key)), "higherKey of " + key);
+                    check(Objects.equals(tree.lowerKey(key), expected.lowerKey(key)), "lowerKey of " + key);
+                    break;
+                case 8: {
+                    check(tree.rank(key) == expected.headMap(key).size(), "rank of " + key);
+                    int hi = key + random.nextInt(KEY_RANGE / 4);
+                    check(tree.countInRange(key, hi) == expected.subMap(key, true, hi, true).size(), "countInRange " + key + ".." + hi);
+                    if (!expected.isEmpty()) {
+                        Integer floor = expected.floorKey(key);
+                        if (floor != null) {
+                            check(tree.select(expected.headMap(floor).size()) == floor, "select of the rank of " + floor);
+                        }
+                    }
+                    break;
+                }
+                case 9: {
+                    int hi = key + random.nextInt(KEY_RANGE / 4);
+                    checkRange(tree, expected, key, hi);
+                    break;
+                }
+                case 10:
+                    checkCursor(tree, expected, key, random.nextInt(64));
+                    break;
+                default:
+                    check(Objects.equals(tree.search(key), expected.get(key)), "search of key " + key);
+                    check(Objects.equals(tree.fingerSearch(key), expected.get(key)), "fingerSearch of key " + key);
+                    break;
+            }
+
+            if (step % CHECK_INTERVAL == 0) {
+                checkSame(tree, expected);
+                checkOrderStatistics(tree, expected);
+                checkExports(tree, expected);
+            }
+        }
+
+        // the extreme keys
+        for (int key : new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE + 1, Integer.MAX_VALUE - 1}) {
+            check(tree.insert(key, "edge" + key) != -1, "insert of " + key);
+            expected.put(key, "edge" + key);
+        }
+        checkSame(tree, expected);
+        checkRange(tree, expected, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        checkCursor(tree, expected, Integer.MIN_VALUE, expected.size() + 1);
+        check(tree.floorKey(Integer.MIN_VALUE) == Integer.MIN_VALUE && tree.higherKey(Integer.MAX_VALUE) == null, "navigation at the ends");
+
+        // empty the tree from both ends
+        while (!expected.isEmpty()) {
+            check(tree.peekMinKey() == expected.firstKey() && tree.peekMaxKey() == expected.lastKey(), "peek of a tree of " + expected.size());
+            check(Objects.equals(tree.pollMin(), expected.pollFirstEntry().getValue()), "pollMin while emptying");
+            if (!expected.isEmpty()) {
+                check(Objects.equals(tree.pollMax(), expected.pollLastEntry().getValue()), "pollMax while emptying");
+            }
+        }
+        checkSame(tree, expected);
+        System.out.println("operations: " + STEPS + " random operations passed");
+    }
+
+    /**
+     * insertAll and deleteAll, with small batches that go through fingerInsert and large ones
+     * that are united with the tree
+     */
+    private static void testBatches(Random random) {
+        WAVLTree tree = new WAVLTree();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+
+        for (int round = 0; round < 400; round++) {
+            int batchSize = random.nextInt(4) == 0 ? random.nextInt(2 * tree.size() + 2) : random.nextInt(64);
+            int[] keys = new int[batchSize];
+            String[] infos = new String[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                keys[i] = randomKey(random);
+                infos[i] = randomInfo(random, round * 1000 + i);
+            }
+
+            if (random.nextInt(3) > 0) {
+                int inserted = 0;
+                for (int i = 0; i < batchSize; i++) {
+                    if (!expected.containsKey(keys[i])) {
+                        expected.put(keys[i], infos[i]);
+                        inserted++;
+                    }
+                }
+                check(tree.insertAll(keys, infos).count() == inserted, "insertAll count in round " + round);
+            } else {
+                int deleted = 0;
+                for (int key : keys) {
+                    if (expected.containsKey(key)) {
+                        expected.remove(key);
+                        deleted++;
+                    }
+                }
+                check(tree.deleteAll(keys).count() == deleted, "deleteAll count in round " + round);
+            }
+            checkSame(tree, expected);
+        }
+        System.out.println("batches: insertAll and deleteAll passed, " + expected.size() + " items left");
+    }
+
+    /**
+     * the aggregates of a commutative and a non-commutative augmentation, set before and after
+     * the items are inserted
+     */
+    private static void testAggregates(Random random) {
+        WAVLTree.Augmentation<Long> sum = new WAVLTree.Augmentation<Long>() {
+            public Long identity() {
+                return 0L;
+            }
+
+            public Long valueOf(int key, String info) {
+                return (long) key;
+            }
+
+            public Long combine(Long first, Long second) {
+                return first + second;
+            }
+        };
+        // the first and last keys of a range and whether the keys between them ascend
+        WAVLTree.Augmentation<long[]> order = new WAVLTree.Augmentation<long[]>() {
+            public long[] identity() {
+                return new long[0];
+            }
+
+            public long[] valueOf(int key, String info) {
+                return new long[]{key, key, 1};
+            }
+
+            public long[] combine(long[] first, long[] second) {
+                if (first.length == 0) {
+                    return second;
+                }
+                if (second.length == 0) {
+                    return first;
+                }
+                return new long[]{first[0], second[1], first[2] == 1 && second[2] == 1 && first[1] < second[0] ? 1 : 0};
+            }
+        };
+
+        WAVLTree tree = new WAVLTree();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        tree.setAugmentation(sum);
+        for (int step = 1; step <= STEPS / 4; step++) {
+            int key = randomKey(random);
+            if (random.nextInt(3) > 0) {
+                String info = randomInfo(random, step);
+                tree.insert(key, info);
+                insert(expected, key, info);
+            } else {
+                tree.delete(key);
+                expected.remove(key);
+            }
+
+            if (step < STEPS / 8 && step % 4 == 0) {
+                int hi = key + random.nextInt(KEY_RANGE / 2);
+                long total = 0;
+                for (int k : expected.subMap(key, true, hi, true).keySet()) {
+                    total += k;
+                }
+                check(tree.<Long>aggregate(key, hi) == total, "sum aggregate of " + key + ".." + hi);
+            }
+            if (step % CHECK_INTERVAL == 0) {
+                checkSame(tree, expected);
+            }
+            if (step == STEPS / 8) {
+                // recompute every aggregate of a full tree in another monoid
+                tree.setAugmentation(order);
+                checkSame(tree, expected);
+            }
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            int lo = randomKey(random);
+            int hi = lo + random.nextInt(KEY_RANGE / 2);
+            NavigableMap<Integer, String> range = expected.subMap(lo, true, hi, true);
+            long[] aggregate = tree.aggregate(lo, hi);
+            check(range.isEmpty() ? aggregate.length == 0
+                            : aggregate[0] == range.firstKey() && aggregate[1] == range.lastKey() && aggregate[2] == 1,
+                    "order aggregate of " + lo + ".." + hi);
+        }
+
+        tree.setAugmentation(null);
+        boolean thrown = false;
+        try {
+            tree.aggregate(0, 1);
+        } catch (IllegalStateException e) {
+            thrown = true;
+        }
+        check(thrown, "aggregate without an augmentation");
+        checkSame(tree, expected);
+        System.out.println("aggregates: sum and order augmentations passed");
+    }
+
+    /**
+     * split at present and absent keys, and both joins putting the parts back together
+     */
+    private static void testSplitAndJoin(Random random) {
+        for (int round = 0; round < 2000; round++) {
+            TreeMap<Integer, String> expected = randomMap(random, random.nextInt(round < 20 ? 4 : 3000));
+            WAVLTree tree = randomTree(random, expected);
+            int key = random.nextInt(8) == 0 ? (random.nextBoolean() ? Integer.MIN_VALUE : Integer.MAX_VALUE) : randomKey(random);
+
+            WAVLTree[] parts = tree.split(key);
+            check(tree.empty() && tree.size() == 0, "a split tree isn't empty");
+            checkSame(parts[0], expected.headMap(key, false));
+            checkSame(parts[1], expected.tailMap(key, true));
+
+            WAVLTree joined;
+            if (expected.containsKey(key) && random.nextBoolean()) {
+                String info = parts[1].search(key);
+                parts[1].delete(key);
+                joined = WAVLTree.join(parts[0], key, info, parts[1]);
+            } else if (!expected.containsKey(key) && random.nextBoolean()) {
+                // a new middle item between the parts
+                joined = WAVLTree.join(parts[0], key, "middle", parts[1]);
+                expected.put(key, "middle");
+            } else {
+                joined = WAVLTree.join(parts[0], parts[1]);
+            }
+            check(parts[0].empty() && parts[1].empty(), "joined trees aren't empty");
+            checkSame(joined, expected);
+
+            // the joined tree keeps working
+            for (int i = 0; i < 20; i++) {
+                int k = randomKey(random);
+                if (random.nextBoolean()) {
+                    joined.insert(k, "after" + i);
+                    insert(expected, k, "after" + i);
+                } else {
+                    joined.delete(k);
+                    expected.remove(k);
+                }
+            }
+            checkSame(joined, expected);
+        }
+        System.out.println("split and join: 2000 rounds passed");
+    }
+
+    /**
+     * union, intersection and difference of trees of different sizes
+     */
+    private static void testSetOperations(Random random) {
+        for (int round = 0; round < 1500; round++) {
+            TreeMap<Integer, String> first = randomMap(random, random.nextInt(round < 20 ? 4 : 3000));
+            TreeMap<Integer, String> second = randomMap(random, random.nextInt(round % 3 == 0 ? 30 : 3000));
+
+            TreeMap<Integer, String> union = new TreeMap<>(second);
+            union.putAll(first);
+            TreeMap<Integer, String> intersection = new TreeMap<>(first);
+            intersection.keySet().retainAll(second.keySet());
+            TreeMap<Integer, String> difference = new TreeMap<>(first);
+            difference.keySet().removeAll(second.keySet());
+
+            WAVLTree a = randomTree(random, first);
+            WAVLTree b = randomTree(random, second);
+            checkSame(WAVLTree.union(a, b), union);
+            check(a.empty() && b.empty(), "union left its trees");
+
+            a = randomTree(random, first);
+            b = randomTree(random, second);
+            checkSame(WAVLTree.intersection(a, b), intersection);
+            check(a.empty() && b.empty(), "intersection left its trees");
+
+            a = randomTree(random, first);
+            b = randomTree(random, second);
+            checkSame(WAVLTree.difference(a, b), difference);
+            check(a.empty() && b.empty(), "difference left its trees");
+        }
+        System.out.println("set operations: union, intersection and difference passed");
+    }
+
+    /**
+     * writeTo and readFrom through streams and channels, and the rejection of a cut snapshot
+     */
+    private static void testSnapshots(Random random) throws IOException {
+        for (int round = 0; round < 300; round++) {
+            TreeMap<Integer, String> expected = randomMap(random, round == 0 ? 0 : random.nextInt(5000));
+            if (round % 10 == 1) {
+                expected.put(Integer.MIN_VALUE, "");
+                expected.put(Integer.MAX_VALUE, "\u05e2\u05e5 \ud83c\udf33");
+            }
+            WAVLTree tree = randomTree(random, expected);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            if (random.nextBoolean()) {
+                tree.writeTo(bytes);
+            } else {
+                tree.writeTo(Channels.newChannel(bytes));
+            }
+            checkSame(tree, expected);
+            byte[] snapshot = bytes.toByteArray();
+
+            WAVLTree read = random.nextBoolean()
+                    ? WAVLTree.readFrom(new ByteArrayInputStream(snapshot))
+                    : WAVLTree.readFrom(Channels.newChannel(new ByteArrayInputStream(snapshot)));
+            checkSame(read, expected);
+            read.insert(randomKey(random), "after");
+            read.checkInvariants();
+
+            boolean thrown = false;
+            try {
+                WAVLTree.readFrom(new ByteArrayInputStream(Arrays.copyOf(snapshot, random.nextInt(snapshot.length))));
+            } catch (IOException e) {
+                thrown = true;
+            }
+            check(thrown, "a cut snapshot of " + expected.size() + " items was read");
+        }
+        System.out.println("snapshots: writeTo and readFrom round trips passed");
+    }
+
+    /**
+     * relaxed deletes through phases that grow, shrink and churn the tree, so it is rebuilt
+     * now and then, with the relaxed rank rule and the bound of the rank of the root checked
+     * along the way, and a split and turning relaxed deletes off at the end
+     */
+    private static void testRelaxed(Random random) {
+        WAVLTree tree = new WAVLTree();
+        tree.setRelaxed(true);
+        // the sum of the keys, so checkInvariants also checks the aggregates the deletes leave
+        tree.setAugmentation(new WAVLTree.Augmentation<Long>() {
+            public Long identity() {
+                return 0L;
+            }
+
+            public Long valueOf(int key, String info) {
+                return (long) key;
+            }
+
+            public Long combine(Long first, Long second) {
+                return first + second;
+            }
+        });
+        TreeMap<Integer, String> expected = new TreeMap<>();
+
+        for (int step = 1; step <= STEPS / 2; step++) {
+            int key = randomKey(random);
+            // 6000 steps of inserts, 6000 of deletes and 6000 of both in turn
+            int insertPercent = new int[]{80, 20, 50}[step / 6000 % 3];
+            if (random.nextInt(100) < insertPercent) {
+                String info = randomInfo(random, step);
+                int result = random.nextBoolean() ? tree.insert(key, info) : tree.fingerInsert(key, info);
+                check((result == -1) == expected.containsKey(key), "relaxed insert of existing key " + key);
+                insert(expected, key, info);
+            } else if (random.nextInt(8) == 0) {
+                Map.Entry<Integer, String> first = expected.pollFirstEntry();
+                String polled = tree.pollMin();
+                check(first == null ? polled == null : Objects.equals(polled, first.getValue()), "relaxed pollMin");
+            } else {
+                int result = random.nextBoolean() ? tree.delete(key) : tree.fingerDelete(key);
+                check(result == (expected.containsKey(key) ? 0 : -1), "relaxed delete of key " + key + " returned " + result);
+                expected.remove(key);
+            }
+
+            if (step % 100 == 0) {
+                tree.checkInvariants();
+            }
+            if (step % CHECK_INTERVAL == 0) {
+                checkSame(tree, expected);
+                checkOrderStatistics(tree, expected);
+                checkRange(tree, expected, key, key + KEY_RANGE / 4);
+            }
+        }
+        checkSame(tree, expected);
+        check(tree.isRelaxed(), "isRelaxed");
+
+        int key = randomKey(random);
+        WAVLTree[] parts = tree.split(key);
+        checkSame(parts[0], new TreeMap<>(expected.headMap(key, false)));
+        checkSame(parts[1], new TreeMap<>(expected.tailMap(key, true)));
+        check(!parts[0].isRelaxed() && !parts[1].isRelaxed(), "the parts of a split are relaxed");
+
+        tree = parts[1];
+        expected = new TreeMap<>(expected.tailMap(key, true));
+        tree.setRelaxed(true);
+        while (expected.size() > 10) {
+            Integer next = expected.ceilingKey(expected.firstKey() + random.nextInt(KEY_RANGE));
+            key = next == null ? expected.lastKey() : next;
+            check(tree.delete(key) == 0, "relaxed delete of key " + key + " while shrinking");
+            expected.remove(key);
+        }
+        checkSame(tree, expected);
+        tree.setRelaxed(false);
+        checkSame(tree, expected);
+        System.out.println("relaxed: " + STEPS / 2 + " random operations with relaxed deletes passed");
+    }
+
+    /**
+     * Compares the items, size, ends and invariants of tree with expected
+     */
+    private static void checkSame(WAVLTree tree, NavigableMap<Integer, String> expected) {
+        tree.checkInvariants();
+        check(tree.size() == expected.size() && tree.empty() == expected.isEmpty(), "size " + tree.size() + " instead of " + expected.size());
+
+        int[] keys = tree.keysToArray();
+        String[] infos = tree.infoToArray();
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            check(keys[i] == entry.getKey() && Objects.equals(infos[i], entry.getValue()), "item " + i + " is " + keys[i] + " instead of " + entry.getKey());
+            i++;
+        }
+        check(i == keys.length && i == infos.length, "the exports have " + keys.length + " items");
+
+        if (expected.isEmpty()) {
+            check(tree.min() == null && tree.max() == null, "min or max of an empty tree");
+        } else {
+            check(Objects.equals(tree.min(), expected.firstEntry().getValue()) && tree.peekMinKey() == expected.firstKey(), "min");
+            check(Objects.equals(tree.max(), expected.lastEntry().getValue()) && tree.peekMaxKey() == expected.lastKey(), "max");
+        }
+    }
+
+    /**
+     * select and rank of every item
+     */
+    private static void checkOrderStatistics(WAVLTree tree, TreeMap<Integer, String> expected) {
+        int i = 0;
+        for (int key : expected.keySet()) {
+            check(tree.select(i) == key && tree.rank(key) == i, "select or rank of item " + i);
+            i++;
+        }
+        for (int k : new int[]{-1, expected.size()}) {
+            boolean thrown = false;
+            try {
+                tree.select(k);
+            } catch (IndexOutOfBoundsException e) {
+                thrown = true;
+            }
+            check(thrown, "select(" + k + ") of a tree of " + expected.size());
+        }
+    }
+
+    /**
+     * the streams, the parallel exports, parallelForEach and parallelReduce
+     */
+    private static void checkExports(WAVLTree tree, TreeMap<Integer, String> expected) {
+        int[] keys = tree.keysToArray();
+        String[] infos = tree.infoToArray();
+        check(Arrays.equals(tree.stream().toArray(), keys), "stream");
+        check(Arrays.equals(tree.infoStream().toArray(), infos), "infoStream");
+        check(Arrays.equals(tree.parallelKeysToArray(), keys), "parallelKeysToArray");
+        check(Arrays.equals(tree.parallelInfoToArray(), infos), "parallelInfoToArray");
+
+        final ConcurrentHashMap<Integer, String> seen = new ConcurrentHashMap<>();
+        tree.parallelForEach(new WAVLTree.IntObjConsumer() {
+            public void accept(int key, String info) {
+                check(seen.put(key, info == null ? "null" : info) == null, "parallelForEach passed " + key + " twice");
+            }
+        });
+        check(seen.size() == expected.size(), "parallelForEach passed " + seen.size() + " items");
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            check(seen.get(entry.getKey()).equals(entry.getValue() == null ? "null" : entry.getValue()), "parallelForEach item " + entry.getKey());
+        }
+
+        long keySum = 0;
+        for (int key : keys) {
+            keySum += key;
+        }
+        long reduced = tree.parallelReduce(0L, new WAVLTree.IntObjAccumulator<Long>() {
+            public Long apply(Long result, int key, String info) {
+                return result + key;
+            }
+        }, new BinaryOperator<Long>() {
+            public Long apply(Long first, Long second) {
+                return first + second;
+            }
+        });
+        check(reduced == keySum, "parallelReduce sum " + reduced + " instead of " + keySum);
+    }
+
+    /**
+     * forEachInRange over [lo, hi]
+     */
+    private static void checkRange(WAVLTree tree, TreeMap<Integer, String> expected, int lo, int hi) {
+        final StringBuilder visited = new StringBuilder();
+        tree.forEachInRange(lo, hi, new WAVLTree.IntObjConsumer() {
+            public void accept(int key, String info) {
+                visited.append(key).append('=').append(info).append(',');
+            }
+        });
+        StringBuilder wanted = new StringBuilder();
+        for (Map.Entry<Integer, String> entry : expected.subMap(lo, true, hi, true).entrySet()) {
+            wanted.append(entry.getKey()).append('=').append(entry.getValue()).append(',');
+        }
+        check(visited.toString().equals(wanted.toString()), "forEachInRange " + lo + ".." + hi);
+    }
+
+    /**
+     * a cursor sought to key and moved count times
+     */
+    private static void checkCursor(WAVLTree tree, TreeMap<Integer, String> expected, int key, int count) {
+        WAVLTree.Cursor cursor = tree.cursor();
+        boolean found = cursor.seek(key);
+        Map.Entry<Integer, String> entry = expected.ceilingEntry(key);
+        check(found == (entry != null) && cursor.valid() == found, "cursor seek of " + key);
+        for (int i = 0; i < count && entry != null; i++) {
+            check(cursor.valid() && cursor.key() == entry.getKey() && Objects.equals(cursor.info(), entry.getValue()), "cursor item after " + key);
+            check(cursor.next() == (expected.higherKey(entry.getKey()) != null), "cursor next after " + entry.getKey());
+            entry = expected.higherEntry(entry.getKey());
+        }
+        if (entry == null) {
+            check(!cursor.valid(), "cursor past the end");
+        }
+
+        check(cursor.first() == !expected.isEmpty(), "cursor first");
+        if (!expected.isEmpty()) {
+            check(cursor.key() == expected.firstKey(), "cursor first key");
+        }
+    }
+
+    /**
+     * returns a tree of the items of expected, built by fromSorted, by inserts in random
+     * order, or by insertAll
+     */
+    private static WAVLTree randomTree(Random random, TreeMap<Integer, String> expected) {
+        int[] keys = new int[expected.size()];
+        String[] infos = new String[expected.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            keys[i] = entry.getKey();
+            infos[i] = entry.getValue();
+            i++;
+        }
+
+        switch (random.nextInt(3)) {
+            case 0:
+                return WAVLTree.fromSorted(keys, infos);
+            case 1: {
+                WAVLTree tree = new WAVLTree();
+                for (int j = keys.length - 1; j > 0; j--) {
+                    int other = random.nextInt(j + 1);
+                    int key = keys[j];
+                    keys[j] = keys[other];
+                    keys[other] = key;
+                }
+                for (int key : keys) {
+                    tree.insert(key, expected.get(key));
+                }
+                return tree;
+            }
+            default: {
+                WAVLTree tree = new WAVLTree();
+                tree.insertAll(keys, infos);
+                return tree;
+            }
+        }
+    }
+
+    /**
+     * puts the item in expected unless its key is there, as insert does. putIfAbsent would
+     * replace an item whose info is null.
+     */
+    private static void insert(TreeMap<Integer, String> expected, int key, String info) {
+        if (!expected.containsKey(key)) {
+            expected.put(key, info);
+        }
+    }
+
+    private static TreeMap<Integer, String> randomMap(Random random, int size) {
+        TreeMap<Integer, String> map = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(randomKey(random), randomInfo(random, i));
+        }
+        return map;
+    }
+
+    private static int randomKey(Random random) {
+        return random.nextInt(KEY_RANGE) - KEY_RANGE / 2;
+    }
+
+    /**
+     * returns a distinct info, or now and then null
+     */
+    private static String randomInfo(Random random, int id) {
+        return random.nextInt(16) == 0 ? null : "info" + id;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,641 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * WAVLTreeLog
+ *
+ * A write-ahead log that makes the inserts and deletes of a WAVLTree durable. open recovers
+ * the tree from the latest checkpoint and the log, and attaches the log to it; every later
+ * insert and delete of the tree that changes it appends a record to the log before the tree
+ * is changed, and checkpoint writes a snapshot of the tree, after which the log starts over.
+ *
+ * The tree can be changed directly by one thread at a time, or from many threads through
+ * insert, delete and search of the log, which hold the monitor of the tree while they read
+ * or change it. The durability decides when a change returns:
+ * SYNC   - the record is written and forced to the storage device before the change returns,
+ *          while the tree is still held, one fsync per change.
+ * GROUP  - the change waits for a background flusher, which writes and forces all the records
+ *          appended since its last fsync at once. the changes made through the log wait after
+ *          they release the tree, so the changes of several threads share their fsyncs; a
+ *          change made directly on the tree waits before it returns.
+ * ASYNC  - the change returns at once, and the flusher forces the records every few
+ *          milliseconds. a crash may lose the changes of the last few milliseconds, but never
+ *          leaves a tree that is not the result of a prefix of its changes.
+ * A change whose record was appended but which failed to become durable throws an
+ * UncheckedIOException after it changed the tree, and so does every later change.
+ *
+ * The log file starts with a header, followed by the records: the length of the record's
+ * payload, the payload - the operation, a sequence number, the key, and for an insert the
+ * info in UTF-8 - and a CRC32 of the payload. The checkpoint file holds the sequence number
+ * of the last change it includes, followed by a snapshot of the tree as WAVLTree.writeTo
+ * writes it, and is replaced atomically. Recovery replays the records after the sequence
+ * number of the checkpoint, and cuts the log at the first record that is torn or corrupt.
+ * The directory is forced after the checkpoint is renamed and after a log file is created,
+ * so that the new names survive a crash as well.
+ *
+ * split, join, union, intersection and difference are not logged, and throw
+ * IllegalStateException when they are passed a logged tree.
+ */
+public class WAVLTreeLog implements Closeable {
+    /**
+     * When a logged change is durable, see the class comment
+     */
+    public enum Durability {
+        SYNC, GROUP, ASYNC
+    }
+
+    private static final int LOG_MAGIC = 0x574C4F47; // "WLOG"
+    private static final int CHECKPOINT_MAGIC = 0x57434B50; // "WCKP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 2;
+    private static final int MIN_PAYLOAD_SIZE = 1 + 8 + 4; // the operation, the sequence number and the key
+    private static final long ASYNC_FLUSH_MILLIS = 10;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path checkpointPath;
+    private final FileChannel channel;
+    private final Durability durability;
+    private final WAVLTree tree;
+    private final Object channelLock = new Object(); // held while the channel is written, forced or truncated
+    private final CRC32 crc = new CRC32();
+    private final Thread flusher; // null for SYNC
+
+    // guarded by this
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE); // the records not yet written
+    private ByteBuffer writing = ByteBuffer.allocate(BUFFER_SIZE); // the records being written, swapped with pending
+    private int payloadStart; // the position in pending of the payload of the record being appended
+    private long lastSequence; // the sequence number of the last appended record
+    private long durableSequence; // the sequence number of the last forced record
+    private IOException failure; // the error that stopped the flusher, or null
+    private boolean closed;
+
+    // guarded by the monitor of the tree
+    private boolean deferring; // true while insert or delete of the log changes the tree for GROUP
+    private long deferredSequence; // the last record appended while deferring, which is waited for after it
+
+    private WAVLTreeLog(Path checkpointPath, FileChannel channel, Durability durability, WAVLTree tree, long sequence) {
+        this.checkpointPath = checkpointPath;
+        this.channel = channel;
+        this.durability = durability;
+        this.tree = tree;
+        this.lastSequence = sequence;
+        this.durableSequence = sequence;
+        if (durability == Durability.SYNC) {
+            flusher = null;
+        } else {
+            flusher = new Thread(this::runFlusher, "WAVLTreeLog flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * public static WAVLTreeLog open(Path checkpointPath, Path logPath, Durability durability)
+     *
+     * recovers a tree from the checkpoint file and the log file - either of which may be
+     * missing, in which case it is taken as empty - and returns the log attached to it, which
+     * tree() returns. a torn or corrupt record at the end of the log, left by a crash while
+     * it was written, is cut off with everything after it.
+     * throws IOException if the files can't be read, or aren't a checkpoint and a log.
+     */
+    public static WAVLTreeLog open(Path checkpointPath, Path logPath, Durability durability) throws IOException {
+        WAVLTree tree;
+        long sequence;
+        if (Files.exists(checkpointPath)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpointPath)))) {
+                if (in.readInt() != CHECKPOINT_MAGIC) {
+                    throw new IOException("not a checkpoint file");
+                }
+                if (in.readInt() != VERSION) {
+                    throw new IOException("unsupported checkpoint version");
+                }
+                sequence = in.readLong();
+                tree = WAVLTree.readFrom(in);
+            }
+        } else {
+            tree = new WAVLTree();
+            sequence = 0;
+        }
+
+        FileChannel channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            sequence = replay(channel, logPath, tree, sequence);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        WAVLTreeLog log = new WAVLTreeLog(checkpointPath, channel, durability, tree, sequence);
+        tree.setLog(log);
+        return log;
+    }
+
+    /**
+     * Applies the records of a log after a sequence number to a tree, and leaves the channel
+     * at the end of the last valid record, with everything after it cut off.
+     *
+     * @return the sequence number of the last change of the tree
+     */
+    private static long replay(FileChannel channel, Path logPath, WAVLTree tree, long sequence) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            // a new log, or one whose header was torn before any record was written
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(LOG_MAGIC).putInt(VERSION);
+            header.flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.force(true);
+            forceDirectory(logPath); // the file may have just been created
+            channel.position(HEADER_SIZE);
+            return sequence;
+        }
+
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+        if (in.readInt() != LOG_MAGIC) {
+            throw new IOException("not a log file");
+        }
+        if (in.readInt() != VERSION) {
+            throw new IOException("unsupported log version");
+        }
+
+        CRC32 crc = new CRC32();
+        long end = HEADER_SIZE; // the end of the last valid record
+        byte[] payload = new byte[BUFFER_SIZE];
+        try {
+            while (end < size) {
+                int length = in.readInt();
+                if (length < MIN_PAYLOAD_SIZE || length > size - end - 8) {
+                    break; // a torn length, or a record that runs past the end of the file
+                }
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                in.readFully(payload, 0, length);
+                int checksum = in.readInt();
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+                byte operation = record.get();
+                long recordSequence = record.getLong();
+                int key = record.getInt();
+                if (recordSequence > sequence) {
+                    if (operation == INSERT) {
+                        int infoLength = record.getInt();
+                        String info = infoLength < 0 ? null
+                                : new String(payload, record.position(), infoLength, StandardCharsets.UTF_8);
+                        tree.insert(key, info);
+                    } else if (operation == DELETE) {
+                        tree.delete(key);
+                    } else {
+                        throw new IOException("unknown log operation " + operation);
+                    }
+                    sequence = recordSequence;
+                }
+                end += 4 + length + 4;
+            }
+        } catch (EOFException e) {
+            // the last record was torn
+        }
+
+        channel.truncate(end);
+        channel.position(end);
+        return sequence;
+    }
+
+    /**
+     * Forces the directory of a file, so that a file just created or renamed in it keeps its
+     * name after a crash. Windows can't open a directory, and makes renames durable itself.
+     */
+    static void forceDirectory(Path path) throws IOException {
+        if (System.getProperty("os.name").startsWith("Windows")) {
+            return;
+        }
+
+        try (FileChannel directory = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    /**
+     * public WAVLTree tree()
+     *
+     * returns the tree this log was recovered into and is attached to
+     */
+    public WAVLTree tree() {
+        return tree;
+    }
+
+    /**
+     * public Durability durability()
+     *
+     * returns the durability of the changes of the tree
+     */
+    public Durability durability() {
+        return durability;
+    }
+
+    /**
+     * public int insert(int k, String i)
+     *
+     * inserts an item to the tree as WAVLTree.insert does, holding the monitor of the tree,
+     * and returns when the change is as durable as the durability makes it. may be called by
+     * several threads at once; with GROUP they wait for their records after they release the
+     * tree, and share their fsyncs.
+     * throws IllegalStateException if the log is closed.
+     */
+    public int insert(int key, String info) {
+        long sequence;
+        int rebalanceCount;
+        synchronized (tree) {
+            startDeferring();
+            try {
+                rebalanceCount = tree.insert(key, info);
+            } finally {
+                deferring = false;
+            }
+            sequence = deferredSequence;
+        }
+        await(sequence);
+        return rebalanceCount;
+    }
+
+    /**
+     * public int delete(int k)
+     *
+     * deletes an item from the tree as WAVLTree.delete does, holding the monitor of the tree,
+     * and returns when the change is as durable as the durability makes it, like insert.
+     * throws IllegalStateException if the log is closed.
+     */
+    public int delete(int key) {
+        long sequence;
+        int rebalanceCount;
+        synchronized (tree) {
+            startDeferring();
+            try {
+                rebalanceCount = tree.delete(key);
+            } finally {
+                deferring = false;
+            }
+            sequence = deferredSequence;
+        }
+        await(sequence);
+        return rebalanceCount;
+    }
+
+    /**
+     * public String search(int k)
+     *
+     * returns the info of an item of the tree as WAVLTree.search does, holding the monitor
+     * of the tree, so it may be called while other threads change the tree through the log.
+     */
+    public String search(int key) {
+        synchronized (tree) {
+            return tree.search(key);
+        }
+    }
+
+    /**
+     * Starts a change made through the log, whose wait for its records is left to the caller
+     * for GROUP. assuming the caller holds the monitor of the tree.
+     */
+    private void startDeferring() {
+        if (tree.getLog() != this) {
+            throw new IllegalStateException("the log is closed");
+        }
+        deferredSequence = 0;
+        deferring = durability == Durability.GROUP;
+    }
+
+    /**
+     * public void sync()
+     *
+     * writes and forces every record appended so far, whatever the durability, and returns
+     * when they are durable.
+     */
+    public void sync() throws IOException {
+        flush();
+    }
+
+    /**
+     * public void checkpoint()
+     *
+     * writes a snapshot of the tree to a new checkpoint file, forces it, and replaces the
+     * checkpoint with it atomically, then empties the log. a crash at any point leaves a
+     * checkpoint and a log that recover the tree as it is now. holds the monitor of the tree
+     * until it returns, and the tree must not be changed directly meanwhile.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (tree) {
+            synchronized (channelLock) {
+                writeCheckpoint();
+            }
+        }
+    }
+
+    /**
+     * Writes the checkpoint and empties the log. assuming the caller holds the monitor of the
+     * tree and channelLock.
+     */
+    private void writeCheckpoint() throws IOException {
+        flushLocked();
+        long sequence;
+        synchronized (this) {
+            sequence = lastSequence;
+        }
+
+        Path temporary = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(16).putInt(CHECKPOINT_MAGIC).putInt(VERSION).putLong(sequence);
+            header.flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            OutputStream stream = Channels.newOutputStream(out);
+            tree.writeTo(stream);
+            out.force(true);
+        }
+        Files.move(temporary, checkpointPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // the log can't be emptied before the new name of the checkpoint is durable
+        forceDirectory(checkpointPath);
+
+        // the records are all in the checkpoint now, and would be skipped by a recovery anyway
+        channel.truncate(HEADER_SIZE);
+        channel.position(HEADER_SIZE);
+        channel.force(true);
+    }
+
+    /**
+     * public void close()
+     *
+     * stops the flusher, forces every record appended so far, closes the log file and
+     * detaches the log from the tree, whose later changes are not logged.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+
+        if (flusher != null) {
+            boolean interrupted = false;
+            while (flusher.isAlive()) {
+                try {
+                    flusher.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (tree) {
+            tree.setLog(null);
+        }
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Appends the record of an insert that is about to add an item to the tree
+     *
+     * @return the sequence number of the record, which is passed to finishChange once the
+     * tree was changed
+     */
+    long appendInsert(int key, String info) {
+        byte[] bytes = info == null ? null : info.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            ByteBuffer record = startRecord(MIN_PAYLOAD_SIZE + 4 + (bytes == null ? 0 : bytes.length), INSERT, key);
+            if (bytes == null) {
+                record.putInt(-1);
+            } else {
+                record.putInt(bytes.length).put(bytes);
+            }
+            return endRecord();
+        }
+    }
+
+    /**
+     * Appends the record of a delete that is about to remove an item from the tree
+     *
+     * @return the sequence number of the record, which is passed to finishChange once the
+     * tree was changed
+     */
+    long appendDelete(int key) {
+        synchronized (this) {
+            startRecord(MIN_PAYLOAD_SIZE, DELETE, key);
+            return endRecord();
+        }
+    }
+
+    /**
+     * Ends a change of the tree whose last record has a sequence number: returns when the
+     * record is as durable as the durability makes it, or leaves the wait to insert or delete
+     * of the log when the change is made through them with GROUP. assuming the caller holds
+     * the monitor of the tree.
+     */
+    void finishChange(long sequence) {
+        if (deferring) {
+            deferredSequence = sequence;
+        } else {
+            await(sequence);
+        }
+    }
+
+    /**
+     * Writes the start of a record to the pending buffer: its length, operation, sequence
+     * number and key. assuming the caller holds this.
+     *
+     * @return the pending buffer, which the rest of the payload is written to
+     */
+    private ByteBuffer startRecord(int payloadSize, byte operation, int key) {
+        if (closed) {
+            throw new IllegalStateException("the log is closed");
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("the log failed", failure);
+        }
+
+        int recordSize = 4 + payloadSize + 4;
+        if (pending.remaining() < recordSize) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + recordSize));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        pending.putInt(payloadSize);
+        payloadStart = pending.position();
+        return pending.put(operation).putLong(lastSequence + 1).putInt(key);
+    }
+
+    /**
+     * Ends the record started by startRecord with the checksum of its payload, and wakes the
+     * flusher. assuming the caller holds this.
+     *
+     * @return the sequence number of the record
+     */
+    private long endRecord() {
+        crc.reset();
+        crc.update(pending.array(), payloadStart, pending.position() - payloadStart);
+        pending.putInt((int) crc.getValue());
+        lastSequence++;
+        notifyAll();
+        return lastSequence;
+    }
+
+    /**
+     * Waits until the record with a sequence number is as durable as the durability of the
+     * log makes it: forced for SYNC and GROUP, and appended for ASYNC. returns at once for
+     * the sequence number 0, of no record.
+     */
+    private void await(long sequence) {
+        if (durability == Durability.ASYNC || sequence == 0) {
+            return;
+        }
+        if (durability == Durability.SYNC) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+
+        boolean interrupted = false;
+        synchronized (this) {
+            while (durableSequence < sequence && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (durableSequence < sequence) {
+                throw new UncheckedIOException("the log failed", failure);
+            }
+        }
+    }
+
+    /**
+     * Writes and forces every record appended so far
+     */
+    private void flush() throws IOException {
+        synchronized (channelLock) {
+            flushLocked();
+        }
+    }
+
+    /**
+     * Writes and forces every record appended so far. assuming the caller holds channelLock,
+     * so that only one flush writes at a time.
+     */
+    private void flushLocked() throws IOException {
+        long sequence;
+        ByteBuffer records;
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (pending.position() == 0) {
+                return;
+            }
+
+            // new records go to the other buffer while these are written
+            records = pending;
+            pending = writing;
+            writing = records;
+            sequence = lastSequence;
+        }
+
+        try {
+            records.flip();
+            while (records.hasRemaining()) {
+                channel.write(records);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+            throw e;
+        } finally {
+            records.clear();
+        }
+
+        synchronized (this) {
+            durableSequence = sequence;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The loop of the flusher: waits for records and flushes them, every ASYNC_FLUSH_MILLIS
+     * for ASYNC, until the log is closed or fails
+     */
+    private void runFlusher() {
+        while (true) {
+            synchronized (this) {
+                while (!closed && pending.position() == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return; // close flushes the rest
+                }
+            }
+
+            if (durability == Durability.ASYNC) {
+                try {
+                    Thread.sleep(ASYNC_FLUSH_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            try {
+                flush();
+            } catch (IOException e) {
+                return; // flushLocked kept the failure for the waiting changes
+            }
+        }
+    }
+}
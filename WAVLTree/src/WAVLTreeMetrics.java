@@ -0,0 +1,265 @@
+/**
+ * WAVLTreeMetrics
+ *
+ * Counters of the work done by the WAVLTrees a metrics object is attached to with
+ * WAVLTree.setMetrics: the rebalancing steps of inserts and deletes by kind, a histogram of
+ * the lengths of the search paths from the root, and the number, total and maximum latency of
+ * searches, inserts and deletes. Every search, insert and delete of a tree with metrics also
+ * records a WAVLTreeOperationEvent, which JFR keeps when the event is enabled in a recording.
+ *
+ * A tree without metrics only checks that it has none, so the cost of the metrics is paid
+ * only by the trees they are attached to. Like the tree, the counters are not thread safe: a
+ * metrics object must be used by one thread at a time.
+ *
+ * The rebalancing steps are counted as the rebalance counts of insert and delete count them:
+ * a promotion of an insert or a demotion of a delete moves the violation up the tree, and a
+ * rotation or double rotation ends the rebalancing, together with the rank changes it needs.
+ * the rebalancing of a join, used by split, union and insertAll, is counted with the inserts.
+ */
+public class WAVLTreeMetrics {
+    /**
+     * The operations whose latency is measured
+     */
+    public enum Operation {
+        SEARCH, INSERT, DELETE
+    }
+
+    // a WAVL tree of n nodes is at most 2 * log(n) high, so no search path is longer than 64 nodes
+    private static final int MAX_PATH_LENGTH = 64;
+    // an event that is never committed, telling whether a recording enables the events, so
+    // that operations allocate no event when none is recorded
+    private static final WAVLTreeOperationEvent EVENTS = new WAVLTreeOperationEvent();
+
+    long insertPromotions;
+    long insertRotations;
+    long insertDoubleRotations;
+    long deleteDemotions;
+    long deleteDoubleDemotions;
+    long deleteRotations;
+    long deleteDoubleRotations;
+    private final long[] pathLengths = new long[MAX_PATH_LENGTH + 1];
+    private int lastPathLength; // the length of the last search path, reported by the event of its operation
+    private final long[] operationCounts = new long[Operation.values().length];
+    private final long[] totalNanos = new long[Operation.values().length];
+    private final long[] maxNanos = new long[Operation.values().length];
+    private long startNanos; // the start of the operation being timed
+    private WAVLTreeOperationEvent event; // the event of the operation being timed, or null if it is not recorded
+
+    /**
+     * public long insertPromotions()
+     *
+     * returns the number of promotions by which inserts moved up the tree
+     */
+    public long insertPromotions() {
+        return insertPromotions;
+    }
+
+    /**
+     * public long insertRotations()
+     *
+     * returns the number of single rotations that ended the rebalancing of an insert
+     */
+    public long insertRotations() {
+        return insertRotations;
+    }
+
+    /**
+     * public long insertDoubleRotations()
+     *
+     * returns the number of double rotations that ended the rebalancing of an insert
+     */
+    public long insertDoubleRotations() {
+        return insertDoubleRotations;
+    }
+
+    /**
+     * public long deleteDemotions()
+     *
+     * returns the number of demotions of a single node by which deletes moved up the tree,
+     * including the demotions of leaves that were left with rank differences of (2,2)
+     */
+    public long deleteDemotions() {
+        return deleteDemotions;
+    }
+
+    /**
+     * public long deleteDoubleDemotions()
+     *
+     * returns the number of demotions of a node and its son by which deletes moved up the tree
+     */
+    public long deleteDoubleDemotions() {
+        return deleteDoubleDemotions;
+    }
+
+    /**
+     * public long deleteRotations()
+     *
+     * returns the number of single rotations that ended the rebalancing of a delete
+     */
+    public long deleteRotations() {
+        return deleteRotations;
+    }
+
+    /**
+     * public long deleteDoubleRotations()
+     *
+     * returns the number of double rotations that ended the rebalancing of a delete
+     */
+    public long deleteDoubleRotations() {
+        return deleteDoubleRotations;
+    }
+
+    /**
+     * public long searchPathCount(int length)
+     *
+     * returns the number of searches from the root whose path had length nodes, counting the
+     * node the search ended at. searches of an insert or delete are counted as well.
+     */
+    public long searchPathCount(int length) {
+        return length < 0 || length > MAX_PATH_LENGTH ? 0 : pathLengths[length];
+    }
+
+    /**
+     * public double averageSearchPathLength()
+     *
+     * returns the average length of the search paths from the root, or 0 if there were none
+     */
+    public double averageSearchPathLength() {
+        long count = 0;
+        long total = 0;
+        for (int length = 0; length <= MAX_PATH_LENGTH; length++) {
+            count += pathLengths[length];
+            total += length * pathLengths[length];
+        }
+
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * public long count(Operation operation)
+     *
+     * returns the number of operations of a kind, including those that found nothing to do
+     */
+    public long count(Operation operation) {
+        return operationCounts[operation.ordinal()];
+    }
+
+    /**
+     * public long totalNanos(Operation operation)
+     *
+     * returns the total latency of the operations of a kind, in nanoseconds
+     */
+    public long totalNanos(Operation operation) {
+        return totalNanos[operation.ordinal()];
+    }
+
+    /**
+     * public long maxNanos(Operation operation)
+     *
+     * returns the latency of the slowest operation of a kind, in nanoseconds
+     */
+    public long maxNanos(Operation operation) {
+        return maxNanos[operation.ordinal()];
+    }
+
+    /**
+     * public double averageNanos(Operation operation)
+     *
+     * returns the average latency of the operations of a kind in nanoseconds, or 0 if there were none
+     */
+    public double averageNanos(Operation operation) {
+        long count = count(operation);
+        return count == 0 ? 0 : (double) totalNanos(operation) / count;
+    }
+
+    /**
+     * public void reset()
+     *
+     * sets all the counters to zero
+     */
+    public void reset() {
+        insertPromotions = 0;
+        insertRotations = 0;
+        insertDoubleRotations = 0;
+        deleteDemotions = 0;
+        deleteDoubleDemotions = 0;
+        deleteRotations = 0;
+        deleteDoubleRotations = 0;
+        for (int length = 0; length <= MAX_PATH_LENGTH; length++) {
+            pathLengths[length] = 0;
+        }
+        for (int i = 0; i < operationCounts.length; i++) {
+            operationCounts[i] = 0;
+            totalNanos[i] = 0;
+            maxNanos[i] = 0;
+        }
+    }
+
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("insert: ").append(insertPromotions).append(" promotions, ")
+                .append(insertRotations).append(" rotations, ")
+                .append(insertDoubleRotations).append(" double rotations\n");
+        builder.append("delete: ").append(deleteDemotions).append(" demotions, ")
+                .append(deleteDoubleDemotions).append(" double demotions, ")
+                .append(deleteRotations).append(" rotations, ")
+                .append(deleteDoubleRotations).append(" double rotations\n");
+        builder.append(String.format("search path: %.2f nodes on average%n", averageSearchPathLength()));
+        for (Operation operation : Operation.values()) {
+            builder.append(String.format("%s: %d operations, %.1f ns on average, %d ns at most%n",
+                    operation.name().toLowerCase(), count(operation), averageNanos(operation), maxNanos(operation)));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Counts a search path from the root
+     *
+     * @param length - the number of nodes on the path
+     */
+    void recordSearchPath(int length) {
+        pathLengths[Math.min(length, MAX_PATH_LENGTH)]++;
+        lastPathLength = length;
+    }
+
+    /**
+     * Starts timing an operation, and starts its event if JFR records it
+     */
+    void begin() {
+        lastPathLength = 0;
+        if (EVENTS.isEnabled()) {
+            event = new WAVLTreeOperationEvent();
+            event.begin();
+        }
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Ends the timing of the operation begin started, adds its latency to the counters and
+     * commits its event
+     *
+     * @param result - the result of the operation, as described by WAVLTreeOperationEvent
+     */
+    void end(Operation operation, int key, int result) {
+        long nanos = System.nanoTime() - startNanos;
+        int index = operation.ordinal();
+        operationCounts[index]++;
+        totalNanos[index] += nanos;
+        if (nanos > maxNanos[index]) {
+            maxNanos[index] = nanos;
+        }
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation.name();
+                event.key = key;
+                event.result = result;
+                event.pathLength = lastPathLength;
+                event.commit();
+            }
+            event = null;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * WAVLTreeOperationEvent
+ *
+ * The JFR event of a search, insert or delete of a WAVLTree with metrics, recorded when a
+ * flight recording enables the event "WAVLTree.Operation". The event is timed from the start
+ * of the operation to its end, so a recording with a threshold shows only the slow operations.
+ */
+@Name("WAVLTree.Operation")
+@Label("WAVL Tree Operation")
+@Category("WAVL Tree")
+@Description("A search, insert or delete of a WAVL tree")
+class WAVLTreeOperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Key")
+    int key;
+
+    @Label("Result")
+    @Description("The number of rebalancing operations of an insert or delete, or -1 if it changed nothing; 1 if a search found its key and 0 otherwise")
+    int result;
+
+    @Label("Path Length")
+    @Description("The number of nodes on the search path of the operation, or 0 if it started from the finger")
+    int pathLength;
+}
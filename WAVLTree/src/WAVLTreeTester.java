@@ -34,7 +34,7 @@ public class WAVLTreeTester {
         while(!tree.empty()) {
             j++;
 
-            int rebalance_count = tree.delete(Integer.parseInt(tree.min()));
+            int rebalance_count = tree.delete(tree.peekMinKey());
 
             sum += rebalance_count;
             if (rebalance_count != -1) {
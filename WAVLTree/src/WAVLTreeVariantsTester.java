@@ -0,0 +1,630 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * WAVLTreeVariantsTester
+ *
+ * Runs random operations on the other trees of the package and compares every result with a
+ * TreeMap that holds the same items, checking the rules of the WAVL tree with checkInvariants
+ * along the way. Every section covers one of the trees.
+ *
+ * Every section prints a line when it passes; the first mismatch throws an AssertionError.
+ *
+ * usage: java WAVLTreeVariantsTester [seed]
+ */
+public class WAVLTreeVariantsTester {
+    private static final int KEY_RANGE = 4000; // small enough that inserts and deletes often find their keys
+    private static final int STEPS = 100000;
+    private static final int CHECK_INTERVAL = 1000; // the steps between full comparisons with the map
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        Random random = new Random(seed);
+
+        Subject[] subjects = {new ArraySubject(), new BlockedSubject(), new LongSubject(),
+                new IntLongSubject(), new IntBytesSubject(), new OffHeapSubject()};
+        for (Subject subject : subjects) {
+            try {
+                testSubject(subject, random);
+            } finally {
+                subject.close();
+            }
+            System.out.println(subject.name + ": " + STEPS + " random operations passed");
+        }
+        testPersistent(random);
+        testInterval(random);
+        System.out.println("all the variants passed, seed " + seed);
+    }
+
+    /**
+     * random inserts, deletes and searches, then a sequential fill and drain of the tree
+     */
+    private static void testSubject(Subject subject, Random random) {
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        for (int step = 1; step <= STEPS; step++) {
+            int key = random.nextInt(KEY_RANGE) - KEY_RANGE / 2;
+            switch (random.nextInt(3)) {
+                case 0: {
+                    String info = subject.supportsNull && random.nextInt(16) == 0 ? null : Integer.toString(step);
+                    check((subject.insert(key, info) == -1) == expected.containsKey(key), subject.name + " insert of existing key " + key);
+                    if (!expected.containsKey(key)) {
+                        expected.put(key, info);
+                    }
+                    break;
+                }
+                case 1:
+                    check((subject.delete(key) == -1) != expected.containsKey(key), subject.name + " delete of key " + key);
+                    expected.remove(key);
+                    break;
+                default:
+                    check(Objects.equals(subject.search(key), expected.get(key)), subject.name + " search of key " + key);
+                    break;
+            }
+            if (step % CHECK_INTERVAL == 0) {
+                checkSame(subject, expected);
+            }
+        }
+
+        // the extreme keys, then every item deleted in random order
+        for (int key : new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+            check(subject.insert(key, "0") != -1, subject.name + " insert of " + key);
+            expected.put(key, "0");
+        }
+        checkSame(subject, expected);
+        List<Integer> keys = new ArrayList<>(expected.keySet());
+        for (int i = keys.size() - 1; i > 0; i--) {
+            int other = random.nextInt(i + 1);
+            int key = keys.get(i);
+            keys.set(i, keys.get(other));
+            keys.set(other, key);
+        }
+        for (int key : keys) {
+            check(subject.delete(key) != -1, subject.name + " delete of " + key);
+            expected.remove(key);
+        }
+        checkSame(subject, expected);
+
+        // ascending inserts grow the storage of the tree, descending deletes drain it
+        for (int key = 0; key < 50000; key++) {
+            subject.insert(key, Integer.toString(key));
+            expected.put(key, Integer.toString(key));
+        }
+        checkSame(subject, expected);
+        for (int key = 49999; key >= 0; key -= 2) {
+            subject.delete(key);
+            expected.remove(key);
+        }
+        checkSame(subject, expected);
+    }
+
+    /**
+     * random inserts and deletes on a PersistentWAVLTree, with snapshots taken along the way
+     * that must keep their items
+     */
+    private static void testPersistent(Random random) {
+        PersistentWAVLTree tree = new PersistentWAVLTree();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        List<PersistentWAVLTree.Snapshot> snapshots = new ArrayList<>();
+        List<TreeMap<Integer, String>> snapshotItems = new ArrayList<>();
+
+        for (int step = 1; step <= STEPS; step++) {
+            int key = random.nextInt(KEY_RANGE) - KEY_RANGE / 2;
+            switch (random.nextInt(3)) {
+                case 0: {
+                    String info = random.nextInt(16) == 0 ? null : Integer.toString(step);
+                    check((tree.insert(key, info) == -1) == expected.containsKey(key), "PersistentWAVLTree insert of existing key " + key);
+                    if (!expected.containsKey(key)) {
+                        expected.put(key, info);
+                    }
+                    break;
+                }
+                case 1:
+                    check((tree.delete(key) == -1) != expected.containsKey(key), "PersistentWAVLTree delete of key " + key);
+                    expected.remove(key);
+                    break;
+                default:
+                    check(Objects.equals(tree.search(key), expected.get(key)), "PersistentWAVLTree search of key " + key);
+                    break;
+            }
+
+            if (step % CHECK_INTERVAL == 0) {
+                PersistentWAVLTree.Snapshot snapshot = tree.snapshot();
+                checkSnapshot(snapshot, expected);
+                check(tree.size() == expected.size() && tree.empty() == expected.isEmpty(), "PersistentWAVLTree size");
+                check(Arrays.equals(tree.keysToArray(), snapshot.keysToArray())
+                        && Arrays.equals(tree.infoToArray(), snapshot.infoToArray()), "PersistentWAVLTree exports");
+                check(Objects.equals(tree.min(), snapshot.min()) && Objects.equals(tree.max(), snapshot.max()), "PersistentWAVLTree min or max");
+                if (step % (10 * CHECK_INTERVAL) == 0) {
+                    snapshots.add(snapshot);
+                    snapshotItems.add(new TreeMap<>(expected));
+                }
+            }
+        }
+
+        for (int i = 0; i < snapshots.size(); i++) {
+            checkSnapshot(snapshots.get(i), snapshotItems.get(i));
+        }
+        System.out.println("PersistentWAVLTree: " + STEPS + " random operations and " + snapshots.size() + " kept snapshots passed");
+    }
+
+    private static void checkSnapshot(PersistentWAVLTree.Snapshot snapshot, TreeMap<Integer, String> expected) {
+        snapshot.checkInvariants();
+        check(snapshot.size() == expected.size() && snapshot.empty() == expected.isEmpty(), "snapshot size " + snapshot.size());
+        int[] keys = snapshot.keysToArray();
+        String[] infos = snapshot.infoToArray();
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            check(keys[i] == entry.getKey() && Objects.equals(infos[i], entry.getValue())
+                    && Objects.equals(snapshot.search(entry.getKey()), entry.getValue()), "snapshot item " + i);
+            i++;
+        }
+        check(i == keys.length, "snapshot holds " + keys.length + " items");
+        if (!expected.isEmpty()) {
+            check(Objects.equals(snapshot.min(), expected.firstEntry().getValue())
+                    && Objects.equals(snapshot.max(), expected.lastEntry().getValue()), "snapshot min or max");
+        }
+    }
+
+    /**
+     * random inserts and deletes of intervals, and overlap and stabbing queries compared with a
+     * scan of every interval
+     */
+    private static void testInterval(Random random) {
+        IntervalWAVLTree tree = new IntervalWAVLTree();
+        // the intervals by lo and then hi, as the tree orders them
+        TreeMap<Long, String> expected = new TreeMap<>();
+
+        for (int step = 1; step <= STEPS; step++) {
+            // few enough distinct intervals that deletes find theirs, with now and then a long one
+            int lo = random.nextInt(KEY_RANGE / 4) - KEY_RANGE / 8;
+            int hi = lo + (random.nextInt(64) == 0 ? random.nextInt(KEY_RANGE / 4) : random.nextInt(8));
+            long interval = interval(lo, hi);
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1: {
+                    String info = random.nextInt(16) == 0 ? null : Integer.toString(step);
+                    check((tree.insert(lo, hi, info) == -1) == expected.containsKey(interval), "insert of existing interval " + lo + ".." + hi);
+                    if (!expected.containsKey(interval)) {
+                        expected.put(interval, info);
+                    }
+                    break;
+                }
+                case 2:
+                    check((tree.delete(lo, hi) == -1) != expected.containsKey(interval), "delete of interval " + lo + ".." + hi);
+                    expected.remove(interval);
+                    break;
+                default:
+                    check(Objects.equals(tree.search(lo, hi), expected.get(interval)), "search of interval " + lo + ".." + hi);
+                    if (random.nextBoolean()) {
+                        checkOverlapping(tree, expected, lo, hi, false);
+                    } else {
+                        checkOverlapping(tree, expected, lo, lo, true);
+                    }
+                    break;
+            }
+            if (step % CHECK_INTERVAL == 0) {
+                tree.checkInvariants();
+                check(tree.size() == expected.size(), "interval tree size " + tree.size());
+                checkOverlapping(tree, expected, Integer.MIN_VALUE, Integer.MAX_VALUE, false);
+            }
+        }
+
+        boolean thrown = false;
+        try {
+            tree.insert(1, 0, "reversed");
+        } catch (IllegalArgumentException e) {
+            thrown = true;
+        }
+        check(thrown, "insert of a reversed interval");
+        System.out.println("IntervalWAVLTree: " + STEPS + " random operations and queries passed");
+    }
+
+    /**
+     * findOverlapping(lo, hi), or stab(lo) if stab is set
+     */
+    private static void checkOverlapping(IntervalWAVLTree tree, TreeMap<Long, String> expected, int lo, int hi, boolean stab) {
+        final StringBuilder found = new StringBuilder();
+        IntervalWAVLTree.IntervalConsumer consumer = new IntervalWAVLTree.IntervalConsumer() {
+            public void accept(int lo, int hi, String info) {
+                found.append(lo).append("..").append(hi).append('=').append(info).append(',');
+            }
+        };
+        if (stab) {
+            tree.stab(lo, consumer);
+        } else {
+            tree.findOverlapping(lo, hi, consumer);
+        }
+
+        StringBuilder wanted = new StringBuilder();
+        for (Map.Entry<Long, String> entry : expected.entrySet()) {
+            int intervalLo = (int) (entry.getKey() >> 32);
+            int intervalHi = (int) (entry.getKey() + Integer.MIN_VALUE);
+            if (intervalLo <= hi && intervalHi >= lo) {
+                wanted.append(intervalLo).append("..").append(intervalHi).append('=').append(entry.getValue()).append(',');
+            }
+        }
+        check(found.toString().equals(wanted.toString()), (stab ? "stab of " + lo : "findOverlapping of " + lo + ".." + hi));
+    }
+
+    /**
+     * returns a long that orders the intervals by lo and then by hi
+     */
+    private static long interval(int lo, int hi) {
+        return ((long) lo << 32) + ((long) hi - Integer.MIN_VALUE);
+    }
+
+    /**
+     * Compares the items, size, ends and invariants of the tree of subject with expected
+     */
+    private static void checkSame(Subject subject, TreeMap<Integer, String> expected) {
+        subject.checkInvariants();
+        check(subject.size() == expected.size(), subject.name + " size " + subject.size() + " instead of " + expected.size());
+
+        int[] keys = subject.keysToArray();
+        String[] infos = subject.infoToArray();
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            check(keys[i] == entry.getKey() && Objects.equals(infos[i], entry.getValue()), subject.name + " item " + i + " is " + keys[i] + " instead of " + entry.getKey());
+            i++;
+        }
+        check(i == keys.length && i == infos.length, subject.name + " exports " + keys.length + " items");
+
+        if (expected.isEmpty()) {
+            check(subject.min() == null && subject.max() == null, subject.name + " min or max of an empty tree");
+        } else {
+            check(Objects.equals(subject.min(), expected.firstEntry().getValue())
+                    && Objects.equals(subject.max(), expected.lastEntry().getValue()), subject.name + " min or max");
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * One of the trees under test, with its info shown as a String: the numbers the tester
+     * inserts as decimal Strings become longs in IntLongWAVLTree and UTF-8 bytes in
+     * IntBytesWAVLTree, and the keys of LongWAVLTree are spread over the range of longs.
+     */
+    private abstract static class Subject {
+        final String name;
+        final boolean supportsNull; // whether the tree keeps null infos
+
+        Subject(String name, boolean supportsNull) {
+            this.name = name;
+            this.supportsNull = supportsNull;
+        }
+
+        abstract int insert(int key, String info);
+
+        abstract int delete(int key);
+
+        abstract String search(int key);
+
+        abstract String min(); // null if the tree is empty
+
+        abstract String max();
+
+        abstract int[] keysToArray();
+
+        abstract String[] infoToArray();
+
+        abstract int size();
+
+        abstract void checkInvariants();
+
+        void close() {
+        }
+    }
+
+    private static class ArraySubject extends Subject {
+        private final ArrayWAVLTree tree = new ArrayWAVLTree(16);
+
+        ArraySubject() {
+            super("ArrayWAVLTree", true);
+        }
+
+        int insert(int key, String info) {
+            return tree.insert(key, info);
+        }
+
+        int delete(int key) {
+            return tree.delete(key);
+        }
+
+        String search(int key) {
+            return tree.search(key);
+        }
+
+        String min() {
+            return tree.min();
+        }
+
+        String max() {
+            return tree.max();
+        }
+
+        int[] keysToArray() {
+            return tree.keysToArray();
+        }
+
+        String[] infoToArray() {
+            return tree.infoToArray();
+        }
+
+        int size() {
+            return tree.size();
+        }
+
+        void checkInvariants() {
+            tree.checkInvariants();
+        }
+    }
+
+    private static class BlockedSubject extends Subject {
+        private final BlockedWAVLTree tree = new BlockedWAVLTree(16);
+
+        BlockedSubject() {
+            super("BlockedWAVLTree", true);
+        }
+
+        int insert(int key, String info) {
+            return tree.insert(key, info);
+        }
+
+        int delete(int key) {
+            return tree.delete(key);
+        }
+
+        String search(int key) {
+            return tree.search(key);
+        }
+
+        String min() {
+            return tree.min();
+        }
+
+        String max() {
+            return tree.max();
+        }
+
+        int[] keysToArray() {
+            return tree.keysToArray();
+        }
+
+        String[] infoToArray() {
+            return tree.infoToArray();
+        }
+
+        int size() {
+            return tree.size();
+        }
+
+        void checkInvariants() {
+            tree.checkInvariants();
+        }
+    }
+
+    private static class LongSubject extends Subject {
+        private static final int SHIFT = 31; // spreads the int keys over the range of longs, keeping their order
+
+        private final LongWAVLTree tree = new LongWAVLTree(16);
+
+        LongSubject() {
+            super("LongWAVLTree", true);
+        }
+
+        int insert(int key, String info) {
+            return tree.insert((long) key << SHIFT, info);
+        }
+
+        int delete(int key) {
+            return tree.delete((long) key << SHIFT);
+        }
+
+        String search(int key) {
+            return tree.search((long) key << SHIFT);
+        }
+
+        String min() {
+            return tree.min();
+        }
+
+        String max() {
+            return tree.max();
+        }
+
+        int[] keysToArray() {
+            long[] longKeys = tree.keysToArray();
+            int[] keys = new int[longKeys.length];
+            for (int i = 0; i < keys.length; i++) {
+                check(longKeys[i] % (1L << SHIFT) == 0, "LongWAVLTree key " + longKeys[i] + " was never inserted");
+                keys[i] = (int) (longKeys[i] >> SHIFT);
+            }
+            return keys;
+        }
+
+        String[] infoToArray() {
+            return tree.infoToArray();
+        }
+
+        int size() {
+            return tree.size();
+        }
+
+        void checkInvariants() {
+            tree.checkInvariants();
+        }
+    }
+
+    private static class IntLongSubject extends Subject {
+        private final IntLongWAVLTree tree = new IntLongWAVLTree(16);
+
+        IntLongSubject() {
+            super("IntLongWAVLTree", false);
+        }
+
+        int insert(int key, String info) {
+            return tree.insert(key, Long.parseLong(info));
+        }
+
+        int delete(int key) {
+            return tree.delete(key);
+        }
+
+        String search(int key) {
+            if (!tree.contains(key)) {
+                check(tree.search(key, -1) == -1, "IntLongWAVLTree search of a missing key");
+                return null;
+            }
+            return Long.toString(tree.search(key, -1));
+        }
+
+        String min() {
+            try {
+                return Long.toString(tree.min());
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+
+        String max() {
+            try {
+                return Long.toString(tree.max());
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+
+        int[] keysToArray() {
+            return tree.keysToArray();
+        }
+
+        String[] infoToArray() {
+            long[] longInfos = tree.infoToArray();
+            String[] infos = new String[longInfos.length];
+            for (int i = 0; i < infos.length; i++) {
+                infos[i] = Long.toString(longInfos[i]);
+            }
+            return infos;
+        }
+
+        int size() {
+            return tree.size();
+        }
+
+        void checkInvariants() {
+            tree.checkInvariants();
+        }
+    }
+
+    private static class IntBytesSubject extends Subject {
+        private final IntBytesWAVLTree tree = new IntBytesWAVLTree(16);
+
+        IntBytesSubject() {
+            super("IntBytesWAVLTree", true);
+        }
+
+        int insert(int key, String info) {
+            return tree.insert(key, info == null ? null : info.getBytes(StandardCharsets.UTF_8));
+        }
+
+        int delete(int key) {
+            return tree.delete(key);
+        }
+
+        String search(int key) {
+            return string(tree.search(key));
+        }
+
+        String min() {
+            return string(tree.min());
+        }
+
+        String max() {
+            return string(tree.max());
+        }
+
+        int[] keysToArray() {
+            return tree.keysToArray();
+        }
+
+        String[] infoToArray() {
+            byte[][] byteInfos = tree.infoToArray();
+            String[] infos = new String[byteInfos.length];
+            for (int i = 0; i < infos.length; i++) {
+                infos[i] = string(byteInfos[i]);
+            }
+            return infos;
+        }
+
+        int size() {
+            return tree.size();
+        }
+
+        void checkInvariants() {
+            tree.checkInvariants();
+        }
+
+        private static String string(byte[] bytes) {
+            return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class OffHeapSubject extends Subject {
+        private final OffHeapWAVLTree tree = new OffHeapWAVLTree();
+
+        OffHeapSubject() {
+            super("OffHeapWAVLTree", true);
+        }
+
+        int insert(int key, String info) {
+            return tree.insert(key, info);
+        }
+
+        int delete(int key) {
+            return tree.delete(key);
+        }
+
+        String search(int key) {
+            return tree.search(key);
+        }
+
+        String min() {
+            return tree.min();
+        }
+
+        String max() {
+            return tree.max();
+        }
+
+        int[] keysToArray() {
+            return tree.keysToArray();
+        }
+
+        String[] infoToArray() {
+            return tree.infoToArray();
+        }
+
+        int size() {
+            return tree.size();
+        }
+
+        void checkInvariants() {
+            tree.checkInvariants();
+        }
+
+        void close() {
+            tree.close();
+        }
+    }
+}